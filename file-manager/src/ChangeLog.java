@@ -0,0 +1,375 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Changes to a CSV file kept as records appended to "<file>.log" instead of rewriting the file
+// for every change, so a change costs the size of the change. Loading replays the log over the
+// rows of the file. Once the log outgrows half the file a background thread folds it in: the
+// new file and log are written aside and renamed over the old ones. The first line of the log
+// names the length and checksum of the file it applies to, so after a crash between the two
+// renames the log that fits the file is picked, and a log left from another file is dropped.
+public class ChangeLog implements Closeable {
+
+  // the log is not folded into the file before it has this many bytes
+  static final long MIN_COMPACT_SIZE = 1 << 20;
+
+  private static final String HEADER = "#base ";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path base;
+  private final Path log;
+  private final Path baseTmp;
+  private final Path logTmp;
+  private final Charset charset;
+  private final ParallelCsvLoader loader;
+  private final long minCompactSize;
+  private final ExecutorService compactor;
+  // held for a whole compaction and while loading, so a load never sees a file and a log that do not belong together
+  private final Object compactLock = new Object();
+  private FileChannel channel;
+  private OutputStream out;
+  private long size;
+  private long baseSize;
+  private boolean compactScheduled;
+  private boolean closed;
+
+  public ChangeLog(String fileName, Charset charset, ParallelCsvLoader loader) throws IOException {
+    this(fileName, charset, loader, MIN_COMPACT_SIZE);
+  }
+
+  public ChangeLog(String fileName, Charset charset, ParallelCsvLoader loader, long minCompactSize) throws IOException {
+    this.base = Paths.get(fileName);
+    this.log = Paths.get(fileName + ".log");
+    this.baseTmp = Paths.get(fileName + ".tmp");
+    this.logTmp = Paths.get(fileName + ".log.tmp");
+    this.charset = charset;
+    this.loader = loader;
+    this.minCompactSize = minCompactSize;
+    this.compactor = Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task, "compactor " + fileName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    open();
+  }
+
+  private void open() throws IOException {
+    String header = header(base);
+    if (!header.equals(firstLine(log)) && header.equals(firstLine(logTmp))) {
+      // a compaction renamed its file in but not its log
+      Files.move(logTmp, log, StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.deleteIfExists(logTmp);
+    Files.deleteIfExists(baseTmp);
+    if (!header.equals(firstLine(log))) {
+      // no log yet, or one written against another file, e.g. before the table was created anew
+      writeLog(log, header, new byte[0]);
+    }
+    size = Files.size(log);
+    baseSize = Files.size(base);
+    openOut();
+  }
+
+  public void add(String row) throws IOException {
+    append("A " + escape(row));
+  }
+
+  // Records the rows as added, forcing them to disk before returning
+  public void addAll(List<String> rows) throws IOException {
+    List<String> records = new ArrayList<>(rows.size());
+    for (String row : rows) {
+      records.add("A " + escape(row));
+    }
+    append(records, true);
+  }
+
+  public void set(int lineNumber, String row) throws IOException {
+    append("U " + lineNumber + " " + escape(row));
+  }
+
+  // Records the removal of the rows fromIndex to toIndex inclusive, nothing when toIndex < fromIndex
+  public void delete(int fromIndex, int toIndex) throws IOException {
+    if (toIndex >= fromIndex) {
+      append("D " + fromIndex + " " + toIndex);
+    }
+  }
+
+  // Records the removal of every row but the header
+  public void clear() throws IOException {
+    append("C");
+  }
+
+  // The rows of the file with the logged changes applied
+  public List<String> load() throws IOException {
+    synchronized (compactLock) {
+      List<String> rows = loader.load(base.toString());
+      long end;
+      synchronized (this) {
+        end = size;
+      }
+      replay(rows, end);
+      return rows;
+    }
+  }
+
+  // Folds the log into the file now instead of waiting for the background thread
+  public void compact() throws IOException {
+    synchronized (compactLock) {
+      long end;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        end = size;
+      }
+      // changes appended from here on are carried over to the new log
+      List<String> rows = loader.load(base.toString());
+      replay(rows, end);
+      install(rows, end);
+    }
+  }
+
+  // Replaces the file with the given rows and starts an empty log
+  public void rewrite(List<String> rows) throws IOException {
+    synchronized (compactLock) {
+      synchronized (this) {
+        install(rows, size);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    compactor.shutdownNow();
+    synchronized (compactLock) {
+      synchronized (this) {
+        if (!closed) {
+          closed = true;
+          out.close();
+        }
+      }
+    }
+  }
+
+  private void append(String record) throws IOException {
+    append(List.of(record), false);
+  }
+
+  private synchronized void append(List<String> records, boolean force) throws IOException {
+    if (closed) {
+      throw new IOException("Change log " + log + " is closed");
+    }
+    for (String record : records) {
+      byte[] bytes = (record + "\n").getBytes(charset);
+      out.write(bytes);
+      size += bytes.length;
+    }
+    out.flush();
+    if (force) {
+      channel.force(false);
+    }
+    if (!compactScheduled && size > Math.max(minCompactSize, baseSize / 2)) {
+      compactScheduled = true;
+      compactor.execute(this::compactInBackground);
+    }
+  }
+
+  private void openOut() throws IOException {
+    channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+  }
+
+  private void compactInBackground() {
+    try {
+      compact();
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    } finally {
+      synchronized (this) {
+        compactScheduled = false;
+      }
+    }
+  }
+
+  // Writes the rows as the new file and the records after end as the new log, then renames both in
+  private void install(List<String> rows, long end) throws IOException {
+    CRC32C crc = new CRC32C();
+    try (FileChannel file = FileChannel.open(baseTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+         PrintWriter writer = new PrintWriter(new OutputStreamWriter(new CheckedOutputStream(
+             new BufferedOutputStream(Channels.newOutputStream(file), BUFFER_SIZE), crc), charset))) {
+      for (String row : rows) {
+        writer.println(row);
+      }
+      writer.flush();
+      if (writer.checkError()) {
+        throw new IOException("Could not write " + baseTmp);
+      }
+      file.force(true);
+    }
+    String header = HEADER + Files.size(baseTmp) + " " + Long.toHexString(crc.getValue());
+
+    synchronized (this) {
+      out.flush();
+      writeLog(logTmp, header, read(log, end, size));
+      // the file first: until the log follows, open() still finds the new log in logTmp
+      Files.move(baseTmp, base, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(logTmp, log, StandardCopyOption.ATOMIC_MOVE);
+      out.close();
+      openOut();
+      size = Files.size(log);
+      baseSize = Files.size(base);
+    }
+  }
+
+  private void replay(List<String> rows, long end) throws IOException {
+    if (end > Integer.MAX_VALUE) {
+      throw new IOException("Change log " + log + " is too large to replay");
+    }
+    try (FileChannel file = FileChannel.open(log, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, end);
+      int start = 0;
+      for (int i = 0; i < end; i++) {
+        if (buffer.get(i) == '\n') {
+          // the first line is the header
+          if (start > 0) {
+            byte[] bytes = new byte[i - start];
+            buffer.get(start, bytes);
+            apply(rows, new String(bytes, charset));
+          }
+          start = i + 1;
+        }
+      }
+    }
+  }
+
+  private void apply(List<String> rows, String record) throws IOException {
+    try {
+      switch (record.charAt(0)) {
+        case 'A':
+          rows.add(unescape(record.substring(2)));
+          break;
+        case 'U':
+          int space = record.indexOf(' ', 2);
+          int lineNumber = Integer.parseInt(record.substring(2, space));
+          if (lineNumber < rows.size()) {
+            rows.set(lineNumber, unescape(record.substring(space + 1)));
+          }
+          break;
+        case 'D':
+          String[] range = record.substring(2).split(" ");
+          rows.subList(Integer.parseInt(range[0]), Integer.parseInt(range[1]) + 1).clear();
+          break;
+        case 'C':
+          String header = rows.isEmpty() ? "" : rows.getFirst();
+          rows.clear();
+          rows.add(header);
+          break;
+        default:
+          throw new IOException("Malformed record in " + log + ": " + record);
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Malformed record in " + log + ": " + record, e);
+    }
+  }
+
+  private void writeLog(Path path, String header, byte[] records) throws IOException {
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap((header + "\n").getBytes(charset));
+      while (buffer.hasRemaining()) {
+        file.write(buffer);
+      }
+      buffer = ByteBuffer.wrap(records);
+      while (buffer.hasRemaining()) {
+        file.write(buffer);
+      }
+      file.force(true);
+    }
+  }
+
+  private static byte[] read(Path path, long from, long to) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (buffer.hasRemaining()) {
+        if (file.read(buffer, from + buffer.position()) < 0) {
+          break;
+        }
+      }
+    }
+    return buffer.array();
+  }
+
+  // First line of the file, null when there is none
+  private String firstLine(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) >= 0 && b != '\n') {
+        line.append((char) b);
+      }
+      return b < 0 ? null : line.toString();
+    }
+  }
+
+  // Length and checksum of the file, which the log applies to
+  private static String header(Path path) throws IOException {
+    CRC32C crc = new CRC32C();
+    long length = 0;
+    try (InputStream in = Files.newInputStream(path)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+        length += n;
+      }
+    }
+    return HEADER + length + " " + Long.toHexString(crc.getValue());
+  }
+
+  // a record is one line, so the line breaks of a quoted field are escaped
+  private static String escape(String row) {
+    return row.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static String unescape(String row) {
+    if (row.indexOf('\\') < 0) {
+      return row;
+    }
+    StringBuilder result = new StringBuilder(row.length());
+    for (int i = 0; i < row.length(); i++) {
+      char c = row.charAt(i);
+      if (c == '\\' && i + 1 < row.length()) {
+        char next = row.charAt(++i);
+        result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,345 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The rows of a CSV table stored column by column: a column whose values are all whole numbers
+// as an int array, any other column as an int array of codes into a dictionary of its distinct
+// values, so a repeated value like a course is stored once. A column with mostly distinct values,
+// like a name, is packed into one byte array instead. Scans and filters run over the arrays.
+// Row r is line r + 1 of the file, values are split at ',' and trimmed like CsvFileManager does,
+// and a row with fewer values than the header gets empty ones.
+public class ColumnarTable {
+
+  private static final int INITIAL_CAPACITY = 1024;
+  // a dictionary with more values than this and than half the rows is not worth its map
+  static final int MAX_DICTIONARY_SIZE = 256;
+
+  private final String[] names;
+  private final Column[] columns;
+  private int size;
+
+  public ColumnarTable(String header) {
+    String[] headerNames = header.split(",");
+    names = new String[headerNames.length];
+    columns = new Column[headerNames.length];
+    for (int i = 0; i < headerNames.length; i++) {
+      names[i] = headerNames[i].trim();
+      columns[i] = new IntColumn(INITIAL_CAPACITY);
+    }
+  }
+
+  // Table of the lines, the first of which is the header
+  public static ColumnarTable of(List<String> lines) {
+    ColumnarTable table = new ColumnarTable(lines.isEmpty() ? "" : lines.getFirst());
+    for (int i = 1; i < lines.size(); i++) {
+      table.add(lines.get(i));
+    }
+    table.trimToSize();
+    return table;
+  }
+
+  public void add(String line) {
+    String[] values = line.split(",");
+    for (int i = 0; i < columns.length; i++) {
+      String value = i < values.length ? values[i].trim() : "";
+      while (!columns[i].add(size, value)) {
+        // the column can not hold the value, it moves to the next more general kind
+        columns[i] = columns[i] instanceof IntColumn ? new DictionaryColumn(columns[i], size)
+            : new TextColumn(columns[i], size);
+      }
+    }
+    size++;
+  }
+
+  // Drops the room the arrays keep for rows to come
+  public void trimToSize() {
+    for (Column column : columns) {
+      column.trimToSize(size);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String[] getNames() {
+    return names.clone();
+  }
+
+  // Index of the column with the given name, -1 if there is none
+  public int column(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public boolean isNumeric(int column) {
+    return columns[column] instanceof IntColumn;
+  }
+
+  public String get(int row, int column) {
+    checkRow(row);
+    return columns[column].get(row);
+  }
+
+  // Value of a numeric column as an int
+  public int getInt(int row, int column) {
+    checkRow(row);
+    return intColumn(column).values[row];
+  }
+
+  public String[] getRow(int row) {
+    checkRow(row);
+    String[] values = new String[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      values[i] = columns[i].get(row);
+    }
+    return values;
+  }
+
+  // Rows in which the column has the value, in order
+  public int[] filter(int column, String value) {
+    return columns[column].find(value, size);
+  }
+
+  // Rows in which the numeric column is between min and max inclusive, in order
+  public int[] filter(int column, int min, int max) {
+    return Column.matches(intColumn(column).values, size, min, max);
+  }
+
+  public int count(int column, String value) {
+    return filter(column, value).length;
+  }
+
+  // Number of rows per value of the column, in the order the values first appear
+  public Map<String, Integer> countBy(int column) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    Column col = columns[column];
+    if (col instanceof DictionaryColumn dictionary) {
+      int[] perCode = new int[dictionary.dictionary.size()];
+      for (int i = 0; i < size; i++) {
+        perCode[col.values[i]]++;
+      }
+      for (int code = 0; code < perCode.length; code++) {
+        counts.put(dictionary.dictionary.get(code), perCode[code]);
+      }
+    } else {
+      for (int i = 0; i < size; i++) {
+        counts.merge(col.get(i), 1, Integer::sum);
+      }
+    }
+    return counts;
+  }
+
+  private IntColumn intColumn(int column) {
+    if (!(columns[column] instanceof IntColumn intColumn)) {
+      throw new IllegalArgumentException("Column " + names[column] + " is not numeric");
+    }
+    return intColumn;
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    }
+  }
+
+  // One int per row: the value itself, the code of the value or where the value ends
+  private abstract static class Column {
+
+    static final int ABSENT = Integer.MIN_VALUE;
+
+    int[] values;
+
+    Column(int capacity) {
+      values = new int[capacity];
+    }
+
+    // Stores the value of the row, false when this kind of column can not hold it
+    abstract boolean add(int row, String value);
+
+    abstract String get(int row);
+
+    // Rows among the first size ones that have the value, in order
+    abstract int[] find(String value, int size);
+
+    void put(int row, int value) {
+      if (row == values.length) {
+        values = Arrays.copyOf(values, row * 2);
+      }
+      values[row] = value;
+    }
+
+    void trimToSize(int size) {
+      values = Arrays.copyOf(values, Math.max(size, 1));
+    }
+
+    static int[] matches(int[] values, int size, int min, int max) {
+      int[] rows = new int[16];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        int value = values[i];
+        if (value >= min && value <= max) {
+          if (count == rows.length) {
+            rows = Arrays.copyOf(rows, count * 2);
+          }
+          rows[count++] = i;
+        }
+      }
+      return Arrays.copyOf(rows, count);
+    }
+  }
+
+  private static class IntColumn extends Column {
+
+    IntColumn(int capacity) {
+      super(capacity);
+    }
+
+    @Override
+    boolean add(int row, String value) {
+      int number = code(value);
+      if (number == ABSENT) {
+        return false;
+      }
+      put(row, number);
+      return true;
+    }
+
+    @Override
+    String get(int row) {
+      return Integer.toString(values[row]);
+    }
+
+    @Override
+    int[] find(String value, int size) {
+      int number = code(value);
+      return number == ABSENT ? new int[0] : matches(values, size, number, number);
+    }
+
+    // Only numbers that print back the same, so "007" or "+1" stay text
+    int code(String value) {
+      if (value.isEmpty() || value.length() > 11) {
+        return ABSENT;
+      }
+      try {
+        int number = Integer.parseInt(value);
+        return number != ABSENT && Integer.toString(number).equals(value) ? number : ABSENT;
+      } catch (NumberFormatException e) {
+        return ABSENT;
+      }
+    }
+  }
+
+  private static class DictionaryColumn extends Column {
+
+    final List<String> dictionary = new ArrayList<>();
+    final Map<String, Integer> codes = new HashMap<>();
+
+    // Takes over the first rows of another column
+    DictionaryColumn(Column column, int rows) {
+      super(column.values.length);
+      for (int i = 0; i < rows; i++) {
+        encode(i, column.get(i));
+      }
+    }
+
+    @Override
+    boolean add(int row, String value) {
+      if (!codes.containsKey(value) && dictionary.size() >= MAX_DICTIONARY_SIZE && dictionary.size() > row / 2) {
+        return false;
+      }
+      encode(row, value);
+      return true;
+    }
+
+    private void encode(int row, String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        dictionary.add(value);
+        codes.put(value, code);
+      }
+      put(row, code);
+    }
+
+    @Override
+    String get(int row) {
+      return dictionary.get(values[row]);
+    }
+
+    @Override
+    int[] find(String value, int size) {
+      Integer code = codes.get(value);
+      return code == null ? new int[0] : matches(values, size, code, code);
+    }
+  }
+
+  // The values one after the other in a byte array, values[row] is where the value of the row ends
+  private static class TextColumn extends Column {
+
+    byte[] bytes = new byte[INITIAL_CAPACITY * 16];
+
+    // Takes over the first rows of another column
+    TextColumn(Column column, int rows) {
+      super(column.values.length);
+      for (int i = 0; i < rows; i++) {
+        add(i, column.get(i));
+      }
+    }
+
+    @Override
+    boolean add(int row, String value) {
+      byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+      int start = start(row);
+      if (start + encoded.length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + encoded.length));
+      }
+      System.arraycopy(encoded, 0, bytes, start, encoded.length);
+      put(row, start + encoded.length);
+      return true;
+    }
+
+    @Override
+    void trimToSize(int size) {
+      super.trimToSize(size);
+      bytes = Arrays.copyOf(bytes, Math.max(start(size), 1));
+    }
+
+    @Override
+    String get(int row) {
+      int start = start(row);
+      return new String(bytes, start, values[row] - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    int[] find(String value, int size) {
+      byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+      int[] rows = new int[16];
+      int count = 0;
+      int start = 0;
+      for (int i = 0; i < size; i++) {
+        int end = values[i];
+        if (Arrays.equals(bytes, start, end, encoded, 0, encoded.length)) {
+          if (count == rows.length) {
+            rows = Arrays.copyOf(rows, count * 2);
+          }
+          rows[count++] = i;
+        }
+        start = end;
+      }
+      return Arrays.copyOf(rows, count);
+    }
+
+    private int start(int row) {
+      return row == 0 ? 0 : values[row - 1];
+    }
+  }
+}
@@ -1,20 +1,43 @@
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+// Every public method that reads or changes the lines, the file or the views of them holds the
+// manager's lock, and so does the thread writing the rows of createAsync(); that makes one manager
+// safe to use from several threads. The list getLinesList() returns is the live one, iterate it
+// while synchronized on the manager. The lines are static, so two managers must not be used at once.
 public class CsvFileManager {
 
+  // rows of createAsync() written together, and how long the writer waits for more once one arrived
+  static final int GROUP_COMMIT_BATCH = 1024;
+  static final long GROUP_COMMIT_WINDOW_MILLIS = 1;
+
   final PrintWriter csvFilePath;
   final String fileName;
+  // mmaps the file and parses it in parallel, shared by all managers like the lines
+  static final ParallelCsvLoader LOADER = new ParallelCsvLoader();
   public static List<String> lines = new ArrayList<>();
   public String headerTemplate;
   public Map<String, String> data = new HashMap<>();
+  // where each line of the file starts, FileReader and PrintWriter both use the default charset
+  final RowIndex rowIndex;
+  // changes go to a log next to the file instead of rewriting it, null until enableChangeLog()
+  ChangeLog changeLog;
+  // writes the rows of createAsync() from all threads in batches, started on first use
+  private GroupCommitWriter groupCommit;
+  // the lines column by column for scans and filters, built on first use, kept on appends and dropped on other changes
+  private ColumnarTable table;
+  // secondary indexes by column name, kept up to date by every change of the lines
+  private final Map<String, SecondaryIndex> indexes = new HashMap<>();
 
   public CsvFileManager(PrintWriter filePath, String fileName) {
     this.csvFilePath = filePath;
     this.fileName = fileName;
+    this.rowIndex = new RowIndex(fileName, Charset.defaultCharset());
     this.headerTemplate = getHeader();
     populateLinesList();
   }
@@ -22,27 +45,194 @@ public class CsvFileManager {
   public CsvFileManager(PrintWriter filePath, String fileName, String headerTemplate) {
     this.csvFilePath = filePath;
     this.fileName = fileName;
+    this.rowIndex = new RowIndex(fileName, Charset.defaultCharset());
     this.headerTemplate = headerTemplate;
     lines.add(headerTemplate);
+    // there is no change log yet, so the header goes straight to the file
     csvFilePath.println(headerTemplate);
     csvFilePath.flush();
+    rowIndex.append((headerTemplate + System.lineSeparator()).getBytes(Charset.defaultCharset()).length);
   }
 
-  public void create(String data_name, String data_id, String data_yrLvl, String data_gender, String data_course) {
+  public synchronized void create(String data_name, String data_id, String data_yrLvl, String data_gender, String data_course) {
     String csvLine = String.join(",", data_name, data_id, data_yrLvl, data_gender, data_course);
-    csvFilePath.println(csvLine);
-    csvFilePath.flush();
-    lines.add(csvLine);
+    append(csvLine);
+    addLine(csvLine);
   }
 
-  public void create(String data_name, String data_id) {
+  public synchronized void create(String data_name, String data_id) {
     String csvLine = String.join(",", data_name, data_id);
+    append(csvLine);
+    addLine(csvLine);
+  }
+
+  // Adds the rows with a single write and flush instead of one per row
+  public synchronized void createAll(List<String[]> rows) {
+    List<String> csvLines = new ArrayList<>(rows.size());
+    for (String[] row : rows) {
+      csvLines.add(String.join(",", row));
+    }
+    try {
+      appendAll(csvLines);
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    }
+  }
+
+  // Adds the row from any thread; rows arriving together are written in one batch, the future
+  // completes once the batch is flushed (forced to disk with the change log enabled)
+  public CompletableFuture<Void> createAsync(String... columns) {
+    return groupCommit().submit(String.join(",", columns));
+  }
+
+  private synchronized GroupCommitWriter groupCommit() {
+    if (groupCommit == null) {
+      groupCommit = new GroupCommitWriter("group commit " + fileName, rows -> {
+        synchronized (this) {
+          appendAll(rows);
+        }
+      }, GROUP_COMMIT_BATCH, GROUP_COMMIT_WINDOW_MILLIS);
+    }
+    return groupCommit;
+  }
+
+  // Writes the rows still queued by createAsync() and closes the change log
+  public void close() {
+    try {
+      GroupCommitWriter writer;
+      synchronized (this) {
+        writer = groupCommit;
+      }
+      // not holding the lock, the writer thread needs it for the last batch
+      if (writer != null) {
+        writer.close();
+      }
+      synchronized (this) {
+        if (changeLog != null) {
+          changeLog.close();
+        }
+        rowIndex.close();
+      }
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    }
+  }
+
+  // Keeps the changes in a log next to the file from now on, so a change no longer rewrites the whole file
+  public synchronized void enableChangeLog() {
+    try {
+      changeLog = new ChangeLog(fileName, Charset.defaultCharset(), LOADER);
+      lines.clear();
+      populateLinesList();
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    }
+  }
+
+  private void append(String csvLine) {
+    if (changeLog != null) {
+      save(log -> log.add(csvLine));
+      return;
+    }
     csvFilePath.println(csvLine);
     csvFilePath.flush();
+    rowIndex.append((csvLine + System.lineSeparator()).getBytes(Charset.defaultCharset()).length);
+  }
+
+  private void appendAll(List<String> csvLines) throws IOException {
+    if (changeLog != null) {
+      changeLog.addAll(csvLines);
+    } else {
+      for (String csvLine : csvLines) {
+        csvFilePath.println(csvLine);
+        rowIndex.append((csvLine + System.lineSeparator()).getBytes(Charset.defaultCharset()).length);
+      }
+      csvFilePath.flush();
+      if (csvFilePath.checkError()) {
+        throw new IOException("Could not write to " + fileName);
+      }
+    }
+    for (String csvLine : csvLines) {
+      addLine(csvLine);
+    }
+  }
+
+  private void addLine(String csvLine) {
     lines.add(csvLine);
+    if (table != null) {
+      table.add(csvLine);
+    }
+    for (SecondaryIndex index : indexes.values()) {
+      index.add(lines.size() - 1, csvLine);
+    }
+  }
+
+  // Indexes the column so find() looks its values up instead of scanning; a sorted index also serves findRange()
+  public synchronized void createIndex(String column, boolean sorted) {
+    int columnIndex = columnIndex(column);
+    if (columnIndex < 0) {
+      throw new IllegalArgumentException("No column " + column + " in " + getHeader());
+    }
+    SecondaryIndex index = new SecondaryIndex(columnIndex, sorted);
+    index.build(lines);
+    indexes.put(column, index);
+  }
+
+  public synchronized void dropIndex(String column) {
+    indexes.remove(column);
+  }
+
+  // Numbers of the lines whose column has the value, in order; scans the columnar table when the column has no index
+  public synchronized int[] find(String column, String value) {
+    SecondaryIndex index = indexes.get(column);
+    if (index != null) {
+      return index.get(value);
+    }
+    int columnIndex = columnIndex(column);
+    if (columnIndex < 0) {
+      throw new IllegalArgumentException("No column " + column + " in " + getHeader());
+    }
+    int[] rows = getTable().filter(columnIndex, value);
+    for (int i = 0; i < rows.length; i++) {
+      rows[i]++;
+    }
+    return rows;
+  }
+
+  // Numbers of the lines whose column has a value from from to to inclusive, in order; needs a sorted index
+  public synchronized int[] findRange(String column, String from, String to) {
+    SecondaryIndex index = indexes.get(column);
+    if (index == null || !index.isSorted()) {
+      throw new IllegalStateException("No sorted index on column " + column);
+    }
+    return index.range(from, to);
+  }
+
+  private int columnIndex(String column) {
+    String[] names = getHeader().split(",");
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].trim().equals(column)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void reindex() {
+    for (SecondaryIndex index : indexes.values()) {
+      index.build(lines);
+    }
+  }
+
+  // The lines as a columnar table, row r being line r + 1
+  public synchronized ColumnarTable getTable() {
+    if (table == null) {
+      table = ColumnarTable.of(lines);
+    }
+    return table;
   }
 
-  public void read(int lineNumber) {
+  public synchronized void read(int lineNumber) {
     if (lineNumber >= 0 && lineNumber < lines.size()) {
       List<String> result = readLine(lineNumber);
       if (!result.isEmpty()) {
@@ -74,7 +264,7 @@ public class CsvFileManager {
   }
 
 
-  public void update(int lineNumber, String[] newData) {
+  public synchronized void update(int lineNumber, String[] newData) {
     List<String> currentData = readLine(lineNumber);
 
     if (newData.length == currentData.size()) {
@@ -82,26 +272,43 @@ public class CsvFileManager {
         currentData.set(i, newData[i]);
       }
       updateLine(lineNumber, currentData);
-      updateFile();
+      save(log -> log.set(lineNumber, lines.get(lineNumber)));
     }
   }
 
 
-  public void delete(int lineNumber) {
-    lines.remove(lineNumber);
-    updateFile();
+  public synchronized void delete(int lineNumber) {
+    delete(lineNumber, lineNumber);
   }
 
-  public void delete(int fromIndex, int toIndex) {
+  public synchronized void delete(int fromIndex, int toIndex) {
     if (toIndex >= fromIndex) {
+      // the indexes skip the header, removing it makes the next line the header
+      if (fromIndex >= 1) {
+        for (SecondaryIndex index : indexes.values()) {
+          index.delete(fromIndex, toIndex, lines);
+        }
+      }
       lines.subList(fromIndex, toIndex + 1).clear();
+      table = null;
+      if (fromIndex < 1) {
+        reindex();
+      }
     }
-    updateFile();
+    save(log -> log.delete(fromIndex, toIndex));
   }
 
-  public void list() {
+  public synchronized void list() {
     lines.clear();
     populateLinesList();
+    try {
+      // the file may have been changed by someone else since the index was built
+      if (changeLog == null && rowIndex.isStale()) {
+        rowIndex.build();
+      }
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    }
 
     for (int i = 1; i < lines.size(); i++) {
       System.out.print(i + ".) ");
@@ -119,33 +326,25 @@ public class CsvFileManager {
   }
 
   private void populateLinesList() {
-    try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        if (!line.trim().isEmpty()) {
-          lines.add(line);
-        }
-      }
+    table = null;
+    try {
+      lines.addAll(changeLog == null ? LOADER.load(fileName) : changeLog.load());
     } catch (IOException e) {
       System.out.println("An error occurred:" + e);
     }
+    reindex();
   }
 
   private List<String> readLine(int lineNumber) {
     List<String> result = new ArrayList<>();
-    try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-      String line;
-      int currentLineNumber = 0;
-
-      while ((line = reader.readLine()) != null) {
-        currentLineNumber++;
-
-        if (currentLineNumber == lineNumber + 1) {
-          String[] columns = line.split(",");
-          for (String column : columns) {
-            result.add(column.trim());
-          }
-          break;
+    try {
+      // the file does not have the logged changes yet, the lines do
+      String line = changeLog == null ? rowIndex.readLine(lineNumber)
+          : lineNumber >= 0 && lineNumber < lines.size() ? lines.get(lineNumber) : null;
+      if (line != null) {
+        String[] columns = line.split(",");
+        for (String column : columns) {
+          result.add(column.trim());
         }
       }
     } catch (IOException e) {
@@ -154,7 +353,7 @@ public class CsvFileManager {
     return result;
   }
 
-  public String[] getLine(int index) {
+  public synchronized String[] getLine(int index) {
     if (index < 0 || index >= lines.size()) {
       // Index out of bounds, return null or throw an exception
       return null;
@@ -172,7 +371,16 @@ public class CsvFileManager {
         currentLineNumber++;
 
         if (currentLineNumber == lineNumber + 1) {
-          lines.set(i, String.join(",", newData));
+          String line = String.join(",", newData);
+          // the header is not indexed, like in SecondaryIndex.build()
+          if (i >= 1) {
+            for (SecondaryIndex index : indexes.values()) {
+              index.remove(i, lines.get(i));
+              index.add(i, line);
+            }
+          }
+          lines.set(i, line);
+          table = null;
           break;
         }
       }
@@ -181,7 +389,15 @@ public class CsvFileManager {
     }
   }
 
-  public void updateFile() {
+  public synchronized void updateFile() {
+    if (changeLog != null) {
+      try {
+        changeLog.rewrite(lines);
+      } catch (IOException e) {
+        System.out.println("An error occurred:" + e);
+      }
+      return;
+    }
     try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
       for (String line : lines) {
         writer.println(line);
@@ -190,20 +406,42 @@ public class CsvFileManager {
     } catch (IOException e) {
       System.out.println("An error occurred:" + e);
     }
+    rowIndex.invalidate();
   }
 
-  public void clearCsvFile() {
+  public synchronized void clearCsvFile() {
     headerTemplate = getHeader();
     lines.clear();
     lines.add(headerTemplate);
-    updateFile();
+    table = null;
+    reindex();
+    save(ChangeLog::clear);
+  }
+
+  // Appends a change to the change log, or rewrites the file when there is none
+  private void save(Change change) {
+    if (changeLog == null) {
+      updateFile();
+      return;
+    }
+    try {
+      change.writeTo(changeLog);
+    } catch (IOException e) {
+      System.out.println("An error occurred:" + e);
+    }
+  }
+
+  private interface Change {
+    void writeTo(ChangeLog log) throws IOException;
   }
 
-  public List<String> getLinesList() {
+  public synchronized List<String> getLinesList() {
     return lines;
   }
 
-  public void setLinesList(List<String> lines) {
+  public synchronized void setLinesList(List<String> lines) {
     CsvFileManager.lines = lines;
+    table = null;
+    reindex();
   }
 }
\ No newline at end of file
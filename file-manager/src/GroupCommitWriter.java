@@ -0,0 +1,121 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Collects rows from any number of threads for one writer thread, which writes what has queued
+// up as one batch with one flush: up to maxBatch rows, waiting at most window for more once the
+// first one arrived. The future of a row completes when its batch was written, or with the error
+// that failed the batch.
+public class GroupCommitWriter implements Closeable {
+
+  // Writes a batch of rows and makes them durable
+  public interface Sink {
+    void write(List<String> rows) throws IOException;
+  }
+
+  private record Pending(String row, CompletableFuture<Void> written) {
+  }
+
+  // tells the writer thread to stop once the rows before it are written
+  private static final Pending STOP = new Pending(null, null);
+
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Sink sink;
+  private final int maxBatch;
+  private final long windowNanos;
+  private final Thread writer;
+  private boolean closed;
+
+  public GroupCommitWriter(String name, Sink sink, int maxBatch, long windowMillis) {
+    this.sink = sink;
+    this.maxBatch = maxBatch;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.writer = new Thread(this::run, name);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public synchronized CompletableFuture<Void> submit(String row) {
+    CompletableFuture<Void> written = new CompletableFuture<>();
+    if (closed) {
+      written.completeExceptionally(new IOException("Writer is closed"));
+    } else {
+      queue.add(new Pending(row, written));
+    }
+    return written;
+  }
+
+  // Writes the rows submitted so far and stops the writer thread
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      queue.add(STOP);
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing the last rows", e);
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>();
+    boolean stop = false;
+    try {
+      while (!stop) {
+        Pending first = queue.take();
+        if (first == STOP) {
+          break;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch) {
+          Pending next = queue.poll();
+          if (next == null) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+              break;
+            }
+          }
+          if (next == STOP) {
+            stop = true;
+            break;
+          }
+          batch.add(next);
+        }
+        commit(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void commit(List<Pending> batch) {
+    List<String> rows = new ArrayList<>(batch.size());
+    for (Pending pending : batch) {
+      rows.add(pending.row());
+    }
+    try {
+      sink.write(rows);
+    } catch (IOException | RuntimeException e) {
+      for (Pending pending : batch) {
+        pending.written().completeExceptionally(e);
+      }
+      return;
+    }
+    for (Pending pending : batch) {
+      pending.written().complete(null);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Loads the rows of a CSV file by memory-mapping it and parsing newline-aligned chunks
+// in parallel on a ForkJoin pool. A newline inside a quoted field does not end a row,
+// also when the quoted field crosses a chunk boundary. Blank rows are skipped.
+public class ParallelCsvLoader {
+
+  // below this a chunk is not worth a task of its own
+  static final long MIN_CHUNK_SIZE = 1 << 20;
+
+  private final ForkJoinPool pool;
+  private final Charset charset;
+
+  public ParallelCsvLoader() {
+    this(ForkJoinPool.commonPool(), Charset.defaultCharset());
+  }
+
+  public ParallelCsvLoader(ForkJoinPool pool, Charset charset) {
+    this.pool = pool;
+    this.charset = charset;
+  }
+
+  public List<String> load(String fileName) throws IOException {
+    Path path = Paths.get(fileName);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size == 0) {
+        return new ArrayList<>();
+      }
+      int chunks = (int) Math.max(1, Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK_SIZE));
+      if (chunks == 1) {
+        return parse(channel, 0, size);
+      }
+      long[] bounds = new long[chunks + 1];
+      for (int i = 0; i <= chunks; i++) {
+        bounds[i] = size * i / chunks;
+      }
+
+      // 1st pass: quote parity of every chunk and the candidate row starts in it
+      List<Callable<Scan>> scans = new ArrayList<>();
+      for (int i = 0; i < chunks; i++) {
+        long from = bounds[i];
+        long to = bounds[i + 1];
+        scans.add(() -> scan(channel, from, to));
+      }
+      List<Scan> results = getAll(pool.invokeAll(scans));
+
+      // whether the start of each chunk is inside quotes follows from the parity of everything before it
+      long[] starts = new long[chunks + 1];
+      boolean quoted = false;
+      for (int i = 0; i < chunks; i++) {
+        Scan scan = results.get(i);
+        starts[i] = i == 0 ? 0 : scan.rowStart(quoted);
+        quoted ^= scan.oddQuotes;
+      }
+      starts[chunks] = size;
+      // a chunk without a row start belongs to the row the chunk before started
+      for (int i = chunks - 1; i > 0; i--) {
+        if (starts[i] < 0) {
+          starts[i] = starts[i + 1];
+        }
+      }
+
+      // 2nd pass: parse the rows of each chunk
+      List<Callable<List<String>>> parses = new ArrayList<>();
+      for (int i = 0; i < chunks; i++) {
+        long from = starts[i];
+        long to = starts[i + 1];
+        if (from < to) {
+          parses.add(() -> parse(channel, from, to));
+        }
+      }
+      List<String> rows = new ArrayList<>();
+      for (List<String> chunkRows : getAll(pool.invokeAll(parses))) {
+        rows.addAll(chunkRows);
+      }
+      return rows;
+    }
+  }
+
+  private static Scan scan(FileChannel channel, long from, long to) throws IOException {
+    Scan scan = new Scan(from);
+    // a chunk right after a newline starts with a row when that newline is not quoted
+    scan.afterNewline = from > 0 && map(channel, from - 1, 1).get(0) == '\n';
+    MappedByteBuffer buffer = map(channel, from, to - from);
+    boolean odd = false;
+    for (int i = 0; i < buffer.limit(); i++) {
+      byte b = buffer.get(i);
+      if (b == '"') {
+        odd = !odd;
+      } else if (b == '\n') {
+        int parity = odd ? 1 : 0;
+        if (scan.newlines[parity] < 0) {
+          scan.newlines[parity] = from + i;
+        }
+      }
+    }
+    scan.oddQuotes = odd;
+    return scan;
+  }
+
+  private List<String> parse(FileChannel channel, long from, long to) throws IOException {
+    MappedByteBuffer buffer = map(channel, from, to - from);
+    List<String> rows = new ArrayList<>();
+    int rowStart = 0;
+    boolean quoted = false;
+    int limit = buffer.limit();
+    for (int i = 0; i < limit; i++) {
+      byte b = buffer.get(i);
+      if (b == '"') {
+        quoted = !quoted;
+      } else if (b == '\n' && !quoted) {
+        addRow(rows, buffer, rowStart, i);
+        rowStart = i + 1;
+      }
+    }
+    if (rowStart < limit) {
+      addRow(rows, buffer, rowStart, limit);
+    }
+    return rows;
+  }
+
+  private void addRow(List<String> rows, MappedByteBuffer buffer, int start, int end) {
+    if (end > start && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    String row = new String(bytes, charset);
+    if (!row.trim().isEmpty()) {
+      rows.add(row);
+    }
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long from, long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Chunk of " + length + " bytes is too large to map");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+  }
+
+  private static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+    List<T> results = new ArrayList<>(futures.size());
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Loading failed", e.getCause());
+    }
+    return results;
+  }
+
+  // What the 1st pass learns about one chunk
+  private static class Scan {
+    final long from;
+    boolean afterNewline;
+    boolean oddQuotes;
+    // position of the first newline after an even / odd number of quotes in the chunk, -1 if none
+    final long[] newlines = {-1, -1};
+
+    Scan(long from) {
+      this.from = from;
+    }
+
+    // where the first row of the chunk starts given whether the chunk starts inside quotes, -1 if none does
+    long rowStart(boolean quoted) {
+      if (afterNewline && !quoted) {
+        return from;
+      }
+      long newline = newlines[quoted ? 1 : 0];
+      return newline < 0 ? -1 : newline + 1;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Byte offsets of the line starts of a file, so reading line n is one positional read
+// instead of a scan from the top. Built once, extended on append, rebuilt after a rewrite.
+public class RowIndex implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path path;
+  private final Charset charset;
+  private long[] starts = new long[1024];
+  private int count;
+  private long end = -1;
+  private FileChannel channel;
+
+  public RowIndex(String fileName, Charset charset) {
+    this.path = Paths.get(fileName);
+    this.charset = charset;
+  }
+
+  public boolean isBuilt() {
+    return end >= 0;
+  }
+
+  // Scans the file once and records where every line starts
+  public void build() throws IOException {
+    count = 0;
+    long position = 0;
+    boolean lineStart = true;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        for (int i = 0; i < n; i++) {
+          if (lineStart) {
+            add(position + i);
+            lineStart = false;
+          }
+          if (buffer[i] == '\n') {
+            lineStart = true;
+          }
+        }
+        position += n;
+      }
+    }
+    end = position;
+  }
+
+  // Records a line of the given length in bytes, terminator included, written at the end of the file
+  public void append(long length) {
+    if (isBuilt()) {
+      add(end);
+      end += length;
+    }
+  }
+
+  // The file was rewritten, the next read scans it again
+  public void invalidate() {
+    end = -1;
+  }
+
+  // Whether the file no longer has the length the index covers, e.g. it was written by someone else
+  public boolean isStale() throws IOException {
+    return !isBuilt() || Files.size(path) != end;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  // Line number lineNumber (0 based, blank lines included) without its terminator, null past the end
+  public String readLine(int lineNumber) throws IOException {
+    if (!isBuilt()) {
+      build();
+    }
+    if (lineNumber < 0 || lineNumber >= count) {
+      return null;
+    }
+    long start = starts[lineNumber];
+    long stop = lineNumber + 1 < count ? starts[lineNumber + 1] : end;
+    ByteBuffer buffer = ByteBuffer.allocate((int) (stop - start));
+    FileChannel fileChannel = channel();
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer, start + buffer.position()) < 0) {
+        break;
+      }
+    }
+    int length = buffer.position();
+    byte[] bytes = buffer.array();
+    while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+      length--;
+    }
+    return new String(bytes, 0, length, charset);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private FileChannel channel() throws IOException {
+    if (channel == null || !channel.isOpen()) {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+    return channel;
+  }
+
+  private void add(long start) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+    }
+    starts[count++] = start;
+  }
+}
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// The line numbers of a table by the value they have in one column, so finding the lines with
+// a value is a map lookup instead of a scan. A sorted index also finds the lines with a value in
+// a range, whole numbers ordered as numbers and before any other value. Values are taken like
+// CsvFileManager reads them: the line split at ',' and trimmed, empty when the line is too short.
+// Line numbers are positions in the lines, so removing lines shifts the ones after them.
+public class SecondaryIndex {
+
+  // whole numbers by value before any other text, which is ordered as text
+  static final Comparator<String> VALUE_ORDER = (a, b) -> {
+    Long x = number(a);
+    Long y = number(b);
+    if (x != null && y != null) {
+      // "07" and "7" are still different values
+      int order = Long.compare(x, y);
+      return order != 0 ? order : a.compareTo(b);
+    }
+    if (x != null || y != null) {
+      return x != null ? -1 : 1;
+    }
+    return a.compareTo(b);
+  };
+
+  private final int column;
+  private final boolean sorted;
+  private final Map<String, Rows> rows;
+
+  public SecondaryIndex(int column, boolean sorted) {
+    this.column = column;
+    this.sorted = sorted;
+    this.rows = sorted ? new TreeMap<>(VALUE_ORDER) : new HashMap<>();
+  }
+
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  // Indexes the lines anew, skipping the header at 0
+  public void build(List<String> lines) {
+    rows.clear();
+    for (int i = 1; i < lines.size(); i++) {
+      add(i, lines.get(i));
+    }
+  }
+
+  public void add(int lineNumber, String line) {
+    rows.computeIfAbsent(value(line), value -> new Rows()).add(lineNumber);
+  }
+
+  public void remove(int lineNumber, String line) {
+    String value = value(line);
+    Rows lineNumbers = rows.get(value);
+    if (lineNumbers != null && lineNumbers.remove(lineNumber) && lineNumbers.size == 0) {
+      rows.remove(value);
+    }
+  }
+
+  // The lines fromIndex to toIndex inclusive, which are about to be removed, go and the lines after them move up
+  public void delete(int fromIndex, int toIndex, List<String> lines) {
+    for (int i = fromIndex; i <= toIndex; i++) {
+      remove(i, lines.get(i));
+    }
+    int removed = toIndex - fromIndex + 1;
+    for (Rows lineNumbers : rows.values()) {
+      lineNumbers.shift(toIndex, -removed);
+    }
+  }
+
+  // Line numbers with the value in ascending order
+  public int[] get(String value) {
+    Rows lineNumbers = rows.get(value);
+    return lineNumbers == null ? new int[0] : lineNumbers.toArray();
+  }
+
+  // Line numbers with a value from from to to inclusive in ascending order, only for a sorted index
+  public int[] range(String from, String to) {
+    if (!sorted) {
+      throw new IllegalStateException("Index on column " + column + " is not sorted");
+    }
+    if (VALUE_ORDER.compare(from, to) > 0) {
+      return new int[0];
+    }
+    NavigableMap<String, Rows> values = ((TreeMap<String, Rows>) rows).subMap(from, true, to, true);
+    int count = 0;
+    for (Rows lineNumbers : values.values()) {
+      count += lineNumbers.size;
+    }
+    int[] result = new int[count];
+    int position = 0;
+    for (Rows lineNumbers : values.values()) {
+      System.arraycopy(lineNumbers.lines, 0, result, position, lineNumbers.size);
+      position += lineNumbers.size;
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private String value(String line) {
+    String[] values = line.split(",");
+    return column < values.length ? values[column].trim() : "";
+  }
+
+  private static Long number(String value) {
+    if (value.isEmpty() || value.length() > 18) {
+      return null;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // Line numbers in ascending order
+  private static class Rows {
+
+    int[] lines = new int[2];
+    int size;
+
+    void add(int lineNumber) {
+      int position = Arrays.binarySearch(lines, 0, size, lineNumber);
+      if (position >= 0) {
+        return;
+      }
+      position = -position - 1;
+      if (size == lines.length) {
+        lines = Arrays.copyOf(lines, size * 2);
+      }
+      System.arraycopy(lines, position, lines, position + 1, size - position);
+      lines[position] = lineNumber;
+      size++;
+    }
+
+    boolean remove(int lineNumber) {
+      int position = Arrays.binarySearch(lines, 0, size, lineNumber);
+      if (position < 0) {
+        return false;
+      }
+      System.arraycopy(lines, position + 1, lines, position, size - position - 1);
+      size--;
+      return true;
+    }
+
+    // Moves the line numbers after lineNumber by the given amount
+    void shift(int lineNumber, int by) {
+      int position = Arrays.binarySearch(lines, 0, size, lineNumber + 1);
+      for (int i = position < 0 ? -position - 1 : position; i < size; i++) {
+        lines[i] += by;
+      }
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(lines, size);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package io.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.java.metrics.ServerMetrics;
+import io.java.server.HttpRequest;
+import io.java.server.Status;
+
+/**
+ * AdmissionControl caps concurrent connections and in-flight requests so an
+ * overload spike is answered with a few fast 503s instead of slowing every
+ * request down. The 503 response is encoded once into a read-only direct
+ * buffer and written straight from the acceptor without touching a worker.
+ * A limit of 0 means unlimited.
+ */
+public class AdmissionControl {
+
+	public static final AdmissionControl UNLIMITED = new AdmissionControl(0, 0, 1);
+
+	private final int maxConnections;
+
+	private final int maxInFlight;
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final ByteBuffer serviceUnavailable;
+
+	public AdmissionControl(int maxConnections, int maxInFlight, int retryAfterSeconds) {
+		this.maxConnections = maxConnections;
+		this.maxInFlight = maxInFlight;
+		String body = Status._503.toString();
+		byte[] response = (new String(Status._503.getStatusLine(HttpRequest.HTTP_1_0), StandardCharsets.US_ASCII)
+				+ "Connection: close\r\n"
+				+ "Retry-After: " + retryAfterSeconds + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Length: " + body.length() + "\r\n\r\n"
+				+ body).getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(response.length);
+		buffer.put(response).flip();
+		this.serviceUnavailable = buffer.asReadOnlyBuffer();
+	}
+
+	public static AdmissionControl of(ServerConfig config) {
+		if (config.getMaxConnections() == 0 && config.getMaxInFlight() == 0) {
+			return UNLIMITED;
+		}
+		return new AdmissionControl(config.getMaxConnections(), config.getMaxInFlight(), config.getRetryAfter());
+	}
+
+	public boolean tryAcquireConnection() {
+		if (tryAcquire(connections, maxConnections)) {
+			return true;
+		}
+		ServerMetrics.INSTANCE.connectionRejected();
+		return false;
+	}
+
+	public void releaseConnection() {
+		connections.decrementAndGet();
+	}
+
+	public boolean tryAcquireRequest() {
+		if (tryAcquire(inFlight, maxInFlight)) {
+			return true;
+		}
+		ServerMetrics.INSTANCE.requestRejected();
+		return false;
+	}
+
+	public void releaseRequest() {
+		inFlight.decrementAndGet();
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	private static boolean tryAcquire(AtomicInteger counter, int max) {
+		if (max == 0) {
+			counter.incrementAndGet();
+			return true;
+		}
+		int current;
+		do {
+			current = counter.get();
+			if (current >= max) {
+				return false;
+			}
+		} while (!counter.compareAndSet(current, current + 1));
+		return true;
+	}
+
+	/**
+	 * Writes the precomputed 503 without blocking and closes the channel. A
+	 * client whose socket buffer can not even take these few bytes just sees
+	 * the connection close.
+	 */
+	public void reject(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			channel.write(serviceUnavailable.duplicate());
+		} catch (IOException e) {
+			// the close below is all the client gets
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// already gone
+			}
+		}
+	}
+}
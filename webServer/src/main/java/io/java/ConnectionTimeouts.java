@@ -0,0 +1,115 @@
+package io.java;
+
+import java.util.concurrent.TimeUnit;
+
+import io.java.metrics.ServerMetrics;
+import io.java.server.TimingWheel;
+
+/**
+ * ConnectionTimeouts bounds how long a client may take in each phase of a
+ * connection: waiting for the next request (idle), sending the request head,
+ * sending the body and receiving the response. Every connection carries one
+ * {@link Deadline} that is re-armed on each phase change; all deadlines share
+ * a single {@link TimingWheel}, so a slowloris client costs a few bytes of
+ * bookkeeping until its deadline closes the connection. A timeout of 0
+ * disables the phase.
+ */
+public class ConnectionTimeouts {
+
+	public static final ConnectionTimeouts DEFAULT = new ConnectionTimeouts(new ServerConfig());
+
+	public enum Phase {
+		IDLE, HEADER, BODY, WRITE
+	}
+
+	private final TimingWheel wheel = new TimingWheel("connection-timeouts");
+
+	private final long[] millis = new long[Phase.values().length];
+
+	private final boolean keepAlive;
+
+	public ConnectionTimeouts(ServerConfig config) {
+		millis[Phase.IDLE.ordinal()] = config.getIdleTimeout();
+		millis[Phase.HEADER.ordinal()] = config.getHeaderTimeout();
+		millis[Phase.BODY.ordinal()] = config.getBodyTimeout();
+		millis[Phase.WRITE.ordinal()] = config.getWriteTimeout();
+		keepAlive = config.isKeepAlive();
+	}
+
+	/**
+	 * Creates the deadline of a new connection; onExpire runs on the wheel thread and must close the connection.
+	 */
+	public Deadline newDeadline(Runnable onExpire) {
+		return new Deadline(onExpire);
+	}
+
+	/**
+	 * Whether connections are kept open for further requests.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public void stop() {
+		wheel.stop();
+	}
+
+	/**
+	 * The single pending timeout of a connection. Arming and cancelling
+	 * happen on the thread currently serving the connection, expiry on the
+	 * wheel thread.
+	 */
+	public class Deadline implements Runnable {
+
+		private final Runnable onExpire;
+
+		private TimingWheel.Timeout timeout;
+
+		private volatile Phase phase;
+
+		private volatile boolean expired;
+
+		Deadline(Runnable onExpire) {
+			this.onExpire = onExpire;
+		}
+
+		/**
+		 * Replaces the pending timeout with the one of the given phase.
+		 */
+		public void arm(Phase phase) {
+			cancel();
+			this.phase = phase;
+			long delay = millis[phase.ordinal()];
+			if (delay > 0) {
+				timeout = wheel.schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Returns false when the deadline already expired and the connection is being closed.
+		 */
+		public boolean cancel() {
+			if (timeout != null) {
+				TimingWheel.Timeout current = timeout;
+				timeout = null;
+				return current.cancel();
+			}
+			return !expired;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		public boolean isExpired() {
+			return expired;
+		}
+
+		@Override
+		public void run() {
+			expired = true;
+			ServerMetrics.INSTANCE.timedOut(phase);
+			onExpire.run();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package io.java;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import io.java.ConnectionTimeouts.Deadline;
+import io.java.ConnectionTimeouts.Phase;
+import io.java.server.BadRequestException;
+import io.java.server.RequestParser;
+
+/**
+ * NioReactor accepts connections and reads request heads on a single selector
+ * thread, so slow or idle clients never hold a worker. Once a head is parsed
+ * the channel is switched back to blocking mode and handed to a worker, which
+ * builds and writes the response. Kept-alive connections come back to the
+ * reactor to wait for their next request, see {@link #resume}.
+ */
+public class NioReactor implements Runnable {
+
+	private static Logger log = Logger.getLogger(NioReactor.class);
+
+	/**
+	 * How long accepting pauses after it failed, e.g. out of file descriptors, so the selector does not spin on it.
+	 */
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final ExecutorService workers;
+
+	private final WebServer server;
+
+	private final AdmissionControl admission;
+
+	private final ConnectionTimeouts timeouts;
+
+	private final Selector selector;
+
+	private final SelectionKey acceptKey;
+
+	/**
+	 * System.nanoTime() from which on accepting resumes after a failure, 0 while it is not paused.
+	 */
+	private long acceptPausedUntil;
+
+	/**
+	 * Work other threads hand to the selector thread: resumed connections and expired deadlines.
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean running = true;
+
+	public NioReactor(ServerSocketChannel serverChannel, ExecutorService workers, WebServer server)
+			throws IOException {
+		this.serverChannel = serverChannel;
+		this.workers = workers;
+		this.server = server;
+		this.admission = server.getAdmission();
+		this.timeouts = server.getTimeouts();
+		this.selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		this.acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	public void run() {
+		List<SelectionKey> ready = new ArrayList<SelectionKey>();
+		try {
+			while (running) {
+				try {
+					if (acceptPausedUntil == 0) {
+						selector.select();
+					} else {
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(acceptPausedUntil - System.nanoTime())));
+						if (System.nanoTime() - acceptPausedUntil >= 0) {
+							acceptPausedUntil = 0;
+							acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+						}
+					}
+				} catch (IOException e) {
+					log.error("Select failed", e);
+					continue;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable() && read(key)) {
+						key.cancel();
+						ready.add(key);
+					}
+				}
+				if (!ready.isEmpty()) {
+					// flush the cancelled keys so the channels may go back to blocking mode
+					try {
+						selector.selectNow();
+					} catch (IOException e) {
+						log.error("Select failed", e);
+					}
+					for (SelectionKey key : ready) {
+						handOff(key);
+					}
+					ready.clear();
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			if (running) {
+				log.error("Reactor selector closed", e);
+			}
+		}
+	}
+
+	/**
+	 * Accepts the pending connections; one that fails is closed and gives back
+	 * its slot and parser, the others are still served.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				log.error("Accept failed, pausing for " + ACCEPT_BACKOFF_MILLIS + " ms: " + e);
+				acceptKey.interestOps(0);
+				acceptPausedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_BACKOFF_MILLIS);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			long acceptedAt = System.nanoTime();
+			if (!admission.tryAcquireConnection()) {
+				admission.reject(channel);
+				continue;
+			}
+			RequestParser parser = RequestParser.acquire();
+			try {
+				register(channel, parser, acceptedAt);
+			} catch (IOException e) {
+				log.debug("Registering a new connection failed: " + e);
+				parser.release();
+				admission.releaseConnection();
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	private SelectionKey register(SocketChannel channel, RequestParser parser, long acceptedAt) throws IOException {
+		Pending pending = new Pending(parser, acceptedAt);
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ, pending);
+		pending.deadline = timeouts.newDeadline(() -> expire(key));
+		pending.deadline.arm(parser.buffer().position() == 0 ? Phase.IDLE : Phase.HEADER);
+		return key;
+	}
+
+	/**
+	 * Takes back a kept-alive connection after its response was written; the
+	 * parser may already hold the start of the next, pipelined request.
+	 */
+	public void resume(SocketChannel channel, RequestParser parser) {
+		tasks.add(() -> {
+			List<SelectionKey> ready = new ArrayList<SelectionKey>();
+			try {
+				// no accept time, the connection is not new
+				SelectionKey key = register(channel, parser, 0);
+				if (parser.buffer().position() > 0 && parse(key)) {
+					ready(key, ready);
+					if (!ready.isEmpty()) {
+						selector.selectNow();
+						handOff(key);
+					}
+				}
+			} catch (IOException e) {
+				parser.release();
+				admission.releaseConnection();
+				closeQuietly(channel);
+			}
+		});
+		selector.wakeup();
+	}
+
+	private void expire(SelectionKey key) {
+		tasks.add(() -> {
+			if (key.isValid()) {
+				close(key);
+			}
+		});
+		selector.wakeup();
+	}
+
+	private void ready(SelectionKey key, List<SelectionKey> ready) {
+		key.cancel();
+		if (((Pending) key.attachment()).deadline.cancel()) {
+			ready.add(key);
+		} else {
+			// the head arrived as the deadline fired, the expiry task finds the key cancelled
+			release(key);
+		}
+	}
+
+	/**
+	 * Returns true when the request head is complete or can not be parsed.
+	 */
+	private boolean read(SelectionKey key) {
+		Pending pending = (Pending) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		try {
+			boolean empty = pending.parser.buffer().position() == 0;
+			int count = channel.read(pending.parser.buffer());
+			if (count < 0) {
+				close(key);
+				return false;
+			}
+			if (empty && count > 0) {
+				pending.deadline.arm(Phase.HEADER);
+			}
+		} catch (IOException e) {
+			close(key);
+			return false;
+		}
+		return parse(key);
+	}
+
+	private boolean parse(SelectionKey key) {
+		Pending pending = (Pending) key.attachment();
+		try {
+			return pending.parser.parse();
+		} catch (BadRequestException e) {
+			pending.error = e;
+			return true;
+		}
+	}
+
+	private void handOff(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Pending pending = (Pending) key.attachment();
+		RequestHandler handler = new RequestHandler(this, channel, pending.acceptedAt, pending.parser, pending.error);
+		try {
+			channel.configureBlocking(true);
+			workers.execute(handler);
+		} catch (Exception e) {
+			log.error("Hand-off failed", e);
+			release(key);
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		((Pending) key.attachment()).deadline.cancel();
+		release(key);
+	}
+
+	private void release(SelectionKey key) {
+		((Pending) key.attachment()).parser.release();
+		admission.releaseConnection();
+		closeQuietly(key.channel());
+	}
+
+	public WebServer getServer() {
+		return server;
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.error("Closing the selector failed", e);
+		}
+	}
+
+	/**
+	 * Selection key attachment of a connection whose request head is still being read.
+	 */
+	private static class Pending {
+
+		final RequestParser parser;
+
+		final long acceptedAt;
+
+		Deadline deadline;
+
+		BadRequestException error;
+
+		Pending(RequestParser parser, long acceptedAt) {
+			this.parser = parser;
+			this.acceptedAt = acceptedAt;
+		}
+	}
+}
@@ -1,30 +1,295 @@
 package io.java;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import org.apache.log4j.Logger;
 
+import io.java.ConnectionTimeouts.Deadline;
+import io.java.ConnectionTimeouts.Phase;
+import io.java.metrics.ServerMetrics;
+import io.java.server.AccessLog;
+import io.java.server.BadRequestException;
+import io.java.server.Http2Connection;
 import io.java.server.HttpRequest;
 import io.java.server.HttpResponse;
+import io.java.server.RequestParser;
+import io.java.server.RouteMatch;
+import io.java.server.Router;
+import io.java.server.Status;
 
+/**
+ * Serves the requests of one connection until the client or the response
+ * closes it. Every phase runs under the connection's {@link Deadline}, which
+ * closes the socket when a client is too slow, so a blocked read or write
+ * fails instead of holding the thread forever.
+ */
 public class RequestHandler implements Runnable {
 
 	private static Logger log = Logger.getLogger(RequestHandler.class);
 
+	/**
+	 * Most unread request body bytes discarded to keep a connection alive; larger leftovers close it.
+	 */
+	static final long MAX_DRAIN = 1024 * 1024;
+
 	private Socket socket;
 
+	private AdmissionControl admission;
+
+	private ConnectionTimeouts timeouts;
+
+	/**
+	 * System.nanoTime() when the connection was accepted, 0 for a kept-alive connection resumed by the reactor.
+	 */
+	private long acceptedAt;
+
+	/**
+	 * System.nanoTime() when this handler was queued for a serving thread.
+	 */
+	private long queuedAt;
+
+	private RequestParser parser;
+
+	private BadRequestException error;
+
+	private NioReactor reactor;
+
+	private Deadline deadline;
+
+	private Router router;
+
+	/**
+	 * Whether the connection may switch to HTTP/2, see {@link ServerConfig#isH2c()}.
+	 */
+	private boolean h2c;
+
+	private final RouteMatch match = new RouteMatch();
+
+	/**
+	 * Handler without limits, timeouts or routes, for connections accepted outside a {@link WebServer}.
+	 */
 	public RequestHandler(Socket socket) {
 		this.socket = socket;
+		this.admission = AdmissionControl.UNLIMITED;
+		this.timeouts = ConnectionTimeouts.DEFAULT;
+		this.router = Router.NONE;
+		this.acceptedAt = System.nanoTime();
+		this.queuedAt = acceptedAt;
+	}
+
+	/**
+	 * Handler for a connection that already holds a connection slot of the server's admission control.
+	 */
+	public RequestHandler(Socket socket, WebServer server, long acceptedAt) {
+		this.socket = socket;
+		this.admission = server.getAdmission();
+		this.timeouts = server.getTimeouts();
+		this.router = server.getRouter();
+		this.h2c = server.getConfig().isH2c();
+		this.acceptedAt = acceptedAt;
+		this.queuedAt = acceptedAt;
+	}
+
+	/**
+	 * Handler for a connection whose request head was already read by the
+	 * {@link NioReactor}: the parser holds a complete head unless error is
+	 * set. Kept-alive connections go back to the reactor between requests.
+	 */
+	public RequestHandler(NioReactor reactor, SocketChannel channel, long acceptedAt, RequestParser parser,
+			BadRequestException error) {
+		this(channel.socket(), reactor.getServer(), acceptedAt);
+		this.reactor = reactor;
+		this.parser = parser;
+		this.error = error;
+		this.queuedAt = System.nanoTime();
 	}
 
 	public void run() {
+		ServerMetrics.INSTANCE.handlerStarted();
+		ServerMetrics.INSTANCE.queued(System.nanoTime() - queuedAt);
+		if (parser == null) {
+			parser = RequestParser.acquire();
+		}
+		deadline = timeouts.newDeadline(this::closeQuietly);
+		boolean handedBack = false;
 		try {
-			HttpRequest req = new HttpRequest(socket.getInputStream());
-			HttpResponse res = new HttpResponse(req);
-			res.write(socket.getOutputStream());
-			socket.close();
+			// headers and file bodies are separate writes, Nagle would delay the second one
+			socket.setTcpNoDelay(true);
+			boolean first = true;
+			while (serveRequest(first)) {
+				parser.next();
+				if (reactor != null) {
+					reactor.resume(socket.getChannel(), parser);
+					handedBack = true;
+					return;
+				}
+				first = false;
+			}
 		} catch (Exception e) {
-			log.error("Runtime Error", e);
+			if (deadline.isExpired()) {
+				log.debug("Closed connection after the " + deadline.getPhase() + " timeout");
+			} else {
+				log.error("Runtime Error", e);
+				ServerMetrics.INSTANCE.error();
+			}
+		} finally {
+			if (!handedBack) {
+				deadline.cancel();
+				closeQuietly();
+				parser.release();
+				admission.releaseConnection();
+			}
+			ServerMetrics.INSTANCE.handlerFinished();
+		}
+	}
+
+	/**
+	 * Reads and answers one request, returns whether the connection stays open for another one.
+	 */
+	private boolean serveRequest(boolean first) throws IOException {
+		ServerMetrics metrics = ServerMetrics.INSTANCE;
+		boolean accepted = first && acceptedAt != 0;
+		long startedAt = accepted ? acceptedAt : 0;
+		HttpRequest req = null;
+		HttpResponse res = null;
+		boolean admitted = false;
+		try {
+			try {
+				if (error != null) {
+					throw error;
+				}
+				req = readRequest();
+				if (req == null) {
+					return false;
+				}
+				if (!accepted) {
+					startedAt = parser.startedAt();
+				}
+				metrics.parsed(parser.parsedAt() - parser.startedAt());
+				if (parser.isHttp2Preface() || (h2c && Http2Connection.isUpgrade(req))) {
+					if (!h2c) {
+						throw new BadRequestException(Status._505, "Unsupported HTTP version");
+					}
+					serveHttp2(parser.isHttp2Preface() ? null : req);
+					return false;
+				}
+				admitted = admission.tryAcquireRequest();
+				if (!admitted) {
+					admission.reject(socket.getChannel());
+					return false;
+				}
+				long handleStart = System.nanoTime();
+				res = router.route(req, match);
+				if (res == null) {
+					res = new HttpResponse(req);
+				}
+				metrics.handled(System.nanoTime() - handleStart);
+				res.setKeepAlive(timeouts.isKeepAlive() && req.isKeepAlive());
+			} catch (BadRequestException e) {
+				error = null;
+				res = new HttpResponse(e.getStatus());
+				if (startedAt == 0) {
+					startedAt = parser.startedAt() != 0 ? parser.startedAt() : System.nanoTime();
+				}
+			}
+			long writeStart = System.nanoTime();
+			if (accepted) {
+				metrics.firstByte(writeStart - startedAt);
+			}
+			deadline.arm(Phase.WRITE);
+			if (socket.getChannel() != null) {
+				res.write(socket.getChannel());
+			} else {
+				res.write(socket.getOutputStream());
+			}
+			if (!deadline.cancel()) {
+				throw new EOFException("Write timed out");
+			}
+			metrics.written(System.nanoTime() - writeStart);
+			metrics.requestCompleted(req == null ? null : req.getMethod(), res.getStatus(), res.getContentLength());
+			AccessLog.INSTANCE.log(socket.getInetAddress(), req == null ? null : req.getMethod(),
+					req == null ? null : req.getUri(), req == null ? null : req.getVersion(), res.getCode(),
+					res.getContentLength(), startedAt);
+			return res.isKeepAlive() && drainBody(req);
+		} finally {
+			if (res != null) {
+				res.close();
+			}
+			if (admitted) {
+				admission.releaseRequest();
+			}
+		}
+	}
+
+	/**
+	 * Discards what the handler left of the request body so the next request
+	 * can be parsed; false when the connection has to be closed instead.
+	 * Done after the response, since a streaming response may still read the body.
+	 */
+	private boolean drainBody(HttpRequest req) throws IOException {
+		if (req == null || req.getBody().isDone()) {
+			return true;
+		}
+		deadline.arm(Phase.BODY);
+		try {
+			return req.getBody().drain(MAX_DRAIN) && deadline.cancel();
+		} catch (BadRequestException e) {
+			deadline.cancel();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads until the parser holds a complete head; returns null when the
+	 * client closed the connection before sending another request.
+	 */
+	private HttpRequest readRequest() throws IOException {
+		ByteBuffer buf = parser.buffer();
+		deadline.arm(buf.position() == 0 ? Phase.IDLE : Phase.HEADER);
+		InputStream in = socket.getInputStream();
+		// read straight into the direct buffer when there is a channel
+		SocketChannel channel = socket.getChannel();
+		while (!parser.parse()) {
+			boolean empty = buf.position() == 0;
+			int count = channel != null ? parser.read(channel) : parser.read(in);
+			if (count < 0) {
+				if (buf.position() == 0) {
+					return null;
+				}
+				throw new EOFException("Connection closed before the end of the request head");
+			}
+			if (empty && count > 0) {
+				deadline.arm(Phase.HEADER);
+			}
+		}
+		if (!deadline.cancel()) {
+			throw new EOFException("Request head timed out");
+		}
+		HttpRequest req = new HttpRequest(parser, in, socket.getOutputStream());
+		if (!req.getBody().isDone()) {
+			deadline.arm(Phase.BODY);
+		}
+		return req;
+	}
+
+	/**
+	 * Hands the connection to HTTP/2 until it closes; upgrade is the request
+	 * that asked for h2c, null for a client with prior knowledge.
+	 */
+	private void serveHttp2(HttpRequest upgrade) throws IOException {
+		new Http2Connection(socket, parser.takeBuffered(), router, admission, deadline).serve(upgrade);
+	}
+
+	private void closeQuietly() {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// nothing left to do with a broken socket
 		}
 	}
 }
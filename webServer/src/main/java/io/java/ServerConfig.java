@@ -0,0 +1,407 @@
+package io.java;
+
+import java.util.Locale;
+
+/**
+ * Startup options of the {@link WebServer}. The port is the first program
+ * argument and the serving model the optional second one; the remaining
+ * options are read from "server.*" system properties.
+ */
+public class ServerConfig {
+
+    static final int DEFAULT_PORT = 8080;
+
+    static final int N_THREADS = 10;
+
+    private int port = DEFAULT_PORT;
+
+    private ServingModel model = ServingModel.EVENT_LOOP;
+
+    private int threads = Integer.getInteger("server.threads", N_THREADS);
+
+    private int queueSize = Integer.getInteger("server.queueSize", 500);
+
+    private int acceptors = Integer.getInteger("server.acceptors", 1);
+
+    private int backlog = Integer.getInteger("server.backlog", 0);
+
+    private boolean reusePort = Boolean.getBoolean("server.reusePort");
+
+    private int workers = Integer.getInteger("server.workers", 0);
+
+    private int workerId = Integer.getInteger("server.workerId", -1);
+
+    private int controlPort = Integer.getInteger("server.control", 0);
+
+    private int statsInterval = Integer.getInteger("server.statsInterval", 10);
+
+    private int maxConnections = Integer.getInteger("server.maxConnections", 0);
+
+    private int maxInFlight = Integer.getInteger("server.maxInFlight", 0);
+
+    private int retryAfter = Integer.getInteger("server.retryAfter", 1);
+
+    private boolean keepAlive = !"false".equals(System.getProperty("server.keepAlive"));
+
+    private long idleTimeout = Long.getLong("server.idleTimeout", 5000);
+
+    private long headerTimeout = Long.getLong("server.headerTimeout", 10000);
+
+    private long bodyTimeout = Long.getLong("server.bodyTimeout", 30000);
+
+    private long writeTimeout = Long.getLong("server.writeTimeout", 60000);
+
+    private String metricsPath = System.getProperty("server.metricsPath", "/metrics");
+
+    private boolean h2c = Boolean.getBoolean("server.h2c");
+
+    private String proxy = System.getProperty("server.proxy", "");
+
+    private int proxyConnections = Integer.getInteger("server.proxyConnections", 64);
+
+    private long proxyQueueTimeout = Long.getLong("server.proxyQueueTimeout", 1000);
+
+    private int proxyTimeout = Integer.getInteger("server.proxyTimeout", 30000);
+
+    private long proxyIdleTimeout = Long.getLong("server.proxyIdleTimeout", 4000);
+
+    private boolean prewarm = Boolean.getBoolean("server.prewarm");
+
+    private long prewarmMaxFileSize = Long.getLong("server.prewarmMaxFileSize", 64 * 1024);
+
+    private long prewarmMaxBytes = Long.getLong("server.prewarmMaxBytes", 64L << 20);
+
+    public static ServerConfig fromArgs(String args[]) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(getValidPortParam(args));
+        String model = args.length > 1 ? args[1] : System.getProperty("server.model");
+        if (model != null) {
+            config.setModel(ServingModel.valueOf(model.toUpperCase(Locale.ROOT).replace('-', '_')));
+        }
+        return config;
+    }
+
+    static int getValidPortParam(String args[]) throws NumberFormatException {
+        if (args.length > 0) {
+            int port = Integer.parseInt(args[0]);
+            if (port > 0 && port < 65535) {
+                return port;
+            } else {
+                throw new NumberFormatException("Invalid port! Port value is a number between 0 and 65535");
+            }
+        }
+        return DEFAULT_PORT;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public ServingModel getModel() {
+        return model;
+    }
+
+    public void setModel(ServingModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Worker threads of the BOUNDED_POOL and NIO models.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Pending connections the BOUNDED_POOL model queues before it answers new ones with a 503
+     * and Retry-After and closes them.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Listening sockets, each with its own acceptor thread (or reactor for
+     * NIO). More than one binds them all to the port with SO_REUSEPORT so the
+     * kernel spreads new connections across them.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Accept queue length per listening socket, 0 for the JDK default.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Whether SO_REUSEPORT is set even with a single acceptor, e.g. to share the port with other processes.
+     */
+    public boolean isReusePort() {
+        return reusePort || acceptors > 1;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Worker JVMs started by the {@link Supervisor}, 0 to serve from this JVM.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Index of this worker JVM, -1 when not started by a {@link Supervisor}.
+     */
+    public int getWorkerId() {
+        return workerId;
+    }
+
+    public boolean isWorker() {
+        return workerId >= 0;
+    }
+
+    /**
+     * Loopback port of the supervisor's control channel.
+     */
+    public int getControlPort() {
+        return controlPort;
+    }
+
+    /**
+     * Seconds between the aggregated stats lines the supervisor prints.
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Open connections beyond which new ones get a 503 from the acceptor, 0 for no limit.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Requests handled at the same time beyond which further ones get a 503, 0 for no limit.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Seconds sent in the Retry-After header of rejections.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Whether connections stay open for further requests when the client allows it.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Milliseconds a connection may wait for the first byte of its next request.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Milliseconds from the first byte of a request until its head is complete.
+     */
+    public long getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    public void setHeaderTimeout(long headerTimeout) {
+        this.headerTimeout = headerTimeout;
+    }
+
+    /**
+     * Milliseconds a request body may take to arrive.
+     */
+    public long getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    public void setBodyTimeout(long bodyTimeout) {
+        this.bodyTimeout = bodyTimeout;
+    }
+
+    /**
+     * Milliseconds a response may take to be written to the client.
+     */
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Path of the Prometheus metrics endpoint, empty to disable it.
+     */
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * Whether clients may speak HTTP/2 over cleartext, with prior knowledge
+     * or by upgrading an HTTP/1.1 request; off by default.
+     */
+    public boolean isH2c() {
+        return h2c;
+    }
+
+    public void setH2c(boolean h2c) {
+        this.h2c = h2c;
+    }
+
+    /**
+     * Reverse proxy routes as comma separated "/prefix/=http://host:port/path"
+     * pairs, empty for none. Requests under a prefix are forwarded with the
+     * prefix replaced by the path of the upstream URL.
+     */
+    public String getProxy() {
+        return proxy;
+    }
+
+    public void setProxy(String proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Requests sent to one upstream at the same time, which also bounds its pooled connections.
+     */
+    public int getProxyConnections() {
+        return proxyConnections;
+    }
+
+    public void setProxyConnections(int proxyConnections) {
+        this.proxyConnections = proxyConnections;
+    }
+
+    /**
+     * Milliseconds a proxied request waits for a free upstream connection before it gets a 503.
+     */
+    public long getProxyQueueTimeout() {
+        return proxyQueueTimeout;
+    }
+
+    public void setProxyQueueTimeout(long proxyQueueTimeout) {
+        this.proxyQueueTimeout = proxyQueueTimeout;
+    }
+
+    /**
+     * Milliseconds to connect to an upstream and to wait for each read from it.
+     */
+    public int getProxyTimeout() {
+        return proxyTimeout;
+    }
+
+    public void setProxyTimeout(int proxyTimeout) {
+        this.proxyTimeout = proxyTimeout;
+    }
+
+    /**
+     * Milliseconds an upstream connection is kept idle for reuse; keep it
+     * below the upstream's own keep-alive timeout.
+     */
+    public long getProxyIdleTimeout() {
+        return proxyIdleTimeout;
+    }
+
+    public void setProxyIdleTimeout(long proxyIdleTimeout) {
+        this.proxyIdleTimeout = proxyIdleTimeout;
+    }
+
+    /**
+     * Whether the document root is indexed at startup, see {@link io.java.server.StaticIndex}; off by default.
+     */
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    /**
+     * Largest file the startup index reads into memory.
+     */
+    public long getPrewarmMaxFileSize() {
+        return prewarmMaxFileSize;
+    }
+
+    public void setPrewarmMaxFileSize(long prewarmMaxFileSize) {
+        this.prewarmMaxFileSize = prewarmMaxFileSize;
+    }
+
+    /**
+     * Bytes of files the startup index reads into memory at most.
+     */
+    public long getPrewarmMaxBytes() {
+        return prewarmMaxBytes;
+    }
+
+    public void setPrewarmMaxBytes(long prewarmMaxBytes) {
+        this.prewarmMaxBytes = prewarmMaxBytes;
+    }
+}
@@ -0,0 +1,17 @@
+package io.java;
+
+/**
+ * How accepted connections are turned into running {@link RequestHandler}s.
+ */
+public enum ServingModel {
+    /** A new platform thread per accepted connection. */
+    THREAD_PER_CONNECTION,
+    /** A bounded ThreadPoolExecutor, connections get a 503 with Retry-After when its queue is full. */
+    BOUNDED_POOL,
+    /** A new virtual thread per accepted connection. */
+    VIRTUAL_THREADS,
+    /** Connections are dispatched as events on the {@link io.eventLoop.EventLoop}. */
+    EVENT_LOOP,
+    /** A selector reads and parses requests without blocking, a worker pool writes the responses. */
+    NIO
+}
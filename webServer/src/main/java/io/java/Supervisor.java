@@ -0,0 +1,222 @@
+package io.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Supervisor runs the server as N pre-forked worker JVMs that all listen on
+ * the same port with SO_REUSEPORT, so each has its own heap and GC and a
+ * pause only stalls the connections the kernel gave to that worker. Workers
+ * that die are restarted; each worker reports its counters once a second
+ * over a loopback control socket (see {@link WorkerReporter}) and the
+ * supervisor prints the aggregate.
+ */
+public class Supervisor {
+
+	private static Logger log = Logger.getLogger(Supervisor.class);
+
+	/**
+	 * Workers that die sooner than this after their start are restarted with a delay.
+	 */
+	static final long MIN_UPTIME_MILLIS = 5000;
+
+	private final ServerConfig config;
+
+	private final String[] args;
+
+	private final Process[] workers;
+
+	private final long[] startedAt;
+
+	private final Map<Integer, long[]> stats = new ConcurrentHashMap<Integer, long[]>();
+
+	/**
+	 * Last reported requests, bytes and errors of workers that exited, so totals survive restarts.
+	 */
+	private final long[] retired = new long[3];
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private ServerSocket control;
+
+	private volatile boolean running = true;
+
+	private volatile int restarts;
+
+	public Supervisor(ServerConfig config, String[] args) {
+		this.config = config;
+		this.args = args;
+		this.workers = new Process[config.getWorkers()];
+		this.startedAt = new long[config.getWorkers()];
+	}
+
+	public void start() throws IOException {
+		control = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+		for (int i = 0; i < workers.length; i++) {
+			launch(i);
+		}
+		Thread acceptor = new Thread(this::acceptReports, "supervisor-control");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		System.out.println("Supervisor started " + workers.length + " workers on port " + config.getPort()
+				+ " (press CTRL-C to quit)");
+		long lastRequests = 0;
+		while (running) {
+			try {
+				Thread.sleep(config.getStatsInterval() * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long requests;
+			long bytes;
+			long errors;
+			synchronized (retired) {
+				requests = retired[0];
+				bytes = retired[1];
+				errors = retired[2];
+			}
+			long active = 0;
+			for (long[] worker : stats.values()) {
+				requests += worker[0];
+				bytes += worker[1];
+				active += worker[2];
+				errors += worker[3];
+			}
+			System.out.printf("workers %d/%d reporting, %d restarts, %,d requests (%,d req/s), %,d bytes sent,"
+					+ " %d active, %d errors%n", stats.size(), workers.length, restarts, requests,
+					(requests - lastRequests) / config.getStatsInterval(), bytes, active, errors);
+			lastRequests = requests;
+		}
+	}
+
+	private synchronized void launch(int id) {
+		if (!running) {
+			return;
+		}
+		try {
+			Process process = new ProcessBuilder(command(id)).inheritIO().start();
+			workers[id] = process;
+			startedAt[id] = System.currentTimeMillis();
+			log.info("Started worker " + id + " (pid " + process.pid() + ")");
+			process.onExit().thenAccept(p -> exited(id, p));
+		} catch (IOException e) {
+			log.error("Could not start worker " + id, e);
+			scheduler.schedule(() -> launch(id), 1, TimeUnit.SECONDS);
+		}
+	}
+
+	private void exited(int id, Process process) {
+		long[] last = stats.remove(id);
+		if (last != null) {
+			synchronized (retired) {
+				retired[0] += last[0];
+				retired[1] += last[1];
+				retired[2] += last[3];
+			}
+		}
+		if (!running) {
+			return;
+		}
+		restarts++;
+		long uptime = System.currentTimeMillis() - startedAt[id];
+		long delay = uptime < MIN_UPTIME_MILLIS ? 1000 : 0;
+		log.warn("Worker " + id + " (pid " + process.pid() + ") exited with " + process.exitValue()
+				+ " after " + uptime + " ms, restarting in " + delay + " ms");
+		scheduler.schedule(() -> launch(id), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The same java binary, JVM flags, class path, "server.*" properties and
+	 * arguments as this process, plus the worker's identity.
+	 */
+	List<String> command(int id) {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (!arg.startsWith("-Dserver.workers=") && !arg.startsWith("-agentlib:jdwp")) {
+				command.add(arg);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dserver.workerId=" + id);
+		command.add("-Dserver.control=" + control.getLocalPort());
+		command.add("-Dserver.reusePort=true");
+		command.add(WebServer.class.getName());
+		command.addAll(Arrays.asList(args));
+		return command;
+	}
+
+	private void acceptReports() {
+		while (running) {
+			try {
+				Socket socket = control.accept();
+				Thread reader = new Thread(() -> readReports(socket), "supervisor-report");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					log.error("Control channel failed", e);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads "id requests bytes active errors" lines of one worker.
+	 */
+	private void readReports(Socket socket) {
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+				long[] values = new long[fields.length - 1];
+				for (int i = 1; i < fields.length; i++) {
+					values[i - 1] = Long.parseLong(fields[i]);
+				}
+				stats.put(Integer.parseInt(fields[0]), values);
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("Dropped worker report connection: " + e);
+		}
+	}
+
+	public void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		scheduler.shutdownNow();
+		for (Process worker : workers) {
+			if (worker != null) {
+				worker.destroy();
+			}
+		}
+		try {
+			control.close();
+		} catch (IOException e) {
+			// shutting down anyway
+		}
+	}
+}
@@ -1,93 +1,297 @@
 package io.java;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 
 import io.eventLoop.EventLoop;
 import io.eventLoop.events.AbstractEvent;
-import io.eventLoop.events.HttpEvent;
+import io.java.metrics.PrometheusExporter;
+import io.java.metrics.ServerMetrics;
+import io.java.server.Http2StreamEvent;
+import io.java.server.ProxyHandler;
+import io.java.server.RouteEvent;
+import io.java.server.Router;
+import io.java.server.StaticIndex;
 import org.apache.log4j.Logger;
 
 public class WebServer {
 
     private static Logger log = Logger.getLogger(WebServer.class);
 
-    private static final int DEFAULT_PORT = 8080;
-
-    private static final int N_THREADS = 10;
-
     private static final EventLoop eventLoop = new EventLoop(Executors.newSingleThreadExecutor(),
             Executors.newVirtualThreadPerTaskExecutor());
 
+    static {
+        eventLoop.addEventHandler(HttpRequest.class, (event) -> {
+            new RequestHandler(event.getSocket(), event.getServer(), event.getAcceptedAt()).run();
+        });
+        eventLoop.addEventHandler(RouteEvent.class, RouteEvent::run);
+        eventLoop.addEventHandler(Http2StreamEvent.class, Http2StreamEvent::run);
+    }
+
+    private final ServerConfig config;
+
+    private final AdmissionControl admission;
+
+    private final ConnectionTimeouts timeouts;
+
+    private final Router router = new Router(eventLoop);
+
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+
+    private ExecutorService executor;
+
+    private final List<NioReactor> reactors = new ArrayList<>();
+
+    private final List<ProxyHandler> proxies = new ArrayList<>();
+
+    private volatile boolean running;
+
+    public WebServer(ServerConfig config) {
+        this.config = config;
+        this.admission = AdmissionControl.of(config);
+        this.timeouts = new ConnectionTimeouts(config);
+        if (!config.getMetricsPath().isEmpty()) {
+            router.get(config.getMetricsPath(), new PrometheusExporter(ServerMetrics.INSTANCE)
+                    .addGauge("http_connections_open", "Open client connections.", admission::getConnections)
+                    .addGauge("http_requests_in_flight", "Requests being handled.", admission::getInFlight));
+        }
+        addProxies();
+    }
+
+    /**
+     * Registers the reverse proxy routes of the "server.proxy" option, each upstream with a pool of its own.
+     */
+    private void addProxies() {
+        for (String proxy : config.getProxy().split(",")) {
+            if (proxy.isBlank()) {
+                continue;
+            }
+            int equals = proxy.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Proxy route must be /prefix/=http://host:port: " + proxy);
+            }
+            proxies.add(new ProxyHandler(proxy.substring(0, equals).trim(), proxy.substring(equals + 1).trim(),
+                    config.getProxyConnections(), config.getProxyQueueTimeout(), config.getProxyTimeout(),
+                    config.getProxyIdleTimeout()).register(router));
+        }
+    }
 
     public static void main(String args[]) {
         try {
-            eventLoop.addEventHandler(HttpRequest.class, (event) -> {
-                new RequestHandler(event.getSocket()).run();
-            });
-            eventLoop.addEventHandler(HttpRequest.class, (event) -> {
-                try {
-                    System.out.printf("Method: %s\n", event.socket.getReceiveBufferSize());
-                } catch (SocketException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-            eventLoop.start();
-            new WebServer().start(getValidPortParam(args));
+            ServerConfig config = ServerConfig.fromArgs(args);
+            if (config.getWorkers() > 0 && !config.isWorker()) {
+                new Supervisor(config, args).start();
+                return;
+            }
+            if (config.isWorker()) {
+                WorkerReporter.start(config);
+            }
+            new WebServer(config).start();
         } catch (Exception e) {
             log.error("Startup Error", e);
         }
     }
 
-    public void start(int port) throws IOException {
-        ServerSocket s = new ServerSocket(port);
-        System.out.println("Web server listening on port " + port + " (press CTRL-C to quit)");
-//        ExecutorService executor = new ThreadPoolExecutor(
-//                N_THREADS, N_THREADS * 3, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(500)
-//        );
+    public void start() throws IOException {
+        bind();
+        System.out.println("Web server listening on port " + getPort() + " with the " + config.getModel()
+                + " model (press CTRL-C to quit)");
+        serve();
+    }
+
+    /**
+     * Opens the listening sockets; a configured port of 0 picks a free one, see {@link #getPort()}.
+     */
+    public void bind() throws IOException {
+        int port = config.getPort();
+        for (int i = 0; i < config.getAcceptors(); i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (config.isReusePort()) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.close();
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), config.getBacklog());
+            port = channel.socket().getLocalPort();
+            serverChannels.add(channel);
+        }
+        running = true;
+    }
+
+    public int getPort() {
+        return serverChannels.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * Accepts connections with the configured {@link ServingModel} until
+     * {@link #stop()} is called. The calling thread serves the first listening
+     * socket, every other one gets its own acceptor thread.
+     */
+    public void serve() throws IOException {
+        router.compile();
+        if (config.isPrewarm()) {
+            prewarm();
+        }
+        if (!router.isEmpty() || config.isH2c()) {
+            // HTTP/2 streams are served on the event loop too
+            eventLoop.start();
+        }
+        switch (config.getModel()) {
+            case BOUNDED_POOL:
+                executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads() * 3, 0L,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(config.getQueueSize()));
+                break;
+            case VIRTUAL_THREADS:
+                executor = Executors.newVirtualThreadPerTaskExecutor();
+                break;
+            case EVENT_LOOP:
+                eventLoop.start();
+                break;
+            case NIO:
+                executor = Executors.newFixedThreadPool(config.getThreads());
+                for (ServerSocketChannel channel : serverChannels) {
+                    reactors.add(new NioReactor(channel, executor, this));
+                }
+                break;
+            default:
+                break;
+        }
 
-//        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
-//        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
-//        while (true) {
-//            executor.submit(new RequestHandler(s.accept()));
-//        }
+        for (int i = 1; i < serverChannels.size(); i++) {
+            int acceptor = i;
+            new Thread(() -> runAcceptor(acceptor), "acceptor-" + i).start();
+        }
+        runAcceptor(0);
+    }
 
+    /**
+     * Indexes the document root before the first connection is accepted.
+     */
+    private void prewarm() {
+        long start = System.nanoTime();
+        StaticIndex index = StaticIndex.build(Paths.get(""), config.getPrewarmMaxFileSize(),
+                config.getPrewarmMaxBytes());
+        index.install();
+        log.info("Indexed the document root in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms: " + index);
+    }
 
-        while (true) {
-            var socket = s.accept();
-            if (socket == null) {
+    private void runAcceptor(int acceptor) {
+        if (!reactors.isEmpty()) {
+            reactors.get(acceptor).run();
+            return;
+        }
+        ServerSocketChannel serverChannel = serverChannels.get(acceptor);
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Accept failed", e);
+                continue;
+            }
+            long acceptedAt = System.nanoTime();
+            if (!admission.tryAcquireConnection()) {
+                admission.reject(channel);
                 continue;
             }
-            var res = eventLoop.dispatch(new HttpRequest(socket));
+            dispatch(channel, acceptedAt);
         }
+    }
 
+    private void dispatch(SocketChannel channel, long acceptedAt) {
+        Socket socket = channel.socket();
+        switch (config.getModel()) {
+            case THREAD_PER_CONNECTION:
+                new Thread(new RequestHandler(socket, this, acceptedAt)).start();
+                break;
+            case EVENT_LOOP:
+                eventLoop.dispatch(new HttpRequest(socket, this, acceptedAt));
+                break;
+            default:
+                try {
+                    executor.execute(new RequestHandler(socket, this, acceptedAt));
+                } catch (RejectedExecutionException e) {
+                    admission.releaseConnection();
+                    admission.reject(channel);
+                }
+        }
     }
 
-    static int getValidPortParam(String args[]) throws NumberFormatException {
-        if (args.length > 0) {
-            int port = Integer.parseInt(args[0]);
-            if (port > 0 && port < 65535) {
-                return port;
-            } else {
-                throw new NumberFormatException("Invalid port! Port value is a number between 0 and 65535");
-            }
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public ConnectionTimeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Application routes, served before static files; add them before {@link #serve()}.
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        for (NioReactor reactor : reactors) {
+            reactor.stop();
+        }
+        for (ServerSocketChannel channel : serverChannels) {
+            channel.close();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        timeouts.stop();
+        for (ProxyHandler proxy : proxies) {
+            proxy.getPool().close();
         }
-        return DEFAULT_PORT;
     }
 
     public static class HttpRequest extends AbstractEvent<HttpRequest> {
 
         Socket socket;
 
-        public HttpRequest(Socket socket) {
+        WebServer server;
+
+        long acceptedAt;
+
+        public HttpRequest(Socket socket, WebServer server, long acceptedAt) {
             this.socket = socket;
+            this.server = server;
+            this.acceptedAt = acceptedAt;
         }
 
         public Socket getSocket() {
             return socket;
         }
+
+        public WebServer getServer() {
+            return server;
+        }
+
+        public long getAcceptedAt() {
+            return acceptedAt;
+        }
     }
 }
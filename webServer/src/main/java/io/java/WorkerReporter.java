@@ -0,0 +1,53 @@
+package io.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import io.java.metrics.ServerMetrics;
+
+/**
+ * Runs inside a worker JVM: sends the worker's counters to the
+ * {@link Supervisor} once a second. A worker whose supervisor is gone exits
+ * instead of serving on as an orphan.
+ */
+public class WorkerReporter implements Runnable {
+
+	private static Logger log = Logger.getLogger(WorkerReporter.class);
+
+	private final ServerConfig config;
+
+	private WorkerReporter(ServerConfig config) {
+		this.config = config;
+	}
+
+	public static void start(ServerConfig config) {
+		Thread thread = new Thread(new WorkerReporter(config), "worker-reporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		ServerMetrics metrics = ServerMetrics.INSTANCE;
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), config.getControlPort())) {
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				String line = config.getWorkerId() + " " + metrics.getRequests() + " " + metrics.getBytesSent() + " "
+						+ metrics.getActive() + " " + metrics.getErrors() + "\n";
+				out.write(line.getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+				Thread.sleep(1000);
+			}
+		} catch (IOException e) {
+			log.error("Lost the supervisor, worker " + config.getWorkerId() + " exiting: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.exit(1);
+	}
+}
@@ -0,0 +1,172 @@
+package io.java.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.java.ServingModel;
+import io.java.WebServer;
+import io.java.load.LoadGenerator;
+import io.java.load.LoadOptions;
+import io.java.load.LoadResult;
+import io.java.metrics.ServerMetrics;
+import io.java.server.BufferPool;
+
+/**
+ * Measures how many bytes the server allocates per request with the
+ * {@link BufferPool} on and off. The same keep-alive {@link LoadGenerator}
+ * workload runs against each model twice; allocation is summed over the
+ * server threads only, so the load generator's own garbage does not count.
+ * Garbage collections are process-wide and include the load generator.
+ *
+ * Only models whose threads outlive the run are measured by default, the
+ * allocation of a thread that already exited can not be read any more.
+ *
+ * Usage: AllocationBenchmark [seconds] [connections] [fileSize] [models...]
+ */
+public class AllocationBenchmark {
+
+	static final String PATH = "/bench/allocation.txt";
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		List<ServingModel> models = new ArrayList<ServingModel>();
+		for (int i = 3; i < args.length; i++) {
+			models.add(ServingModel.valueOf(args[i]));
+		}
+		if (models.isEmpty()) {
+			models.add(ServingModel.BOUNDED_POOL);
+			models.add(ServingModel.NIO);
+		}
+
+		File payload = new File("." + PATH);
+		payload.getParentFile().mkdirs();
+		try (OutputStream out = new FileOutputStream(payload)) {
+			byte[] bytes = new byte[fileSize];
+			Arrays.fill(bytes, (byte) 'x');
+			out.write(bytes);
+		}
+
+		System.out.printf("%d keep-alive connections, %d byte file, %d s per run%n", connections, fileSize, seconds);
+		System.out.printf("%-16s %-6s %12s %14s %10s %10s%n", "model", "pool", "req/s", "bytes/req", "GCs", "GC ms");
+		try {
+			for (ServingModel model : models) {
+				WebServer server = LoadGenerator.startLocal(model);
+				run(server, model, false, 1, connections);
+				run(server, model, true, 1, connections);
+				for (boolean pooled : new boolean[] { false, true }) {
+					run(server, model, pooled, seconds, connections).print(model, pooled);
+				}
+				server.stop();
+			}
+		} finally {
+			payload.delete();
+			payload.getParentFile().delete();
+		}
+		System.exit(0);
+	}
+
+	static Sample run(WebServer server, ServingModel model, boolean pooled, int seconds, int connections)
+			throws Exception {
+		BufferPool.INSTANCE.setEnabled(pooled);
+
+		LoadOptions options = new LoadOptions();
+		options.setTarget("localhost", server.getPort());
+		options.setConnections(connections);
+		options.setWarmup(0);
+		options.setDuration(seconds);
+		options.setKeepAlive(true);
+		options.addUrl(PATH, 1);
+
+		Sample sample = new Sample();
+		sample.start();
+		LoadResult result = new LoadGenerator(options).run();
+		sample.stop();
+		sample.throughput = result.getThroughput();
+		return sample;
+	}
+
+	/**
+	 * Allocation of the server threads and GC activity between start() and stop().
+	 */
+	static class Sample {
+
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		Map<Long, Long> before;
+
+		long allocated;
+
+		long requests;
+
+		long collections;
+
+		long collectionMillis;
+
+		double throughput;
+
+		void start() {
+			before = serverThreads();
+			requests = ServerMetrics.INSTANCE.getRequests();
+			collections = -collections();
+			collectionMillis = -collectionMillis();
+		}
+
+		void stop() {
+			for (Map.Entry<Long, Long> thread : serverThreads().entrySet()) {
+				Long start = before.get(thread.getKey());
+				allocated += thread.getValue() - (start == null ? 0 : start);
+			}
+			requests = ServerMetrics.INSTANCE.getRequests() - requests;
+			collections += collections();
+			collectionMillis += collectionMillis();
+		}
+
+		void print(ServingModel model, boolean pooled) {
+			System.out.printf("%-16s %-6s %,12.0f %,14.0f %10d %10d%n", model, pooled ? "on" : "off", throughput,
+					(double) allocated / Math.max(1, requests), collections, collectionMillis);
+		}
+
+		/**
+		 * Allocated bytes by thread id, for every live thread that is not part of the load generator.
+		 */
+		Map<Long, Long> serverThreads() {
+			Map<Long, Long> allocated = new HashMap<Long, Long>();
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				if (!thread.getName().startsWith("load-") && thread != Thread.currentThread()) {
+					long bytes = threads.getThreadAllocatedBytes(thread.threadId());
+					if (bytes >= 0) {
+						allocated.put(thread.threadId(), bytes);
+					}
+				}
+			}
+			return allocated;
+		}
+
+		static long collections() {
+			long count = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, gc.getCollectionCount());
+			}
+			return count;
+		}
+
+		static long collectionMillis() {
+			long millis = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				millis += Math.max(0, gc.getCollectionTime());
+			}
+			return millis;
+		}
+	}
+}
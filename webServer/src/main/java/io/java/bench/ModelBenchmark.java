@@ -0,0 +1,87 @@
+package io.java.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.java.ServingModel;
+import io.java.WebServer;
+import io.java.load.LoadGenerator;
+import io.java.load.LoadOptions;
+import io.java.load.LoadResult;
+import io.java.metrics.Histogram;
+
+/**
+ * Starts the server once per {@link ServingModel} and runs the same
+ * {@link LoadGenerator} workload against each: a fixed number of
+ * connections fetching the same file, one request per connection. Reports
+ * throughput and p50/p99/p999 latency per model.
+ *
+ * Usage: ModelBenchmark [seconds] [connections] [fileSize] [rate] [models...]
+ * A rate of 0 runs a closed loop, anything else a constant rate open loop.
+ */
+public class ModelBenchmark {
+
+	static final String PATH = "/bench/payload.txt";
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+		int rate = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+		List<ServingModel> models = new ArrayList<ServingModel>();
+		for (int i = 4; i < args.length; i++) {
+			models.add(ServingModel.valueOf(args[i]));
+		}
+		if (models.isEmpty()) {
+			models.addAll(Arrays.asList(ServingModel.values()));
+		}
+
+		File payload = new File("." + PATH);
+		payload.getParentFile().mkdirs();
+		try (OutputStream out = new FileOutputStream(payload)) {
+			byte[] bytes = new byte[fileSize];
+			Arrays.fill(bytes, (byte) 'x');
+			out.write(bytes);
+		}
+
+		System.out.printf("%d connections, %d byte file, %d s per model, %s%n", connections, fileSize, seconds,
+				rate > 0 ? "open loop at " + rate + " req/s" : "closed loop");
+		System.out.printf("%-22s %12s %10s %10s %10s %8s%n", "model", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+		try {
+			for (ServingModel model : models) {
+				run(model, seconds, connections, rate);
+			}
+		} finally {
+			payload.delete();
+			payload.getParentFile().delete();
+		}
+		System.exit(0);
+	}
+
+	static void run(ServingModel model, int seconds, int connections, int rate) throws Exception {
+		WebServer server = LoadGenerator.startLocal(model);
+
+		LoadOptions options = new LoadOptions();
+		options.setTarget("localhost", server.getPort());
+		options.setConnections(connections);
+		options.setWarmup(1);
+		options.setDuration(seconds);
+		options.setKeepAlive(false);
+		if (rate > 0) {
+			options.setMode(LoadOptions.Mode.OPEN);
+			options.setRate(rate);
+		}
+		options.addUrl(PATH, 1);
+		LoadResult result = new LoadGenerator(options).run();
+		server.stop();
+
+		Histogram latencies = rate > 0 ? result.getHistogram() : result.getCorrected();
+		System.out.printf("%-22s %,12.0f %10.2f %10.2f %10.2f %8d%n", model, result.getThroughput(),
+				latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+				latencies.getValueAtPercentile(99.9) / 1e6, result.getErrors());
+	}
+}
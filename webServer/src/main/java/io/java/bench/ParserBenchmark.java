@@ -0,0 +1,111 @@
+package io.java.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.java.server.RequestParser;
+
+/**
+ * Measures {@link RequestParser} throughput. Every thread parses the same
+ * browser-like request in a loop, once delivered in a single read and once
+ * split into small fragments to exercise the incremental path.
+ *
+ * Usage: ParserBenchmark [seconds] [threads]
+ */
+public class ParserBenchmark {
+
+	static final byte[] REQUEST = ("GET /static/css/site.css?v=42 HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Referer: http://localhost:8080/index.html\r\n"
+			+ "If-Modified-Since: Mon, 07 Oct 2024 10:00:00 GMT\r\n"
+			+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	static final int FRAGMENT = 16;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		run("warm-up", 1, threads, false);
+		run("single read", seconds, threads, false);
+		run("fragmented (" + FRAGMENT + " byte reads)", seconds, threads, true);
+	}
+
+	static void run(String name, int seconds, int threads, boolean fragmented) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		for (int i = 0; i < threads; i++) {
+			results.add(executor.submit(new Worker(deadline, fragmented)));
+		}
+		long requests = 0;
+		long allocated = 0;
+		for (Future<long[]> result : results) {
+			requests += result.get()[0];
+			allocated += result.get()[1];
+		}
+		executor.shutdown();
+
+		if (!name.equals("warm-up")) {
+			System.out.printf("%-32s %,12d req/s total %,12d req/s per core %8.1f bytes allocated per request%n",
+					name, requests / seconds, requests / seconds / threads, (double) allocated / requests);
+		}
+	}
+
+	static class Worker implements Callable<long[]> {
+
+		private final long deadline;
+
+		private final boolean fragmented;
+
+		Worker(long deadline, boolean fragmented) {
+			this.deadline = deadline;
+			this.fragmented = fragmented;
+		}
+
+		@Override
+		public long[] call() throws Exception {
+			com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			RequestParser parser = new RequestParser();
+			ByteBuffer buf = parser.buffer();
+			long count = 0;
+			long sink = 0;
+			long before = mx.getCurrentThreadAllocatedBytes();
+			while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+				parser.reset();
+				if (fragmented) {
+					int offset = 0;
+					boolean done = false;
+					while (!done) {
+						int length = Math.min(FRAGMENT, REQUEST.length - offset);
+						buf.put(REQUEST, offset, length);
+						offset += length;
+						done = parser.parse();
+					}
+				} else {
+					buf.put(REQUEST);
+					parser.parse();
+				}
+				sink += parser.headEnd();
+				count++;
+			}
+			long allocated = mx.getCurrentThreadAllocatedBytes() - before;
+			if (sink != count * REQUEST.length) {
+				throw new IllegalStateException("Parser did not consume the full request head");
+			}
+			return new long[] { count, allocated };
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package io.java.load;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Minimal HTTP/1.x client connection for the load generator: writes a
+ * pre-encoded request, reads the status line and headers and drains the
+ * body (Content-Length, chunked or until close).
+ */
+class HttpConnection implements Closeable {
+
+	private final Socket socket;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private final StringBuilder line = new StringBuilder(128);
+
+	private final byte[] drain = new byte[16 * 1024];
+
+	private boolean reusable;
+
+	private long bytes;
+
+	HttpConnection(String host, int port, int timeout) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(timeout);
+		in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+		out = socket.getOutputStream();
+	}
+
+	/**
+	 * Sends the request and returns the response status once the whole body was read.
+	 */
+	int exchange(byte[] request, boolean keepAlive) throws IOException {
+		out.write(request);
+		out.flush();
+
+		String statusLine = readLine();
+		if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.")) {
+			throw new IOException("Malformed status line: " + statusLine);
+		}
+		int status = Integer.parseInt(statusLine.substring(9, 12));
+		boolean http11 = statusLine.charAt(7) == '1';
+		boolean close = !http11;
+		long length = -1;
+		boolean chunked = false;
+		String header;
+		while (!(header = readLine()).isEmpty()) {
+			int colon = header.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = header.substring(0, colon).trim();
+			String value = header.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				length = Long.parseLong(value);
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.equalsIgnoreCase("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				close = value.equalsIgnoreCase("close") || (!http11 && !value.equalsIgnoreCase("keep-alive"));
+			}
+		}
+		if (chunked) {
+			long size;
+			while ((size = Long.parseLong(stripExtensions(readLine()), 16)) > 0) {
+				skip(size);
+				readLine();
+			}
+			while (!readLine().isEmpty()) {
+				// trailers
+			}
+		} else if (length >= 0) {
+			skip(length);
+		} else {
+			close = true;
+			int n;
+			while ((n = in.read(drain)) > 0) {
+				bytes += n;
+			}
+		}
+		reusable = keepAlive && !close;
+		return status;
+	}
+
+	boolean isReusable() {
+		return reusable;
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	private void skip(long count) throws IOException {
+		while (count > 0) {
+			int n = in.read(drain, 0, (int) Math.min(drain.length, count));
+			if (n < 0) {
+				throw new EOFException("Connection closed inside the response body");
+			}
+			count -= n;
+			bytes += n;
+		}
+	}
+
+	private String readLine() throws IOException {
+		line.setLength(0);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new EOFException("Connection closed inside the response head");
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	private static String stripExtensions(String chunkLine) {
+		int semicolon = chunkLine.indexOf(';');
+		return (semicolon < 0 ? chunkLine : chunkLine.substring(0, semicolon)).trim();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
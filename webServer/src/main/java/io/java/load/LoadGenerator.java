@@ -0,0 +1,239 @@
+package io.java.load;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.java.ServerConfig;
+import io.java.ServingModel;
+import io.java.WebServer;
+import io.java.metrics.Histogram;
+import org.apache.log4j.Logger;
+
+/**
+ * LoadGenerator drives HTTP load against a server and reports latency
+ * percentiles without coordinated omission.
+ *
+ * In the open loop every connection follows a fixed schedule derived from
+ * the target rate and latency is measured from the time a request was
+ * supposed to be sent, so a stalled server is charged for the requests that
+ * queued up behind the stall. The closed loop sends the next request when the
+ * previous one completed; its histogram is additionally reported corrected
+ * with the mean latency as expected interval, the way HdrHistogram does.
+ *
+ * Usage: LoadGenerator [options], see {@link LoadOptions}.
+ */
+public class LoadGenerator {
+
+	private static Logger log = Logger.getLogger(LoadGenerator.class);
+
+	private final LoadOptions options;
+
+	private final List<byte[]> requests = new ArrayList<byte[]>();
+
+	private final int[] cumulativeWeights;
+
+	private final Histogram histogram = new Histogram();
+
+	private final LongAdder errors = new LongAdder();
+
+	private final LongAdder non2xx = new LongAdder();
+
+	private final LongAdder connects = new LongAdder();
+
+	private final LongAdder bytes = new LongAdder();
+
+	public LoadGenerator(LoadOptions options) {
+		this.options = options;
+		this.cumulativeWeights = new int[options.urls.size()];
+		int total = 0;
+		for (int i = 0; i < options.urls.size(); i++) {
+			String request = "GET " + options.urls.get(i) + " HTTP/1.1\r\n"
+					+ "Host: " + options.host + ":" + options.port + "\r\n"
+					+ "Connection: " + (options.keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+			requests.add(request.getBytes(StandardCharsets.ISO_8859_1));
+			total += options.weights.get(i);
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = LoadOptions.parse(args);
+		WebServer server = null;
+		if (options.local != null) {
+			server = startLocal(ServingModel.valueOf(options.local.toUpperCase()));
+			options.setTarget("localhost", server.getPort());
+		}
+		LoadResult result = new LoadGenerator(options).run();
+		result.print(System.out);
+		if (options.report != null) {
+			try (PrintStream out = new PrintStream(new FileOutputStream(options.report))) {
+				result.getHistogram().outputPercentileDistribution(out, 1e6);
+			}
+		}
+		if (server != null) {
+			server.stop();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts an in-process server on a free port, with the access log off unless configured.
+	 */
+	public static WebServer startLocal(ServingModel model) throws IOException {
+		if (System.getProperty("server.accessLog") == null) {
+			System.setProperty("server.accessLog", "off");
+		}
+		ServerConfig config = new ServerConfig();
+		config.setPort(0);
+		config.setModel(model);
+		WebServer server = new WebServer(config);
+		server.bind();
+		Thread serving = new Thread(() -> {
+			try {
+				server.serve();
+			} catch (IOException e) {
+				log.error("Local " + model + " server stopped", e);
+			}
+		}, "local-" + model);
+		serving.setDaemon(true);
+		serving.start();
+		return server;
+	}
+
+	public LoadResult run() throws InterruptedException {
+		long start = System.nanoTime();
+		long measureStart = start + options.warmup * 1_000_000_000L;
+		long end = measureStart + options.duration * 1_000_000_000L;
+		// each connection's share of the open loop rate
+		long interval = options.mode == LoadOptions.Mode.OPEN
+				? Math.max(1, 1_000_000_000L * options.connections / options.rate)
+				: 0;
+
+		CountDownLatch done = new CountDownLatch(options.connections);
+		for (int i = 0; i < options.connections; i++) {
+			long first = start + (interval * i) / options.connections;
+			Thread worker = new Thread(new Worker(i, first, interval, measureStart, end, done), "load-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+		done.await();
+
+		Histogram reported = histogram;
+		Histogram corrected = null;
+		if (options.mode == LoadOptions.Mode.CLOSED) {
+			corrected = histogram.copyCorrectedForCoordinatedOmission((long) histogram.getMean());
+		}
+		return new LoadResult(options, reported, corrected, errors.sum(), non2xx.sum(), connects.sum(),
+				bytes.sum());
+	}
+
+	private int pick(SplittableRandom random) {
+		if (requests.size() == 1) {
+			return 0;
+		}
+		int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		int i = 0;
+		while (cumulativeWeights[i] <= r) {
+			i++;
+		}
+		return i;
+	}
+
+	private class Worker implements Runnable {
+
+		private final SplittableRandom random;
+
+		private final long first;
+
+		private final long interval;
+
+		private final long measureStart;
+
+		private final long end;
+
+		private final CountDownLatch done;
+
+		private HttpConnection connection;
+
+		Worker(int id, long first, long interval, long measureStart, long end, CountDownLatch done) {
+			this.random = new SplittableRandom(id);
+			this.first = first;
+			this.interval = interval;
+			this.measureStart = measureStart;
+			this.end = end;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			long next = first;
+			try {
+				while (true) {
+					long intended;
+					if (interval > 0) {
+						intended = next;
+						next += interval;
+						long wait;
+						while ((wait = intended - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					} else {
+						intended = System.nanoTime();
+					}
+					if (intended >= end) {
+						break;
+					}
+					int status = send(requests.get(pick(random)));
+					long latency = System.nanoTime() - intended;
+					if (intended < measureStart) {
+						continue;
+					}
+					if (status < 0) {
+						errors.increment();
+					} else {
+						histogram.record(latency);
+						if (status < 200 || status > 299) {
+							non2xx.increment();
+						}
+					}
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
+				done.countDown();
+			}
+		}
+
+		private int send(byte[] request) {
+			try {
+				if (connection == null) {
+					connection = new HttpConnection(options.host, options.port, options.timeout);
+					connects.increment();
+				}
+				long before = connection.getBytes();
+				int status = connection.exchange(request, options.keepAlive);
+				bytes.add(connection.getBytes() - before);
+				if (!connection.isReusable()) {
+					connection.close();
+					connection = null;
+				}
+				return status;
+			} catch (IOException e) {
+				if (connection != null) {
+					connection.close();
+					connection = null;
+				}
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package io.java.load;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of a {@link LoadGenerator} run, parsed from "--name=value" arguments:
+ *
+ * --target=host:port | --local=MODEL   server to load, or start one in-process
+ * --mode=closed|open                    closed loop, or constant rate open loop
+ * --rate=N                              requests per second of the open loop
+ * --connections=N                       concurrent connections (default 16)
+ * --duration=S --warmup=S               seconds measured / discarded
+ * --keepalive=true|false                reuse connections between requests
+ * --url=/path[=weight]                  repeatable, weighted URL mix
+ * --timeout=MS                          socket timeout per request
+ * --report=FILE                         also write the percentile distribution to FILE
+ */
+public class LoadOptions {
+
+	public enum Mode {
+		CLOSED, OPEN
+	}
+
+	String host = "localhost";
+
+	int port = 8080;
+
+	String local;
+
+	Mode mode = Mode.CLOSED;
+
+	int rate = 1000;
+
+	int connections = 16;
+
+	int duration = 10;
+
+	int warmup = 2;
+
+	boolean keepAlive = true;
+
+	int timeout = 10_000;
+
+	String report;
+
+	final List<String> urls = new ArrayList<String>();
+
+	final List<Integer> weights = new ArrayList<Integer>();
+
+	public static LoadOptions parse(String[] args) {
+		LoadOptions options = new LoadOptions();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				throw new IllegalArgumentException("Expected --name=value but got " + arg);
+			}
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq + 1);
+			switch (name) {
+				case "target":
+					int colon = value.lastIndexOf(':');
+					options.host = value.substring(0, colon);
+					options.port = Integer.parseInt(value.substring(colon + 1));
+					break;
+				case "local":
+					options.local = value;
+					break;
+				case "mode":
+					options.mode = Mode.valueOf(value.toUpperCase());
+					break;
+				case "rate":
+					options.rate = Integer.parseInt(value);
+					break;
+				case "connections":
+					options.connections = Integer.parseInt(value);
+					break;
+				case "duration":
+					options.duration = Integer.parseInt(value);
+					break;
+				case "warmup":
+					options.warmup = Integer.parseInt(value);
+					break;
+				case "keepalive":
+					options.keepAlive = Boolean.parseBoolean(value);
+					break;
+				case "timeout":
+					options.timeout = Integer.parseInt(value);
+					break;
+				case "report":
+					options.report = value;
+					break;
+				case "url":
+					int weight = value.lastIndexOf('=');
+					if (weight > 0) {
+						options.addUrl(value.substring(0, weight), Integer.parseInt(value.substring(weight + 1)));
+					} else {
+						options.addUrl(value, 1);
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option --" + name);
+			}
+		}
+		if (options.urls.isEmpty()) {
+			options.addUrl("/", 1);
+		}
+		return options;
+	}
+
+	public void setTarget(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+	public void setWarmup(int warmup) {
+		this.warmup = warmup;
+	}
+
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public void addUrl(String url, int weight) {
+		urls.add(url);
+		weights.add(weight);
+	}
+}
@@ -0,0 +1,76 @@
+package io.java.load;
+
+import java.io.PrintStream;
+
+import io.java.metrics.Histogram;
+
+/**
+ * Outcome of a {@link LoadGenerator} run; latencies are in nanoseconds.
+ */
+public class LoadResult {
+
+	private final LoadOptions options;
+
+	private final Histogram histogram;
+
+	private final Histogram corrected;
+
+	private final long errors;
+
+	private final long non2xx;
+
+	private final long connects;
+
+	private final long bytes;
+
+	LoadResult(LoadOptions options, Histogram histogram, Histogram corrected, long errors, long non2xx,
+			long connects, long bytes) {
+		this.options = options;
+		this.histogram = histogram;
+		this.corrected = corrected;
+		this.errors = errors;
+		this.non2xx = non2xx;
+		this.connects = connects;
+		this.bytes = bytes;
+	}
+
+	public Histogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * The closed loop histogram corrected for coordinated omission, null for open loop runs.
+	 */
+	public Histogram getCorrected() {
+		return corrected;
+	}
+
+	public double getThroughput() {
+		return (double) histogram.getTotalCount() / options.duration;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public void print(PrintStream out) {
+		out.printf("%s loop, %d connections%s, keep-alive %s, %d s (+%d s warm-up) against %s:%d%n",
+				options.mode == LoadOptions.Mode.OPEN ? "Open" : "Closed", options.connections,
+				options.mode == LoadOptions.Mode.OPEN ? ", target " + options.rate + " req/s" : "",
+				options.keepAlive, options.duration, options.warmup, options.host, options.port);
+		out.printf("  %,.0f req/s, %,d requests, %d errors, %d non-2xx, %d connections opened, %,.1f MB read%n",
+				getThroughput(), histogram.getTotalCount(), errors, non2xx, connects, bytes / 1e6);
+		out.printf("  latency ms  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+				histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+				histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+				histogram.getMax() / 1e6);
+		if (corrected != null) {
+			out.printf("  corrected   p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+					corrected.getValueAtPercentile(50) / 1e6, corrected.getValueAtPercentile(90) / 1e6,
+					corrected.getValueAtPercentile(99) / 1e6, corrected.getValueAtPercentile(99.9) / 1e6,
+					corrected.getMax() / 1e6);
+		}
+		out.println();
+		histogram.outputPercentileDistribution(out, 1e6);
+	}
+}
@@ -0,0 +1,213 @@
+package io.java.metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram is a log-linear histogram in the spirit of HdrHistogram: values
+ * below 128 have their own bucket, above that every power of two is split
+ * into 64 buckets, so any recorded value is reproduced within 1.6%. Recording
+ * is lock-free (one atomic increment per value) and safe from any number of
+ * threads, while readers compute percentiles from a racy but consistent
+ * enough view of the counts.
+ */
+public class Histogram {
+
+	static final int SUB_BUCKETS = 64;
+
+	static final int LINEAR = 2 * SUB_BUCKETS;
+
+	static final int BUCKETS = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+	static final int TICKS_PER_HALF_DISTANCE = 5;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder totalCount = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	static int indexOf(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long lowestValueAt(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		return (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	static long highestValueAt(int index) {
+		return index + 1 < BUCKETS ? lowestValueAt(index + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Records a non-negative value, negative values are clamped to 0.
+	 */
+	public void record(long value) {
+		recordCount(Math.max(0, value), 1);
+	}
+
+	public void recordCount(long value, long count) {
+		counts.addAndGet(indexOf(value), count);
+		totalCount.add(count);
+		sum.add(value * count);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records the value and, as HdrHistogram does, back-fills the samples a
+	 * closed-loop client missed while it waited: one at value - interval,
+	 * value - 2 * interval and so on down to the expected interval.
+	 */
+	public void recordCorrected(long value, long expectedInterval) {
+		recordCorrectedCount(value, 1, expectedInterval);
+	}
+
+	private void recordCorrectedCount(long value, long count, long expectedInterval) {
+		recordCount(value, count);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+			recordCount(missing, count);
+		}
+	}
+
+	public Histogram copyCorrectedForCoordinatedOmission(long expectedInterval) {
+		Histogram copy = new Histogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = counts.get(i);
+			if (count > 0) {
+				copy.recordCorrectedCount(Math.min(highestValueAt(i), getMax()), count, expectedInterval);
+			}
+		}
+		return copy;
+	}
+
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count > 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		totalCount.add(other.totalCount.sum());
+		sum.add(other.sum.sum());
+		long value = other.max.get();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	public long getTotalCount() {
+		return totalCount.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getTotalCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Number of recorded values equivalent to (within the same bucket as) or below the given value.
+	 */
+	public long getCountAtOrBelow(long value) {
+		long count = 0;
+		int last = indexOf(Math.max(0, value));
+		for (int i = 0; i <= last; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * {@link #getCountAtOrBelow(long)} for each of the ascending values, in one pass over the buckets.
+	 */
+	public long[] getCountsAtOrBelow(long[] values) {
+		long[] result = new long[values.length];
+		long count = 0;
+		int i = 0;
+		for (int v = 0; v < values.length; v++) {
+			int last = indexOf(Math.max(0, values[v]));
+			for (; i <= last; i++) {
+				count += counts.get(i);
+			}
+			result[v] = count;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the highest value equivalent to the one at the given percentile (0-100).
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getTotalCount();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Prints the percentile distribution in the HdrHistogram text format,
+	 * values divided by the given scale (e.g. 1e6 for nanoseconds to milliseconds).
+	 */
+	public void outputPercentileDistribution(PrintStream out, double scale) {
+		out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		long total = getTotalCount();
+		long last = -1;
+		// HdrHistogram style: every halving of the distance to 100% gets the same number of rows
+		for (int half = 0; total > 0 && half < 64; half++) {
+			double low = 100 * (1 - Math.pow(0.5, half));
+			double high = 100 * (1 - Math.pow(0.5, half + 1));
+			for (int tick = 0; tick < TICKS_PER_HALF_DISTANCE; tick++) {
+				long value = getValueAtPercentile(low + (high - low) * tick / TICKS_PER_HALF_DISTANCE);
+				if (value == last) {
+					continue;
+				}
+				last = value;
+				long below = getCountAtOrBelow(value);
+				if (below >= total) {
+					out.printf("%12.3f %2.12f %10d%n", value / scale, 1.0, total);
+					half = 64;
+					break;
+				}
+				double reached = (double) below / total;
+				out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale, reached, below, 1 / (1 - reached));
+			}
+		}
+		out.printf("#[Mean    = %12.3f, Max = %12.3f]%n", getMean() / scale, getMax() / scale);
+		out.printf("#[Total count = %12d]%n", total);
+	}
+}
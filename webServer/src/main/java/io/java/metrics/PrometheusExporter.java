@@ -0,0 +1,163 @@
+package io.java.metrics;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+import io.java.ConnectionTimeouts;
+import io.java.server.AccessLog;
+import io.java.server.BufferPool;
+import io.java.server.HttpRequest;
+import io.java.server.HttpResponse;
+import io.java.server.Method;
+import io.java.server.RouteHandler;
+import io.java.server.RouteMatch;
+import io.java.server.Status;
+
+/**
+ * Serves {@link ServerMetrics} in the Prometheus text exposition format
+ * https://prometheus.io/docs/instrumenting/exposition_formats/
+ *
+ * Everything is read from the lock-free counters and histograms at scrape
+ * time, nothing is recorded on the request path for it. Latency histograms
+ * are reported in seconds with fixed bucket bounds; a bucket may include
+ * values up to 1.6% above its bound, the resolution of {@link Histogram}.
+ */
+public class PrometheusExporter implements RouteHandler {
+
+	private static final double[] BOUNDS_SECONDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+			0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length + 1];
+
+	private static final String[] BOUND_LABELS = new String[BOUNDS_SECONDS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+			BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1e9);
+			BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS_SECONDS[i]).stripTrailingZeros().toPlainString();
+		}
+		BOUNDS_NANOS[BOUNDS_SECONDS.length] = Long.MAX_VALUE;
+	}
+
+	private final ServerMetrics metrics;
+
+	private final List<Gauge> gauges = new ArrayList<Gauge>();
+
+	public PrometheusExporter(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds a gauge read at scrape time, e.g. from the admission control of a server.
+	 */
+	public PrometheusExporter addGauge(String name, String help, LongSupplier value) {
+		gauges.add(new Gauge(name, help, value));
+		return this;
+	}
+
+	@Override
+	public HttpResponse handle(HttpRequest request, RouteMatch match) {
+		HttpResponse res = new HttpResponse(request, Status._200, null, scrape());
+		res.addHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		return res;
+	}
+
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+
+		header(out, "http_requests_total", "counter", "Completed requests by method and status.");
+		for (Status status : Status.values()) {
+			for (Method method : Method.values()) {
+				long count = metrics.getRequests(method, status);
+				if (count > 0) {
+					out.append("http_requests_total{method=\"")
+							.append(method == Method.UNRECOGNIZED ? "other" : method.name())
+							.append("\",status=\"").append(status.name().substring(1)).append("\"} ")
+							.append(count).append('\n');
+				}
+			}
+		}
+		counter(out, "http_response_bytes_total", "Response body bytes sent.", metrics.getBytesSent());
+		counter(out, "http_errors_total", "Connections that failed with an I/O or server error.",
+				metrics.getErrors());
+
+		header(out, "http_rejected_total", "counter", "Connections and requests rejected with a 503.");
+		sample(out, "http_rejected_total{reason=\"connection\"}", metrics.getRejectedConnections());
+		sample(out, "http_rejected_total{reason=\"request\"}", metrics.getRejectedRequests());
+
+		header(out, "http_timeouts_total", "counter", "Connections closed by a timeout, by phase.");
+		for (ConnectionTimeouts.Phase phase : ConnectionTimeouts.Phase.values()) {
+			sample(out, "http_timeouts_total{phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"}",
+					metrics.getTimeouts(phase));
+		}
+		counter(out, "http_access_log_dropped_total", "Access log lines dropped because the ring was full.",
+				AccessLog.INSTANCE.getDropped());
+		counter(out, "http_buffers_allocated_total", "Direct buffers allocated because the pool had none.",
+				BufferPool.INSTANCE.getAllocated());
+		counter(out, "http_buffer_leaks_total", "Pooled buffers collected without being released.",
+				BufferPool.INSTANCE.getLeaks());
+
+		header(out, "http_handlers_active", "gauge", "Connections currently held by a serving thread.");
+		sample(out, "http_handlers_active", metrics.getActive());
+		for (Gauge gauge : gauges) {
+			header(out, gauge.name, "gauge", gauge.help);
+			sample(out, gauge.name, gauge.value.getAsLong());
+		}
+
+		histogram(out, "http_accept_queue_wait_seconds",
+				"Time an accepted connection (NIO: a parsed request) waits for a serving thread.",
+				metrics.getQueueWait());
+		histogram(out, "http_request_parse_seconds", "Time from the first byte of a request to its parsed head.",
+				metrics.getParse());
+		histogram(out, "http_request_handle_seconds", "Time spent building responses.", metrics.getHandle());
+		histogram(out, "http_response_write_seconds", "Time spent writing responses.", metrics.getWrite());
+		histogram(out, "http_accept_to_first_byte_seconds",
+				"Time from accepting a connection until its first response starts.", metrics.getAcceptToFirstByte());
+		return out.toString();
+	}
+
+	private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+		header(out, name, "histogram", help);
+		long[] counts = histogram.getCountsAtOrBelow(BOUNDS_NANOS);
+		for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+			out.append(name).append("_bucket{le=\"").append(BOUND_LABELS[i]).append("\"} ").append(counts[i])
+					.append('\n');
+		}
+		long total = counts[BOUNDS_SECONDS.length];
+		out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+		out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+		out.append(name).append("_count ").append(total).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, "counter", help);
+		sample(out, name, value);
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String series, long value) {
+		out.append(series).append(' ').append(value).append('\n');
+	}
+
+	private static class Gauge {
+
+		final String name;
+
+		final String help;
+
+		final LongSupplier value;
+
+		Gauge(String name, String help, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.value = value;
+		}
+	}
+}
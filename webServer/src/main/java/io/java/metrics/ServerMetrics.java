@@ -0,0 +1,192 @@
+package io.java.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.java.ConnectionTimeouts;
+import io.java.server.Method;
+import io.java.server.Status;
+
+/**
+ * Process-wide request counters and latency histograms. Every method is a
+ * single LongAdder or lock-free {@link Histogram} update, so recording never
+ * contends between request threads.
+ */
+public class ServerMetrics {
+
+	private static final Method[] METHODS = Method.values();
+
+	private static final Status[] STATUSES = Status.values();
+
+	public static final ServerMetrics INSTANCE = new ServerMetrics();
+
+	private final LongAdder requests = new LongAdder();
+
+	/**
+	 * Completed requests by status and method, indexed status * methods + method.
+	 */
+	private final LongAdder[] responses = new LongAdder[STATUSES.length * METHODS.length];
+
+	private final LongAdder bytesSent = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private final LongAdder active = new LongAdder();
+
+	private final LongAdder rejectedConnections = new LongAdder();
+
+	private final LongAdder rejectedRequests = new LongAdder();
+
+	private final LongAdder[] timeouts = new LongAdder[ConnectionTimeouts.Phase.values().length];
+
+	{
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = new LongAdder();
+		}
+		for (int i = 0; i < responses.length; i++) {
+			responses[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Nanoseconds from accepting a connection until its response starts to be written.
+	 */
+	private final Histogram acceptToFirstByte = new Histogram();
+
+	/**
+	 * Nanoseconds an accepted connection, or with NIO a parsed request, waits for a serving thread.
+	 */
+	private final Histogram queueWait = new Histogram();
+
+	/**
+	 * Nanoseconds from the first byte of a request until its head is parsed.
+	 */
+	private final Histogram parse = new Histogram();
+
+	/**
+	 * Nanoseconds spent building the response, in route handlers or on static files.
+	 */
+	private final Histogram handle = new Histogram();
+
+	/**
+	 * Nanoseconds spent writing the response to the client.
+	 */
+	private final Histogram write = new Histogram();
+
+	public void handlerStarted() {
+		active.increment();
+	}
+
+	public void handlerFinished() {
+		active.decrement();
+	}
+
+	/**
+	 * Records a written response; method is null when the request could not be parsed.
+	 */
+	public void requestCompleted(Method method, Status status, long bytes) {
+		requests.increment();
+		bytesSent.add(bytes);
+		responses[index(method, status)].increment();
+	}
+
+	private static int index(Method method, Status status) {
+		return status.ordinal() * METHODS.length + (method == null ? Method.UNRECOGNIZED : method).ordinal();
+	}
+
+	public void error() {
+		errors.increment();
+	}
+
+	public void connectionRejected() {
+		rejectedConnections.increment();
+	}
+
+	public void requestRejected() {
+		rejectedRequests.increment();
+	}
+
+	public void timedOut(ConnectionTimeouts.Phase phase) {
+		timeouts[phase.ordinal()].increment();
+	}
+
+	public void firstByte(long nanosSinceAccept) {
+		acceptToFirstByte.record(nanosSinceAccept);
+	}
+
+	public void queued(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	public void parsed(long nanos) {
+		parse.record(nanos);
+	}
+
+	public void handled(long nanos) {
+		handle.record(nanos);
+	}
+
+	public void written(long nanos) {
+		write.record(nanos);
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Completed requests with the given method (null for unparsable ones) and status.
+	 */
+	public long getRequests(Method method, Status status) {
+		return responses[index(method, status)].sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * Connections currently being handled.
+	 */
+	public long getActive() {
+		return active.sum();
+	}
+
+	public long getRejectedConnections() {
+		return rejectedConnections.sum();
+	}
+
+	public long getRejectedRequests() {
+		return rejectedRequests.sum();
+	}
+
+	/**
+	 * Connections closed because the given phase took longer than its timeout.
+	 */
+	public long getTimeouts(ConnectionTimeouts.Phase phase) {
+		return timeouts[phase.ordinal()].sum();
+	}
+
+	public Histogram getAcceptToFirstByte() {
+		return acceptToFirstByte;
+	}
+
+	public Histogram getQueueWait() {
+		return queueWait;
+	}
+
+	public Histogram getParse() {
+		return parse;
+	}
+
+	public Histogram getHandle() {
+		return handle;
+	}
+
+	public Histogram getWrite() {
+		return write;
+	}
+}
@@ -0,0 +1,225 @@
+package io.java.server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * AccessLog writes one Common Log Format line per request without blocking
+ * the request threads. A request thread claims a slot of a fixed-size ring
+ * buffer with a CAS and fills in a fixed-size record; a single background
+ * thread formats the published records and flushes them in batches. When the
+ * ring is full the record is dropped and counted rather than waited for.
+ *
+ * The target is taken from the "server.accessLog" system property: "-" for
+ * stdout (the default), "off", or a file name to append to.
+ */
+public class AccessLog implements Runnable {
+
+	private static Logger log = Logger.getLogger(AccessLog.class);
+
+	public static final AccessLog INSTANCE = new AccessLog(System.getProperty("server.accessLog", "-"));
+
+	static final int CAPACITY = 8192;
+
+	static final int URI_LENGTH = 256;
+
+	static final int BATCH_SIZE = 512;
+
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+			.withZone(ZoneId.systemDefault());
+
+	private final Record[] ring = new Record[CAPACITY];
+
+	private final AtomicLong claimed = new AtomicLong();
+
+	private final AtomicLong consumed = new AtomicLong();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final Writer out;
+
+	private volatile boolean running = true;
+
+	private Thread writer;
+
+	AccessLog(String target) {
+		for (int i = 0; i < CAPACITY; i++) {
+			ring[i] = new Record(i - CAPACITY);
+		}
+		out = open(target);
+		if (out != null) {
+			writer = new Thread(this, "access-log-writer");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+		}
+	}
+
+	private static Writer open(String target) {
+		if ("off".equalsIgnoreCase(target)) {
+			return null;
+		}
+		if ("-".equals(target)) {
+			return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1), 1 << 16);
+		}
+		try {
+			return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target, true),
+					StandardCharsets.ISO_8859_1), 1 << 16);
+		} catch (IOException e) {
+			log.error("Access log disabled, can not open " + target, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Records one request; never blocks. Method, uri and version may be null
+	 * for requests that could not be parsed.
+	 */
+	public void log(InetAddress remote, Method method, String uri, String version, int status, long bytes,
+			long startNanos) {
+		if (out == null) {
+			return;
+		}
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed.get() >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		Record record = ring[(int) (sequence & (CAPACITY - 1))];
+		record.time = System.currentTimeMillis();
+		record.nanos = System.nanoTime() - startNanos;
+		record.remote = remote;
+		record.method = method;
+		record.version = version;
+		record.status = status;
+		record.bytes = bytes;
+		int length = uri == null ? 0 : Math.min(uri.length(), URI_LENGTH);
+		for (int i = 0; i < length; i++) {
+			record.uri[i] = (byte) uri.charAt(i);
+		}
+		record.uriLength = uri == null ? -1 : length;
+		record.publish(sequence);
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void run() {
+		StringBuilder line = new StringBuilder(URI_LENGTH + 128);
+		long next = consumed.get();
+		int pending = 0;
+		try {
+			while (true) {
+				Record record = ring[(int) (next & (CAPACITY - 1))];
+				if (record.published() == next) {
+					line.setLength(0);
+					record.format(line);
+					consumed.lazySet(++next);
+					out.append(line);
+					if (++pending == BATCH_SIZE) {
+						out.flush();
+						pending = 0;
+					}
+				} else if (pending > 0) {
+					out.flush();
+					pending = 0;
+				} else if (!running && claimed.get() == next) {
+					return;
+				} else {
+					LockSupport.parkNanos(1_000_000);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Access log writer failed", e);
+		}
+	}
+
+	public void close() {
+		running = false;
+		if (writer != null) {
+			try {
+				writer.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * A preallocated slot; the volatile sequence is written last so the writer
+	 * thread sees a fully filled record.
+	 */
+	static class Record {
+
+		private volatile long sequence;
+
+		final byte[] uri = new byte[URI_LENGTH];
+
+		int uriLength;
+
+		long time;
+
+		long nanos;
+
+		InetAddress remote;
+
+		Method method;
+
+		String version;
+
+		int status;
+
+		long bytes;
+
+		Record(long sequence) {
+			this.sequence = sequence;
+		}
+
+		void publish(long sequence) {
+			this.sequence = sequence;
+		}
+
+		long published() {
+			return sequence;
+		}
+
+		void format(StringBuilder line) {
+			line.append(remote == null ? "-" : remote.getHostAddress());
+			line.append(" - - [");
+			DATE.formatTo(Instant.ofEpochMilli(time), line);
+			line.append("] \"");
+			if (uriLength < 0) {
+				line.append('-');
+			} else {
+				line.append(method == null ? "-" : method.name()).append(' ');
+				for (int i = 0; i < uriLength; i++) {
+					line.append((char) (uri[i] & 0xff));
+				}
+				line.append(' ').append(version);
+			}
+			line.append("\" ").append(status).append(' ');
+			line.append(bytes).append(' ').append(nanos / 1000).append("us\n");
+			remote = null;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package io.java.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request can not be parsed, carries the status to answer with.
+ */
+public class BadRequestException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Status status;
+
+	public BadRequestException(Status status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+}
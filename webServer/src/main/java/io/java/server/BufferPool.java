@@ -0,0 +1,318 @@
+package io.java.server;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * BufferPool hands out direct ByteBuffers for socket reads and writes in
+ * size classes of 4, 16 and 64 KB, so the request path does not allocate a
+ * buffer per connection or response, and channel I/O needs no copy through a
+ * temporary direct buffer as it does for heap buffers.
+ *
+ * Every platform thread caches a few buffers of each class, so an acquire
+ * and release on the same thread touch no shared state; the rest go to one
+ * shared stack per class, up to the "server.bufferPoolSize" system property
+ * in bytes (64 MB by default, 0 turns pooling off and allocates a heap buffer
+ * per acquire). Virtual threads skip the cache, there are too many of them
+ * and they do not live long enough to reuse it. The buffers a thread cached
+ * go back to the shared stacks once the thread is gone.
+ *
+ * With the "server.bufferLeakDetection" system property set, each acquire
+ * records its stack trace and hands out a view of the pooled buffer; a view
+ * that is garbage collected without being released is logged as a leak and
+ * its buffer returned to the pool. Releasing a buffer twice is logged too.
+ */
+public class BufferPool {
+
+	private static Logger log = Logger.getLogger(BufferPool.class);
+
+	static final int[] SIZES = { 4096, 16384, 65536 };
+
+	/**
+	 * Largest pooled buffer; larger requests get a heap buffer that is not pooled.
+	 */
+	public static final int MAX_SIZE = SIZES[SIZES.length - 1];
+
+	/**
+	 * Bytes of each size class a thread keeps for itself.
+	 */
+	static final int THREAD_CACHE_BYTES = 65536;
+
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	public static final BufferPool INSTANCE = new BufferPool(Long.getLong("server.bufferPoolSize", 64L << 20),
+			Boolean.getBoolean("server.bufferLeakDetection"));
+
+	private final Stack[] shared = new Stack[SIZES.length];
+
+	private final ThreadLocal<Stack[]> caches = ThreadLocal.withInitial(this::newCache);
+
+	private final boolean leakDetection;
+
+	private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	/**
+	 * Outstanding views by identity hash code, chained on collisions; only used with leak detection.
+	 */
+	private final Map<Integer, Leak> tracked = new HashMap<Integer, Leak>();
+
+	private final LongAdder allocated = new LongAdder();
+
+	private final LongAdder leaks = new LongAdder();
+
+	private volatile boolean enabled;
+
+	public BufferPool(long maxPooledBytes, boolean leakDetection) {
+		for (int i = 0; i < SIZES.length; i++) {
+			shared[i] = new Stack((int) Math.min(Integer.MAX_VALUE, maxPooledBytes / SIZES.length / SIZES[i]));
+		}
+		this.enabled = maxPooledBytes > 0;
+		this.leakDetection = leakDetection;
+	}
+
+	/**
+	 * Returns a cleared buffer of at least the given capacity, to be handed back with {@link #release}.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass < 0 || !enabled) {
+			return ByteBuffer.allocate(sizeClass < 0 ? capacity : SIZES[sizeClass]);
+		}
+		if (leakDetection) {
+			reportLeaks();
+		}
+		ByteBuffer buffer = null;
+		Stack[] cache = cache();
+		if (cache != null) {
+			buffer = cache[sizeClass].pop();
+		}
+		if (buffer == null) {
+			Stack stack = shared[sizeClass];
+			synchronized (stack) {
+				buffer = stack.pop();
+			}
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]);
+			allocated.increment();
+		}
+		buffer.clear();
+		return leakDetection ? track(buffer) : buffer;
+	}
+
+	/**
+	 * Hands a buffer from {@link #acquire} back; it must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			// heap buffers are not pooled, the garbage collector takes them
+			return;
+		}
+		if (leakDetection) {
+			buffer = untrack(buffer);
+			if (buffer == null) {
+				return;
+			}
+		}
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass < 0 || SIZES[sizeClass] != buffer.capacity()) {
+			throw new IllegalArgumentException("Not a pooled buffer: " + buffer);
+		}
+		Stack[] cache = cache();
+		if (cache != null && cache[sizeClass].push(buffer)) {
+			return;
+		}
+		Stack stack = shared[sizeClass];
+		synchronized (stack) {
+			stack.push(buffer);
+		}
+	}
+
+	/**
+	 * Turns pooling on or off, e.g. to compare allocation rates; buffers acquired before stay valid.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Number of direct buffers allocated because none was pooled.
+	 */
+	public long getAllocated() {
+		return allocated.sum();
+	}
+
+	/**
+	 * Number of buffers garbage collected without being released, counted with leak detection only.
+	 */
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	private static int sizeClass(int capacity) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (capacity <= SIZES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Stack[] cache() {
+		return Thread.currentThread().isVirtual() ? null : caches.get();
+	}
+
+	private Stack[] newCache() {
+		Stack[] cache = new Stack[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			cache[i] = new Stack(Math.max(1, THREAD_CACHE_BYTES / SIZES[i]));
+		}
+		// hand the buffers to the shared stacks once the thread is collected
+		CLEANER.register(Thread.currentThread(), new Reclaim(cache, shared));
+		return cache;
+	}
+
+	private ByteBuffer track(ByteBuffer buffer) {
+		ByteBuffer view = buffer.duplicate();
+		Leak leak = new Leak(view, buffer, collected);
+		synchronized (tracked) {
+			leak.next = tracked.put(leak.key, leak);
+		}
+		return view;
+	}
+
+	/**
+	 * Returns the pooled buffer behind a view, or null if the view was not outstanding.
+	 */
+	private ByteBuffer untrack(ByteBuffer view) {
+		int key = System.identityHashCode(view);
+		synchronized (tracked) {
+			for (Leak leak = tracked.get(key), previous = null; leak != null; previous = leak, leak = leak.next) {
+				if (leak.refersTo(view)) {
+					unlink(leak, previous);
+					leak.clear();
+					return leak.pooled;
+				}
+			}
+		}
+		log.error("Buffer released twice or not acquired from the pool", new IllegalStateException());
+		return null;
+	}
+
+	private void unlink(Leak leak, Leak previous) {
+		if (previous != null) {
+			previous.next = leak.next;
+		} else if (leak.next != null) {
+			tracked.put(leak.key, leak.next);
+		} else {
+			tracked.remove(leak.key);
+		}
+	}
+
+	private void reportLeaks() {
+		Leak leak;
+		while ((leak = (Leak) collected.poll()) != null) {
+			synchronized (tracked) {
+				for (Leak l = tracked.get(leak.key), previous = null; l != null; previous = l, l = l.next) {
+					if (l == leak) {
+						unlink(leak, previous);
+						break;
+					}
+				}
+			}
+			leaks.increment();
+			log.error("Buffer of " + leak.pooled.capacity() + " bytes was not released, acquired at", leak.acquiredAt);
+			ByteBuffer buffer = leak.pooled;
+			Stack stack = shared[sizeClass(buffer.capacity())];
+			synchronized (stack) {
+				stack.push(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Bounded LIFO of buffers, LIFO so the most recently used and likely cached memory goes out first.
+	 */
+	private static class Stack {
+
+		private final ByteBuffer[] buffers;
+
+		private int size;
+
+		Stack(int capacity) {
+			buffers = new ByteBuffer[capacity];
+		}
+
+		ByteBuffer pop() {
+			if (size == 0) {
+				return null;
+			}
+			ByteBuffer buffer = buffers[--size];
+			buffers[size] = null;
+			return buffer;
+		}
+
+		/**
+		 * Returns false, dropping the buffer, when the stack is full.
+		 */
+		boolean push(ByteBuffer buffer) {
+			if (size == buffers.length) {
+				return false;
+			}
+			buffers[size++] = buffer;
+			return true;
+		}
+	}
+
+	private static class Reclaim implements Runnable {
+
+		private final Stack[] cache;
+
+		private final Stack[] shared;
+
+		Reclaim(Stack[] cache, Stack[] shared) {
+			this.cache = cache;
+			this.shared = shared;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < cache.length; i++) {
+				ByteBuffer buffer;
+				while ((buffer = cache[i].pop()) != null) {
+					synchronized (shared[i]) {
+						shared[i].push(buffer);
+					}
+				}
+			}
+		}
+	}
+
+	private static class Leak extends PhantomReference<ByteBuffer> {
+
+		final int key;
+
+		final ByteBuffer pooled;
+
+		final Throwable acquiredAt = new Throwable("Buffer acquired here");
+
+		Leak next;
+
+		Leak(ByteBuffer view, ByteBuffer pooled, ReferenceQueue<ByteBuffer> queue) {
+			super(view, queue);
+			this.key = System.identityHashCode(view);
+			this.pooled = pooled;
+		}
+	}
+}
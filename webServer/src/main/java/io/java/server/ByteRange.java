@@ -0,0 +1,92 @@
+package io.java.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ByteRange is one satisfiable range of a "Range: bytes=..." header, resolved
+ * against the length of the file http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35
+ */
+public class ByteRange {
+
+	static final int MAX_RANGES = 32;
+
+	private static final String UNIT = "bytes=";
+
+	final long start;
+
+	final long end;
+
+	ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long length() {
+		return end - start + 1;
+	}
+
+	public String contentRange(long total) {
+		return "bytes " + start + "-" + end + "/" + total;
+	}
+
+	/**
+	 * Returns null when the header is malformed (and must be ignored), an empty
+	 * list when no range is satisfiable, otherwise the ranges in request order.
+	 */
+	public static List<ByteRange> parse(String header, long total) {
+		if (header == null || !header.regionMatches(true, 0, UNIT, 0, UNIT.length())) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		int count = 0;
+		int from = UNIT.length();
+		while (from <= header.length()) {
+			int comma = header.indexOf(',', from);
+			if (comma < 0) {
+				comma = header.length();
+			}
+			String spec = header.substring(from, comma).trim();
+			from = comma + 1;
+			if (spec.isEmpty()) {
+				continue;
+			}
+			if (++count > MAX_RANGES) {
+				return null;
+			}
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first;
+			long last;
+			try {
+				if (dash == 0) {
+					// suffix range: the final N bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix < 0) {
+						return null;
+					}
+					first = Math.max(0, total - suffix);
+					last = total - 1;
+					if (suffix == 0) {
+						continue;
+					}
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (first < 0 || last < first) {
+						return null;
+					}
+					last = Math.min(last, total - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (first < total) {
+				ranges.add(new ByteRange(first, last));
+			}
+		}
+		return count == 0 ? null : ranges;
+	}
+}
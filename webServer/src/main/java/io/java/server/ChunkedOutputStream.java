@@ -0,0 +1,117 @@
+package io.java.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ChunkedOutputStream frames what is written to it with the chunked transfer
+ * coding http://tools.ietf.org/html/rfc7230#section-4.1
+ *
+ * Small writes are collected into one chunk of up to the buffer size; a
+ * write at least that large goes out as its own chunk without being copied.
+ * {@link #finish()} writes the last chunk; the underlying stream is never closed.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+
+	private final byte[] buffer;
+
+	private int count;
+
+	private long written;
+
+	private boolean finished;
+
+	public ChunkedOutputStream(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public ChunkedOutputStream(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushChunk();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("Chunked stream already finished");
+		}
+		if (len >= buffer.length) {
+			flushChunk();
+			writeChunk(b, off, len);
+		} else {
+			if (len > buffer.length - count) {
+				flushChunk();
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Sends the buffered bytes as a chunk.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushChunk();
+		out.flush();
+	}
+
+	/**
+	 * Sends the buffered bytes and the last chunk.
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			flushChunk();
+			out.write(LAST_CHUNK);
+			out.flush();
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	/**
+	 * Payload bytes written so far, without chunk framing.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	private void flushChunk() throws IOException {
+		if (count > 0) {
+			writeChunk(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			// an empty chunk would end the body
+			return;
+		}
+		out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(b, off, len);
+		out.write(CRLF);
+		written += len;
+	}
+}
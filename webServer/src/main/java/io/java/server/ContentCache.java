@@ -0,0 +1,178 @@
+package io.java.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ContentCache keeps the compressed variants of static files, so a file is
+ * compressed once per version and encoding rather than once per request. A
+ * version is the file's length and modification time; a changed file is
+ * compressed again on its next request. Cached variants use the best
+ * compression level since the cost is paid only once, the least recently
+ * used are evicted beyond the "server.contentCacheSize" system property in
+ * bytes (32 MB by default).
+ *
+ * The "server.compression" system property turns compression off with
+ * "off", "server.compressionMinSize" sets the smallest body worth
+ * compressing (1024 bytes by default). Files too large for the cache are
+ * compressed while they are sent, see {@link HttpResponse}.
+ */
+public class ContentCache {
+
+	public static final ContentCache INSTANCE = new ContentCache(
+			!"off".equalsIgnoreCase(System.getProperty("server.compression", "on")),
+			Long.getLong("server.compressionMinSize", 1024), Long.getLong("server.contentCacheSize", 32L << 20));
+
+	/**
+	 * Largest file kept compressed, as a fraction of the cache size.
+	 */
+	static final int MAX_ENTRY_FRACTION = 16;
+
+	private final boolean enabled;
+
+	private final long minSize;
+
+	private final long maxBytes;
+
+	/**
+	 * Variants in access order; a variant being compressed is already here so concurrent requests wait for it.
+	 */
+	private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<String, Variant>(64, 0.75f, true);
+
+	private long size;
+
+	public ContentCache(boolean enabled, long minSize, long maxBytes) {
+		this.enabled = enabled;
+		this.minSize = minSize;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Whether a body of the given type and length is compressed for clients
+	 * that accept it, and so needs a Vary header; a negative length is a body
+	 * of unknown length.
+	 */
+	public boolean varies(ContentType type, long length) {
+		return enabled && type != null && type.isCompressible() && (length < 0 || length >= minSize);
+	}
+
+	public boolean isCacheable(long length) {
+		return length <= maxBytes / MAX_ENTRY_FRACTION;
+	}
+
+	/**
+	 * Returns the file compressed with the encoding, compressing it on a
+	 * miss; null when compressing does not make the file smaller.
+	 */
+	public byte[] get(File file, ContentEncoding encoding) throws IOException {
+		return get(file, file.length(), file.lastModified(), encoding);
+	}
+
+	/**
+	 * Like {@link #get(File, ContentEncoding)} with the version of the file
+	 * already known, as the {@link StaticIndex} has it.
+	 */
+	public byte[] get(File file, long length, long lastModified, ContentEncoding encoding) throws IOException {
+		String key = encoding + ":" + file.getPath();
+		Variant variant;
+		boolean compress = false;
+		synchronized (this) {
+			variant = variants.get(key);
+			if (variant == null || variant.length != length || variant.lastModified != lastModified) {
+				if (variant != null) {
+					remove(key, variant);
+				}
+				variant = new Variant(length, lastModified);
+				variants.put(key, variant);
+				compress = true;
+			}
+		}
+		if (compress) {
+			try {
+				byte[] compressed = compress(file, encoding);
+				variant.bytes.complete(compressed.length < length ? compressed : null);
+				added(key, variant, compressed.length < length ? compressed.length : 0);
+			} catch (IOException | RuntimeException e) {
+				synchronized (this) {
+					remove(key, variant);
+				}
+				variant.bytes.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return variant.bytes.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + file + " to be compressed", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Compressing " + file + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Bytes held by compressed variants.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private static byte[] compress(File file, ContentEncoding encoding) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, file.length() / 4));
+		try (InputStream in = Files.newInputStream(file.toPath());
+				DeflaterOutputStream compressed = encoding.wrap(out, Deflater.BEST_COMPRESSION)) {
+			in.transferTo(compressed);
+		}
+		return out.toByteArray();
+	}
+
+	private synchronized void added(String key, Variant variant, int bytes) {
+		if (variants.get(key) == variant) {
+			variant.size = bytes;
+			size += bytes;
+		}
+		Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+		while (size > maxBytes && eldest.hasNext()) {
+			Variant evicted = eldest.next().getValue();
+			if (evicted.bytes.isDone()) {
+				eldest.remove();
+				size -= evicted.size;
+			}
+		}
+	}
+
+	private void remove(String key, Variant variant) {
+		if (variants.remove(key, variant)) {
+			size -= variant.size;
+		}
+	}
+
+	private static class Variant {
+
+		final long length;
+
+		final long lastModified;
+
+		final CompletableFuture<byte[]> bytes = new CompletableFuture<byte[]>();
+
+		/**
+		 * Bytes counted against the cache size, set once compressed.
+		 */
+		int size;
+
+		Variant(long length, long lastModified) {
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package io.java.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content codings the server can compress responses with, in order of
+ * preference when a client accepts several with the same quality.
+ * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.3
+ */
+public enum ContentEncoding {
+	GZIP("gzip"), //
+	DEFLATE("deflate"); //
+
+	private static final ContentEncoding[] VALUES = values();
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String token;
+
+	private final byte[] headerBytes;
+
+	ContentEncoding(String token) {
+		this.token = token;
+		this.headerBytes = ("Content-Encoding: " + token + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Picks the coding with the highest quality in an Accept-Encoding value,
+	 * returns null when the client accepts none of them or sent no header.
+	 */
+	public static ContentEncoding negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double[] qualities = new double[VALUES.length];
+		Arrays.fill(qualities, -1);
+		double wildcard = -1;
+		for (String part : acceptEncoding.split(",")) {
+			int semicolon = part.indexOf(';');
+			String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+			double quality = semicolon < 0 ? 1 : quality(part.substring(semicolon + 1));
+			if (coding.equals("*")) {
+				wildcard = quality;
+			}
+			for (ContentEncoding encoding : VALUES) {
+				if (coding.equalsIgnoreCase(encoding.token)
+						|| (encoding == GZIP && coding.equalsIgnoreCase("x-gzip"))) {
+					qualities[encoding.ordinal()] = quality;
+				}
+			}
+		}
+		ContentEncoding best = null;
+		double bestQuality = 0;
+		for (ContentEncoding encoding : VALUES) {
+			double quality = qualities[encoding.ordinal()] >= 0 ? qualities[encoding.ordinal()] : wildcard;
+			if (quality > bestQuality) {
+				best = encoding;
+				bestQuality = quality;
+			}
+		}
+		return best;
+	}
+
+	private static double quality(String parameters) {
+		for (String parameter : parameters.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Compresses into out at the given {@link Deflater} level. Closing the
+	 * stream finishes the compressed data and releases the native compressor
+	 * but leaves out open. When writing the body fails, {@link #abort} the
+	 * stream instead, so the body does not end in a valid trailer.
+	 */
+	public DeflaterOutputStream wrap(OutputStream out, int level) throws IOException {
+		return this == GZIP ? new Gzip(out, level) : new Zlib(out, level);
+	}
+
+	/**
+	 * Releases the native compressor of a stream from {@link #wrap} without
+	 * finishing the compressed data, so a truncated body stays recognizably
+	 * incomplete.
+	 */
+	public static void abort(DeflaterOutputStream compressed) {
+		if (compressed instanceof Gzip gzip) {
+			gzip.abort();
+		} else if (compressed instanceof Zlib zlib) {
+			zlib.abort();
+		}
+	}
+
+	/**
+	 * The complete "Content-Encoding: ...\r\n" line.
+	 */
+	public byte[] getHeaderBytes() {
+		return headerBytes;
+	}
+
+	@Override
+	public String toString() {
+		return token;
+	}
+
+	private static class Gzip extends GZIPOutputStream {
+
+		private boolean closed;
+
+		Gzip(OutputStream out, int level) throws IOException {
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					finish();
+				} finally {
+					def.end();
+				}
+			}
+		}
+
+		void abort() {
+			if (!closed) {
+				closed = true;
+				def.end();
+			}
+		}
+	}
+
+	/**
+	 * The "deflate" coding is the zlib format, which is what DeflaterOutputStream writes by default.
+	 */
+	private static class Zlib extends DeflaterOutputStream {
+
+		private boolean closed;
+
+		Zlib(OutputStream out, int level) {
+			super(out, new Deflater(level), BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					finish();
+				} finally {
+					def.end();
+				}
+			}
+		}
+
+		void abort() {
+			if (!closed) {
+				closed = true;
+				def.end();
+			}
+		}
+	}
+}
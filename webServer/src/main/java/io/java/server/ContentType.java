@@ -1,46 +1,76 @@
 package io.java.server;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public enum ContentType {
-	CSS("CSS"), //
-	GIF("GIF"), //
-	HTM("HTM"), //
-	HTML("HTML"), //
-	ICO("ICO"), //
-	JPG("JPG"), //
-	JPEG("JPEG"), //
-	PNG("PNG"), //
-	TXT("TXT"), //
-	XML("XML"); //
-
-	private final String extension;
-
-	ContentType(String extension) {
-		this.extension = extension;
+	CSS("text/css", true), //
+	GIF("image/gif", false), //
+	HTM("text/html", true), //
+	HTML("text/html", true), //
+	ICO("image/gif", false), //
+	JPG("image/jpeg", false), //
+	JPEG("image/jpeg", false), //
+	PNG("image/png", false), //
+	TXT("text/plain", true), //
+	XML("text/xml", true); //
+
+	private static final Map<String, ContentType> EXTENSIONS = new HashMap<String, ContentType>();
+
+	static {
+		for (ContentType type : values()) {
+			EXTENSIONS.put(type.name().toLowerCase(Locale.ROOT), type);
+		}
+	}
+
+	private final String mimeType;
+
+	private final String header;
+
+	/**
+	 * The complete "Content-Type: ...\r\n" line, encoded once and shared by all responses.
+	 */
+	private final byte[] headerBytes;
+
+	private final boolean compressible;
+
+	ContentType(String mimeType, boolean compressible) {
+		this.mimeType = mimeType;
+		this.compressible = compressible;
+		this.header = "Content-Type: " + mimeType;
+		this.headerBytes = (header + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Looks the extension of the last path segment up, returns null for unknown or missing extensions.
+	 */
+	public static ContentType forPath(String path) {
+		int dot = path.lastIndexOf('.');
+		if (dot < 0 || dot < path.lastIndexOf('/')) {
+			return null;
+		}
+		return EXTENSIONS.get(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public byte[] getHeaderBytes() {
+		return headerBytes;
+	}
+
+	/**
+	 * Whether the type is text that shrinks when compressed; images already are compressed.
+	 */
+	public boolean isCompressible() {
+		return compressible;
 	}
 
 	@Override
 	public String toString() {
-		switch (this) {
-			case CSS:
-				return "Content-Type: text/css";
-			case GIF:
-				return "Content-Type: image/gif";
-			case HTM:
-			case HTML:
-				return "Content-Type: text/html";
-			case ICO:
-				return "Content-Type: image/gif";
-			case JPG:
-			case JPEG:
-				return "Content-Type: image/jpeg";
-			case PNG:
-				return "Content-Type: image/png";
-			case TXT:
-				return "Content-type: text/plain";
-			case XML:
-				return "Content-type: text/xml";
-			default:
-				return null;
-		}
+		return header;
 	}
 }
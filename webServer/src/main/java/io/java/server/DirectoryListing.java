@@ -0,0 +1,333 @@
+package io.java.server;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import io.java.server.HttpResponse.BodyWriter;
+
+/**
+ * DirectoryListing renders the index page of a directory. Entries are
+ * streamed from a DirectoryStream straight into the response, so a
+ * directory with a million entries never has to fit in memory; they come in
+ * file system order since sorting would need them all at once.
+ *
+ * A listing that renders to at most {@link #MAX_CACHED} bytes is kept and
+ * served from memory until its directory changes. Each cached directory is
+ * registered with a WatchService, whose events drop the listing; a change
+ * while a listing is rendered keeps it from being cached. The least
+ * recently used listings are evicted beyond the "server.listingCacheSize"
+ * system property in bytes (8 MB by default).
+ */
+public class DirectoryListing {
+
+	private static Logger log = Logger.getLogger(DirectoryListing.class);
+
+	public static final int MAX_CACHED = 256 * 1024;
+
+	static final int MAX_DIRECTORIES = 1024;
+
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm", Locale.US)
+			.withZone(ZoneId.systemDefault());
+
+	public static final DirectoryListing INSTANCE = new DirectoryListing(Long.getLong("server.listingCacheSize",
+			8L << 20));
+
+	private final long maxBytes;
+
+	/**
+	 * Watched directories in access order, with their listing once one was cached.
+	 */
+	private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<Path, Listing>(16, 0.75f, true);
+
+	private long size;
+
+	private WatchService watcher;
+
+	private boolean watchFailed;
+
+	public DirectoryListing(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * The cached listing of the directory, or null when it has to be rendered.
+	 */
+	public synchronized byte[] get(Path dir) {
+		Listing listing = listings.get(key(dir));
+		return listing != null ? listing.html : null;
+	}
+
+	/**
+	 * Streams the listing of the directory and caches it if it is small enough.
+	 */
+	public BodyWriter writer(Path dir) {
+		return out -> render(key(dir), out);
+	}
+
+	/**
+	 * Bytes held by cached listings.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private static Path key(Path dir) {
+		return dir.toAbsolutePath().normalize();
+	}
+
+	private void render(Path dir, OutputStream out) throws IOException {
+		Listing listing = watch(dir);
+		long generation = listing != null ? listing.generation : 0;
+		Capture capture = new Capture(out, listing != null ? MAX_CACHED : 0);
+		Writer html = new BufferedWriter(new OutputStreamWriter(capture, StandardCharsets.UTF_8));
+		Path root = Paths.get("").toAbsolutePath().normalize();
+		String title = escape("/" + (dir.equals(root) ? "" : root.relativize(dir).toString().replace('\\', '/') + "/"));
+		html.write("<html><head><meta charset=\"utf-8\"><title>Index of ");
+		html.write(title);
+		html.write("</title></head><body><h1>Index of ");
+		html.write(title);
+		html.write("</h1><hr><pre>");
+		if (!dir.equals(root)) {
+			html.write("<a href=\"../\">Parent Directory</a>\n");
+		}
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				writeEntry(html, entry);
+			}
+		}
+		html.write("</pre><hr></body></html>\n");
+		html.flush();
+		if (listing != null) {
+			store(listing, generation, capture.captured());
+		}
+	}
+
+	private static void writeEntry(Writer html, Path entry) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+		} catch (IOException e) {
+			// removed while listing, or a dangling link
+			return;
+		}
+		String name = entry.getFileName().toString() + (attributes.isDirectory() ? "/" : "");
+		html.write("<a href=\"");
+		html.write(URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20").replace("%2F", "/"));
+		html.write("\">");
+		html.write(escape(name));
+		html.write("</a>");
+		for (int i = name.length(); i < 50; i++) {
+			html.write(' ');
+		}
+		html.write(' ');
+		html.write(DATE.format(attributes.lastModifiedTime().toInstant()));
+		html.write(attributes.isDirectory() ? "          -\n" : String.format("%11d\n", attributes.size()));
+	}
+
+	private static String escape(String text) {
+		StringBuilder escaped = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String replacement = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '"' ? "&quot;" : null;
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+			}
+			if (escaped != null) {
+				if (replacement != null) {
+					escaped.append(replacement);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped != null ? escaped.toString() : text;
+	}
+
+	/**
+	 * Registers the directory with the watch service before it is listed, so
+	 * a change during the listing is noticed; null when it can not be watched.
+	 */
+	private synchronized Listing watch(Path dir) {
+		Listing listing = listings.get(dir);
+		if (listing != null) {
+			return listing;
+		}
+		try {
+			if (watcher == null) {
+				if (watchFailed) {
+					return null;
+				}
+				watcher = FileSystems.getDefault().newWatchService();
+				Thread thread = new Thread(this::watchLoop, "directory-watcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			listing = new Listing(dir, key);
+		} catch (IOException | UnsupportedOperationException e) {
+			if (watcher == null) {
+				watchFailed = true;
+			}
+			log.warn("Can not watch " + dir + ", its listing is not cached: " + e);
+			return null;
+		}
+		listings.put(dir, listing);
+		evict();
+		return listing;
+	}
+
+	private synchronized void store(Listing listing, long generation, byte[] html) {
+		if (listings.get(listing.dir) != listing || listing.generation != generation) {
+			return;
+		}
+		if (html == null) {
+			// too large to keep, stop watching it
+			remove(listing);
+			return;
+		}
+		if (listing.html == null) {
+			listing.html = html;
+			size += html.length;
+			evict();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Path, Listing>> eldest = listings.entrySet().iterator();
+		while ((size > maxBytes || listings.size() > MAX_DIRECTORIES) && eldest.hasNext()) {
+			Listing listing = eldest.next().getValue();
+			eldest.remove();
+			listing.key.cancel();
+			if (listing.html != null) {
+				size -= listing.html.length;
+			}
+		}
+	}
+
+	private void remove(Listing listing) {
+		listings.remove(listing.dir);
+		listing.key.cancel();
+		if (listing.html != null) {
+			size -= listing.html.length;
+		}
+	}
+
+	private void watchLoop() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				key.pollEvents();
+				synchronized (this) {
+					Listing listing = listings.get(key.watchable());
+					if (listing == null || listing.key != key) {
+						key.cancel();
+						continue;
+					}
+					listing.generation++;
+					if (listing.html != null) {
+						size -= listing.html.length;
+						listing.html = null;
+					}
+					if (!key.reset()) {
+						// the directory is gone
+						remove(listing);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			log.debug("Directory watcher stopped");
+		}
+	}
+
+	private static class Listing {
+
+		final Path dir;
+
+		final WatchKey key;
+
+		/**
+		 * Incremented on every change, a listing rendered across a change is not cached.
+		 */
+		long generation;
+
+		byte[] html;
+
+		Listing(Path dir, WatchKey key) {
+			this.dir = dir;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Copies what is written into memory up to a limit, for caching the listing.
+	 */
+	private static class Capture extends FilterOutputStream {
+
+		private final int limit;
+
+		private ByteArrayOutputStream copy;
+
+		Capture(OutputStream out, int limit) {
+			super(out);
+			this.limit = limit;
+			this.copy = limit > 0 ? new ByteArrayOutputStream(4096) : null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (copy != null) {
+				copy.write(b);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (copy != null) {
+				copy.write(b, off, len);
+				checkLimit();
+			}
+		}
+
+		private void checkLimit() {
+			if (copy.size() > limit) {
+				copy = null;
+			}
+		}
+
+		/**
+		 * Everything written, or null when it went past the limit.
+		 */
+		byte[] captured() {
+			return copy != null ? copy.toByteArray() : null;
+		}
+	}
+}
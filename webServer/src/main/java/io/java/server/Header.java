@@ -0,0 +1,67 @@
+package io.java.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header names the server looks at. The parser recognizes them straight from
+ * the request bytes so a known header never costs a String allocation.
+ */
+public enum Header {
+	HOST("Host"), //
+	CONNECTION("Connection"), //
+	CONTENT_LENGTH("Content-Length"), //
+	CONTENT_TYPE("Content-Type"), //
+	TRANSFER_ENCODING("Transfer-Encoding"), //
+	RANGE("Range"), //
+	ACCEPT_ENCODING("Accept-Encoding"), //
+	IF_NONE_MATCH("If-None-Match"), //
+	IF_MODIFIED_SINCE("If-Modified-Since"), //
+	EXPECT("Expect"), //
+	UPGRADE("Upgrade"), //
+	USER_AGENT("User-Agent"); //
+
+	private static final Header[] VALUES = values();
+
+	private final String name;
+
+	private final byte[] lowerCase;
+
+	Header(String name) {
+		this.name = name;
+		this.lowerCase = name.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Matches the bytes [start, end) of the buffer case-insensitively, returns null for unknown names.
+	 */
+	static Header lookup(ByteBuffer buf, int start, int end) {
+		int length = end - start;
+		for (Header header : VALUES) {
+			byte[] name = header.lowerCase;
+			if (name.length != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && toLowerCase(buf.get(start + i)) == name[i]) {
+				i++;
+			}
+			if (i == length) {
+				return header;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Folds only 'A'..'Z', so no other byte turns into a letter or '-' of a known name.
+	 */
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,456 @@
+package io.java.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HPACK header compression for HTTP/2 https://tools.ietf.org/html/rfc7541
+ *
+ * Each direction of a connection has its own dynamic table, so a
+ * connection holds one {@link Decoder} for the request headers and one
+ * {@link Encoder} for the response headers; both are used by one thread at a
+ * time, in the order the header blocks go over the wire. Names and values
+ * are ISO-8859-1 strings, one char per octet, as in {@link HttpRequest}.
+ */
+final class Hpack {
+
+	/**
+	 * Octets an entry costs in a dynamic table on top of its name and value.
+	 */
+	static final int ENTRY_OVERHEAD = 32;
+
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	private static final String[][] STATIC_TABLE = { //
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+			{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+			{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+			{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+			{ "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+			{ "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+			{ "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+			{ "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+			{ "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+			{ "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" },
+			{ "via", "" }, { "www-authenticate", "" } };
+
+	/**
+	 * Huffman code of each octet, right-aligned, https://tools.ietf.org/html/rfc7541#appendix-B
+	 */
+	private static final int[] CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea,
+		0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef,
+		0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7,
+		0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa,
+		0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c,
+		0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+		0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0,
+		0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29,
+		0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd,
+		0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+		0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0,
+		0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+		0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1,
+		0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+		0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+		0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5,
+		0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+		0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5,
+		0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9,
+		0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee };
+
+	private static final byte[] CODE_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28,
+		28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6,
+		7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13,
+		19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11,
+		14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23,
+		23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+		21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26,
+		24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22,
+		22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26 };
+
+	/**
+	 * Decoding tree of the Huffman code: two slots per node for bits 0 and 1,
+	 * holding the index of the child node or ~symbol at a leaf.
+	 */
+	private static final int[] TREE = buildTree();
+
+	private Hpack() {
+	}
+
+	private static int[] buildTree() {
+		int[] tree = new int[2 * 256];
+		int nodes = 1;
+		for (int symbol = 0; symbol < 256; symbol++) {
+			int node = 0;
+			for (int bit = CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int slot = node * 2 + ((CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[slot] = ~symbol;
+				} else {
+					if (tree[slot] == 0) {
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Failure to decode a header block; the connection has to be closed with a COMPRESSION_ERROR.
+	 */
+	static class CompressionException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		CompressionException(String message) {
+			super(message);
+		}
+	}
+
+	private static class Entry {
+
+		final String name;
+
+		final String value;
+
+		Entry(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		int size() {
+			return name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Dynamic table, newest entry first.
+	 */
+	private static class Table {
+
+		private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+		private int size;
+
+		private int maxSize;
+
+		Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Entry by HPACK index, which counts the static table first; null when out of range.
+		 */
+		Entry get(int index) {
+			if (index <= STATIC_TABLE.length) {
+				String[] entry = STATIC_TABLE[index - 1];
+				return new Entry(entry[0], entry[1]);
+			}
+			index -= STATIC_TABLE.length + 1;
+			if (index >= entries.size()) {
+				return null;
+			}
+			Iterator<Entry> it = entries.iterator();
+			while (index-- > 0) {
+				it.next();
+			}
+			return it.next();
+		}
+
+		void add(Entry entry) {
+			size += entry.size();
+			entries.addFirst(entry);
+			evict();
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+
+		private void evict() {
+			while (size > maxSize) {
+				size -= entries.removeLast().size();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the request header blocks of one connection.
+	 */
+	static class Decoder {
+
+		/**
+		 * The limit announced in SETTINGS_HEADER_TABLE_SIZE, which table size updates must stay within.
+		 */
+		private final int maxTableSize;
+
+		private final Table table;
+
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.table = new Table(maxTableSize);
+		}
+
+		/**
+		 * Decodes a complete header block, appending name and value of each field to fields.
+		 */
+		void decode(ByteBuffer block, List<String> fields) throws CompressionException {
+			boolean first = true;
+			while (block.hasRemaining()) {
+				int b = block.get(block.position()) & 0xff;
+				if ((b & 0x80) != 0) {
+					Entry entry = lookup(readInt(block, 7));
+					fields.add(entry.name);
+					fields.add(entry.value);
+				} else if ((b & 0x40) != 0) {
+					Entry entry = readLiteral(block, 6);
+					table.add(entry);
+					fields.add(entry.name);
+					fields.add(entry.value);
+				} else if ((b & 0x20) != 0) {
+					if (!first) {
+						throw new CompressionException("Table size update after the first field");
+					}
+					int size = readInt(block, 5);
+					if (size > maxTableSize) {
+						throw new CompressionException("Table size " + size + " above " + maxTableSize);
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					// without indexing or never indexed, both have a 4 bit prefix
+					Entry entry = readLiteral(block, 4);
+					fields.add(entry.name);
+					fields.add(entry.value);
+				}
+				first = false;
+			}
+		}
+
+		private Entry lookup(int index) throws CompressionException {
+			Entry entry = index == 0 ? null : table.get(index);
+			if (entry == null) {
+				throw new CompressionException("Invalid table index " + index);
+			}
+			return entry;
+		}
+
+		private Entry readLiteral(ByteBuffer block, int prefix) throws CompressionException {
+			int index = readInt(block, prefix);
+			String name = index == 0 ? readString(block) : lookup(index).name;
+			return new Entry(name, readString(block));
+		}
+	}
+
+	/**
+	 * Encodes the response header blocks of one connection. Fields are added
+	 * to the dynamic table unless they change with every response, so
+	 * repeated headers such as Server or Content-Type shrink to one octet.
+	 */
+	static class Encoder {
+
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+
+		/**
+		 * Smallest table size since the last header block, sent as an update before the next one; -1 for none.
+		 */
+		private int minTableSize = -1;
+
+		private int pendingTableSize = -1;
+
+		/**
+		 * Applies the peer's SETTINGS_HEADER_TABLE_SIZE, capped at the default since a larger table gains little.
+		 */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, DEFAULT_TABLE_SIZE);
+			if (size == table.maxSize && pendingTableSize < 0) {
+				return;
+			}
+			minTableSize = minTableSize < 0 ? size : Math.min(minTableSize, size);
+			pendingTableSize = size;
+			table.setMaxSize(size);
+		}
+
+		/**
+		 * Appends the encoded field to the header block.
+		 */
+		void encode(ByteArrayOutputStream block, String name, String value, boolean indexed) {
+			if (pendingTableSize >= 0) {
+				if (minTableSize < pendingTableSize) {
+					writeInt(block, 0x20, 5, minTableSize);
+				}
+				writeInt(block, 0x20, 5, pendingTableSize);
+				minTableSize = -1;
+				pendingTableSize = -1;
+			}
+			int nameIndex = 0;
+			for (int i = 0; i < STATIC_TABLE.length; i++) {
+				if (STATIC_TABLE[i][0].equals(name)) {
+					if (STATIC_TABLE[i][1].equals(value)) {
+						writeInt(block, 0x80, 7, i + 1);
+						return;
+					}
+					if (nameIndex == 0) {
+						nameIndex = i + 1;
+					}
+				}
+			}
+			int index = STATIC_TABLE.length + 1;
+			for (Entry entry : table.entries) {
+				if (entry.name.equals(name)) {
+					if (entry.value.equals(value)) {
+						writeInt(block, 0x80, 7, index);
+						return;
+					}
+					if (nameIndex == 0) {
+						nameIndex = index;
+					}
+				}
+				index++;
+			}
+			Entry entry = new Entry(name, value);
+			indexed = indexed && entry.size() <= table.maxSize / 2;
+			if (indexed) {
+				writeInt(block, 0x40, 6, nameIndex);
+			} else {
+				writeInt(block, 0x00, 4, nameIndex);
+			}
+			if (nameIndex == 0) {
+				writeString(block, name);
+			}
+			writeString(block, value);
+			if (indexed) {
+				table.add(entry);
+			}
+		}
+	}
+
+	static int readInt(ByteBuffer block, int prefix) throws CompressionException {
+		int mask = (1 << prefix) - 1;
+		int value = block.get() & mask;
+		if (value < mask) {
+			return value;
+		}
+		for (int shift = 0; shift < 28; shift += 7) {
+			if (!block.hasRemaining()) {
+				throw new CompressionException("Truncated integer");
+			}
+			int b = block.get() & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new CompressionException("Integer overflow");
+	}
+
+	static void writeInt(ByteArrayOutputStream block, int flags, int prefix, int value) {
+		int mask = (1 << prefix) - 1;
+		if (value < mask) {
+			block.write(flags | value);
+			return;
+		}
+		block.write(flags | mask);
+		value -= mask;
+		while (value >= 0x80) {
+			block.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		block.write(value);
+	}
+
+	static String readString(ByteBuffer block) throws CompressionException {
+		if (!block.hasRemaining()) {
+			throw new CompressionException("Truncated string");
+		}
+		boolean huffman = (block.get(block.position()) & 0x80) != 0;
+		int length = readInt(block, 7);
+		if (length > block.remaining()) {
+			throw new CompressionException("String of " + length + " octets past the end of the block");
+		}
+		if (!huffman) {
+			byte[] raw = new byte[length];
+			block.get(raw);
+			return new String(raw, StandardCharsets.ISO_8859_1);
+		}
+		StringBuilder decoded = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		int bits = 0;
+		boolean ones = true;
+		for (int i = 0; i < length; i++) {
+			int b = block.get() & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int one = (b >>> bit) & 1;
+				int next = TREE[node * 2 + one];
+				bits++;
+				ones &= one == 1;
+				if (next < 0) {
+					decoded.append((char) ~next);
+					node = 0;
+					bits = 0;
+					ones = true;
+				} else if (next == 0) {
+					// only the 30 bit EOS code runs past the tree
+					throw new CompressionException("EOS in a Huffman string");
+				} else {
+					node = next;
+				}
+			}
+		}
+		if (bits > 7 || !ones) {
+			throw new CompressionException("Invalid Huffman padding");
+		}
+		return decoded.toString();
+	}
+
+	/**
+	 * Writes the string Huffman coded when that is shorter, as it is for most header values.
+	 */
+	static void writeString(ByteArrayOutputStream block, String text) {
+		long bits = 0;
+		for (int i = 0; i < text.length(); i++) {
+			bits += CODE_LENGTHS[text.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= text.length()) {
+			writeInt(block, 0x00, 7, text.length());
+			block.write(text.getBytes(StandardCharsets.ISO_8859_1), 0, text.length());
+			return;
+		}
+		writeInt(block, 0x80, 7, huffmanLength);
+		long pending = 0;
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int symbol = text.charAt(i) & 0xff;
+			pending = (pending << CODE_LENGTHS[symbol]) | CODES[symbol];
+			count += CODE_LENGTHS[symbol];
+			while (count >= 8) {
+				count -= 8;
+				block.write((int) (pending >>> count));
+			}
+		}
+		if (count > 0) {
+			// pad with the most significant bits of EOS, which are all ones
+			block.write((int) ((pending << (8 - count)) | (0xff >>> count)));
+		}
+	}
+}
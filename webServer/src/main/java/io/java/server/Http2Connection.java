@@ -0,0 +1,1260 @@
+package io.java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import io.eventLoop.EventLoop;
+import io.java.AdmissionControl;
+import io.java.ConnectionTimeouts.Deadline;
+import io.java.ConnectionTimeouts.Phase;
+import io.java.metrics.ServerMetrics;
+
+/**
+ * Http2Connection serves one HTTP/2 connection over cleartext TCP (h2c)
+ * https://tools.ietf.org/html/rfc7540
+ *
+ * The thread that accepted the connection keeps reading frames; every
+ * request stream becomes an {@link Http2StreamEvent} on the router's event
+ * loop, so the streams of a connection are handled concurrently and their
+ * response frames interleave on the socket. Request bodies are handed to the
+ * handler as DATA frames arrive and the client only gets window back for
+ * what the handler read; response bodies wait for the client's window the
+ * same way. Server push and stream priorities are not implemented, priority
+ * information is read and ignored.
+ *
+ * Frames are written under one lock, so a header block and its HPACK state
+ * change go out in the same order; the connection's {@link Deadline} is
+ * IDLE while no stream is open and WRITE otherwise.
+ */
+public class Http2Connection {
+
+	private static Logger log = Logger.getLogger(Http2Connection.class);
+
+	/**
+	 * The client connection preface. A client with prior knowledge sends it
+	 * first thing, and "PRI * HTTP/2.0" parses as a request head, see
+	 * {@link RequestParser#isHttp2Preface()}; an upgraded client sends it after the 101.
+	 */
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Length of the preface head the parser consumes, "PRI * HTTP/2.0\r\n\r\n".
+	 */
+	static final int PREFACE_HEAD = 18;
+
+	/**
+	 * Streams a client may have open at the same time, announced in the server's SETTINGS.
+	 */
+	public static final int MAX_CONCURRENT_STREAMS = 100;
+
+	/**
+	 * Initial flow control window of the protocol, which the server keeps for its receiving side.
+	 */
+	static final int WINDOW = 65535;
+
+	/**
+	 * Largest frame payload the server accepts, and the size of the DATA frames it sends.
+	 */
+	static final int MAX_FRAME_SIZE = 16384;
+
+	/**
+	 * Largest header block accepted before it is decoded, HEADERS and CONTINUATION frames together.
+	 */
+	static final int MAX_HEADER_BLOCK = 4 * RequestParser.MAX_HEAD_SIZE;
+
+	static final int DATA = 0x0;
+
+	static final int HEADERS = 0x1;
+
+	static final int PRIORITY = 0x2;
+
+	static final int RST_STREAM = 0x3;
+
+	static final int SETTINGS = 0x4;
+
+	static final int PUSH_PROMISE = 0x5;
+
+	static final int PING = 0x6;
+
+	static final int GOAWAY = 0x7;
+
+	static final int WINDOW_UPDATE = 0x8;
+
+	static final int CONTINUATION = 0x9;
+
+	static final int FLAG_END_STREAM = 0x1;
+
+	static final int FLAG_ACK = 0x1;
+
+	static final int FLAG_END_HEADERS = 0x4;
+
+	static final int FLAG_PADDED = 0x8;
+
+	static final int FLAG_PRIORITY = 0x20;
+
+	static final int NO_ERROR = 0x0;
+
+	static final int PROTOCOL_ERROR = 0x1;
+
+	static final int INTERNAL_ERROR = 0x2;
+
+	static final int FLOW_CONTROL_ERROR = 0x3;
+
+	static final int STREAM_CLOSED = 0x5;
+
+	static final int FRAME_SIZE_ERROR = 0x6;
+
+	static final int REFUSED_STREAM = 0x7;
+
+	static final int COMPRESSION_ERROR = 0x9;
+
+	static final int ENHANCE_YOUR_CALM = 0xb;
+
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final OutputStream out;
+
+	private final Router router;
+
+	private final EventLoop eventLoop;
+
+	private final AdmissionControl admission;
+
+	private final Deadline deadline;
+
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+	/**
+	 * Guarded by writeLock, like out.
+	 */
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+	/**
+	 * Serializes frames on the socket. Stream threads are virtual, which a
+	 * monitor would pin to their carrier while they block on the socket.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Guards the stream table, the flow control windows and the deadline.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a window opens, request body data arrives or a stream closes.
+	 */
+	private final Condition changed = lock.newCondition();
+
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+	private int lastStreamId;
+
+	/**
+	 * Bytes the server may still send on the connection.
+	 */
+	private int sendWindow = WINDOW;
+
+	/**
+	 * The client's SETTINGS_INITIAL_WINDOW_SIZE, the send window of new streams.
+	 */
+	private int initialWindow = WINDOW;
+
+	private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+
+	/**
+	 * DATA bytes received since the connection window was last opened again; only touched by the reading thread.
+	 */
+	private int received;
+
+	private boolean closed;
+
+	/**
+	 * Serves a connection accepted by the server; received holds the bytes
+	 * that arrived after the HTTP/1.1 head which switched protocols.
+	 */
+	public Http2Connection(Socket socket, byte[] received, Router router, AdmissionControl admission,
+			Deadline deadline) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(
+				new SequenceInputStream(new ByteArrayInputStream(received), socket.getInputStream()),
+				MAX_FRAME_SIZE + 9));
+		this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + 9);
+		this.router = router;
+		this.eventLoop = router.getEventLoop();
+		this.admission = admission;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Whether a request asks to switch to h2c: it has "Upgrade: h2c", the
+	 * HTTP2-Settings header and no body, since the body would have to be read
+	 * as HTTP/1.1 before the switch.
+	 */
+	public static boolean isUpgrade(HttpRequest req) {
+		String upgrade = req.getHeader(Header.UPGRADE);
+		if (upgrade == null || req.getHeader("HTTP2-Settings") == null || req.hasBody()
+				|| !HttpRequest.HTTP_1_1.equals(req.version)) {
+			return false;
+		}
+		for (String protocol : upgrade.split(",")) {
+			if (protocol.trim().equalsIgnoreCase("h2c")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Serves the connection until the client closes it, breaks the protocol
+	 * or times out. upgrade is the HTTP/1.1 request that switched protocols,
+	 * which becomes stream 1, or null when the client came with prior
+	 * knowledge and its preface head was already parsed.
+	 */
+	public void serve(HttpRequest upgrade) throws IOException {
+		try {
+			if (upgrade != null) {
+				// the last HTTP/1.1 bytes, the server preface follows right after them
+				out.write(("HTTP/1.1 " + Status._101 + "\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII));
+			}
+			writeSettings();
+			if (upgrade != null) {
+				applyUpgradeSettings(upgrade.getHeader("HTTP2-Settings"));
+				upgrade.version = HttpRequest.HTTP_2_0;
+				Stream stream = new Stream(1, initialWindow);
+				stream.request = upgrade;
+				stream.remoteClosed = true;
+				lastStreamId = 1;
+				open(stream);
+			} else {
+				lock.lock();
+				try {
+					deadline.arm(Phase.IDLE);
+				} finally {
+					lock.unlock();
+				}
+			}
+			readPreface(upgrade == null ? PREFACE_HEAD : 0);
+			readFrames();
+		} catch (Http2Error e) {
+			log.debug("HTTP/2 connection error " + e.code + ": " + e.getMessage());
+			goAway(e.code, e.getMessage());
+		} catch (EOFException e) {
+			// the client closed the connection
+		} finally {
+			lock.lock();
+			try {
+				closed = true;
+				for (Stream stream : streams.values()) {
+					stream.reset = true;
+				}
+				streams.clear();
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void writeSettings() throws IOException {
+		ByteBuffer settings = ByteBuffer.allocate(12);
+		settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+		settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(RequestParser.MAX_HEAD_SIZE);
+		send(SETTINGS, 0, 0, settings.array());
+	}
+
+	private void readPreface(int consumed) throws IOException {
+		byte[] preface = new byte[PREFACE.length - consumed];
+		in.readFully(preface);
+		if (!Arrays.equals(preface, 0, preface.length, PREFACE, consumed, PREFACE.length)) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Invalid connection preface");
+		}
+	}
+
+	private void applyUpgradeSettings(String encoded) throws IOException {
+		byte[] payload;
+		try {
+			payload = Base64.getUrlDecoder().decode(encoded.trim());
+		} catch (IllegalArgumentException e) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Malformed HTTP2-Settings");
+		}
+		if (payload.length % 6 != 0) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Malformed HTTP2-Settings");
+		}
+		applySettings(payload);
+	}
+
+	private void readFrames() throws IOException {
+		byte[] header = new byte[9];
+		ByteArrayOutputStream block = null;
+		int blockStream = 0;
+		int blockFlags = 0;
+		boolean first = true;
+		while (true) {
+			in.readFully(header);
+			int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+			int type = header[3] & 0xff;
+			int flags = header[4] & 0xff;
+			int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff;
+			if (length > MAX_FRAME_SIZE) {
+				throw new Http2Error(FRAME_SIZE_ERROR, 0, "Frame of " + length + " bytes");
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			if (first && type != SETTINGS) {
+				throw new Http2Error(PROTOCOL_ERROR, 0, "Connection preface without SETTINGS");
+			}
+			first = false;
+			if (block != null && (type != CONTINUATION || streamId != blockStream)) {
+				throw new Http2Error(PROTOCOL_ERROR, 0, "Header block interrupted by a frame of type " + type);
+			}
+			try {
+				switch (type) {
+					case DATA:
+						onData(streamId, flags, payload);
+						break;
+					case HEADERS:
+						int[] fragment = headerFragment(streamId, flags, payload);
+						if ((flags & FLAG_END_HEADERS) != 0) {
+							onHeaders(streamId, flags, ByteBuffer.wrap(payload, fragment[0], fragment[1]));
+						} else {
+							block = new ByteArrayOutputStream(Math.max(1024, fragment[1] * 2));
+							block.write(payload, fragment[0], fragment[1]);
+							blockStream = streamId;
+							blockFlags = flags;
+						}
+						break;
+					case CONTINUATION:
+						if (block == null) {
+							throw new Http2Error(PROTOCOL_ERROR, 0, "CONTINUATION without HEADERS");
+						}
+						if (block.size() + length > MAX_HEADER_BLOCK) {
+							throw new Http2Error(ENHANCE_YOUR_CALM, 0, "Header block larger than " + MAX_HEADER_BLOCK);
+						}
+						block.write(payload, 0, length);
+						if ((flags & FLAG_END_HEADERS) != 0) {
+							byte[] complete = block.toByteArray();
+							block = null;
+							onHeaders(blockStream, blockFlags, ByteBuffer.wrap(complete));
+						}
+						break;
+					case PRIORITY:
+						if (streamId == 0) {
+							throw new Http2Error(PROTOCOL_ERROR, 0, "PRIORITY on stream 0");
+						}
+						if (length != 5) {
+							throw new Http2Error(FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+						}
+						break;
+					case RST_STREAM:
+						onReset(streamId, payload);
+						break;
+					case SETTINGS:
+						onSettings(streamId, flags, payload);
+						break;
+					case PUSH_PROMISE:
+						throw new Http2Error(PROTOCOL_ERROR, 0, "PUSH_PROMISE from a client");
+					case PING:
+						if (streamId != 0) {
+							throw new Http2Error(PROTOCOL_ERROR, 0, "PING on stream " + streamId);
+						}
+						if (length != 8) {
+							throw new Http2Error(FRAME_SIZE_ERROR, 0, "PING of " + length + " bytes");
+						}
+						if ((flags & FLAG_ACK) == 0) {
+							send(PING, FLAG_ACK, 0, payload);
+						}
+						break;
+					case GOAWAY:
+						if (streamId != 0) {
+							throw new Http2Error(PROTOCOL_ERROR, 0, "GOAWAY on stream " + streamId);
+						}
+						// open streams are still answered, the client closes when it has them
+						break;
+					case WINDOW_UPDATE:
+						onWindowUpdate(streamId, payload);
+						break;
+					default:
+						// unknown frame types are ignored
+				}
+			} catch (Http2Error e) {
+				if (e.stream == 0) {
+					throw e;
+				}
+				log.debug("HTTP/2 stream " + e.stream + " error " + e.code + ": " + e.getMessage());
+				reset(e.stream, e.code);
+			}
+		}
+	}
+
+	/**
+	 * Offset and length of the header block fragment in a HEADERS payload, without padding and priority.
+	 */
+	private int[] headerFragment(int streamId, int flags, byte[] payload) throws Http2Error {
+		if (streamId == 0) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "HEADERS on stream 0");
+		}
+		int start = 0;
+		int end = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			end -= padding(payload);
+			start++;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			start += 5;
+		}
+		if (start > end) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Padding longer than the HEADERS payload");
+		}
+		return new int[] { start, end - start };
+	}
+
+	private static int padding(byte[] payload) throws Http2Error {
+		if (payload.length == 0 || (payload[0] & 0xff) >= payload.length) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Padding longer than the frame payload");
+		}
+		return payload[0] & 0xff;
+	}
+
+	private void onHeaders(int streamId, int flags, ByteBuffer block) throws IOException {
+		List<String> fields = new ArrayList<String>();
+		try {
+			// decoded even for refused streams, the dynamic table has to follow every block
+			decoder.decode(block, fields);
+		} catch (Hpack.CompressionException e) {
+			throw new Http2Error(COMPRESSION_ERROR, 0, e.getMessage());
+		} catch (RuntimeException e) {
+			throw new Http2Error(COMPRESSION_ERROR, 0, "Truncated header block");
+		}
+		boolean endStream = (flags & FLAG_END_STREAM) != 0;
+		if (streamId <= lastStreamId) {
+			onTrailers(streamId, endStream);
+			return;
+		}
+		if (streamId % 2 == 0) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "Client stream with even id " + streamId);
+		}
+		lastStreamId = streamId;
+		Stream stream = new Stream(streamId, 0);
+		stream.remoteClosed = endStream;
+		try {
+			stream.request = toRequest(streamId, fields, endStream ? null : new StreamInput(stream));
+		} catch (BadRequestException e) {
+			stream.error = e;
+		}
+		open(stream);
+	}
+
+	/**
+	 * A second HEADERS frame on a stream carries trailers, which end the body and are not exposed.
+	 */
+	private void onTrailers(int streamId, boolean endStream) throws Http2Error {
+		lock.lock();
+		try {
+			Stream stream = streams.get(streamId);
+			if (stream == null) {
+				// already answered or reset
+				return;
+			}
+			if (stream.remoteClosed) {
+				throw new Http2Error(STREAM_CLOSED, streamId, "HEADERS after the end of the stream");
+			}
+			if (!endStream) {
+				throw new Http2Error(PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+			}
+			stream.remoteClosed = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Admits the stream and dispatches it to the event loop, or refuses it.
+	 */
+	private void open(Stream stream) throws IOException {
+		boolean refused;
+		lock.lock();
+		try {
+			refused = streams.size() >= MAX_CONCURRENT_STREAMS || !admission.tryAcquireRequest();
+			if (!refused) {
+				stream.sendWindow = initialWindow;
+				streams.put(stream.id, stream);
+				deadline.arm(Phase.WRITE);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (refused) {
+			send(RST_STREAM, 0, stream.id, ByteBuffer.allocate(4).putInt(REFUSED_STREAM).array());
+			return;
+		}
+		eventLoop.dispatch(new Http2StreamEvent(this, stream));
+	}
+
+	/**
+	 * Builds the request of a stream: the header fields are checked as RFC
+	 * 7540 section 8.1.2 asks and turned into an HTTP/1.1 head, which goes
+	 * through the same {@link RequestParser} as any other request.
+	 */
+	private HttpRequest toRequest(int streamId, List<String> fields, InputStream body) throws Http2Error,
+			BadRequestException {
+		String method = null;
+		String scheme = null;
+		String path = null;
+		String authority = null;
+		boolean host = false;
+		StringBuilder headers = new StringBuilder(256);
+		StringBuilder cookies = null;
+		for (int i = 0; i < fields.size(); i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			if (!isValid(name, value)) {
+				throw new Http2Error(PROTOCOL_ERROR, streamId, "Malformed header field " + name);
+			}
+			if (name.charAt(0) == ':') {
+				if (headers.length() > 0 || cookies != null) {
+					throw new Http2Error(PROTOCOL_ERROR, streamId, "Pseudo-header after regular headers");
+				}
+				String previous = null;
+				switch (name) {
+					case ":method":
+						previous = method;
+						method = value;
+						break;
+					case ":scheme":
+						previous = scheme;
+						scheme = value;
+						break;
+					case ":path":
+						previous = path;
+						path = value;
+						break;
+					case ":authority":
+						previous = authority;
+						authority = value;
+						break;
+					default:
+						throw new Http2Error(PROTOCOL_ERROR, streamId, "Unknown pseudo-header " + name);
+				}
+				if (previous != null) {
+					throw new Http2Error(PROTOCOL_ERROR, streamId, "Repeated pseudo-header " + name);
+				}
+				continue;
+			}
+			switch (name) {
+				case "connection":
+				case "keep-alive":
+				case "proxy-connection":
+				case "transfer-encoding":
+				case "upgrade":
+					throw new Http2Error(PROTOCOL_ERROR, streamId, "Connection-specific header " + name);
+				case "te":
+					if (!value.equals("trailers")) {
+						throw new Http2Error(PROTOCOL_ERROR, streamId, "TE other than trailers");
+					}
+					break;
+				case "cookie":
+					// split into several fields for compression, joined again as RFC 7540 section 8.1.2.5 says
+					cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+					continue;
+				case "host":
+					host = true;
+					break;
+				default:
+			}
+			headers.append(name).append(": ").append(value).append("\r\n");
+		}
+		if (method == null || scheme == null || path == null || path.isEmpty() || method.indexOf(' ') >= 0
+				|| path.indexOf(' ') >= 0) {
+			throw new Http2Error(PROTOCOL_ERROR, streamId, "Missing or malformed pseudo-headers");
+		}
+		StringBuilder head = new StringBuilder(headers.length() + 128);
+		head.append(method).append(' ').append(path).append(' ').append(HttpRequest.HTTP_1_1).append("\r\n");
+		if (authority != null && !host) {
+			head.append("host: ").append(authority).append("\r\n");
+		}
+		head.append(headers);
+		if (cookies != null) {
+			head.append("cookie: ").append(cookies).append("\r\n");
+		}
+		head.append("\r\n");
+		byte[] bytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		if (bytes.length > RequestParser.MAX_HEAD_SIZE) {
+			throw new BadRequestException(Status._431, "Request head larger than " + RequestParser.MAX_HEAD_SIZE
+					+ " bytes");
+		}
+		RequestParser parser = new RequestParser(ByteBuffer.allocate(bytes.length + 1));
+		parser.buffer().put(bytes);
+		if (!parser.parse()) {
+			throw new BadRequestException(Status._400, "Malformed header fields");
+		}
+		return new HttpRequest(parser, body);
+	}
+
+	/**
+	 * Names are lower case tokens and values hold no line breaks, which would
+	 * otherwise end up as extra lines of the synthesized head.
+	 */
+	private static boolean isValid(String name, String value) {
+		if (name.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\r' || c == '\n' || c == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void onData(int streamId, int flags, byte[] payload) throws IOException {
+		if (streamId == 0) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "DATA on stream 0");
+		}
+		int start = 0;
+		int end = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			end -= padding(payload);
+			start++;
+		}
+		// the connection window opens again as data arrives, the stream windows bound what is buffered
+		received += payload.length;
+		if (received >= WINDOW / 2) {
+			send(WINDOW_UPDATE, 0, 0, ByteBuffer.allocate(4).putInt(received).array());
+			received = 0;
+		}
+		lock.lock();
+		try {
+			Stream stream = streams.get(streamId);
+			if (stream == null) {
+				if (streamId > lastStreamId) {
+					throw new Http2Error(PROTOCOL_ERROR, 0, "DATA on idle stream " + streamId);
+				}
+				// already answered or reset, frames in flight are dropped
+				return;
+			}
+			if (stream.remoteClosed) {
+				throw new Http2Error(STREAM_CLOSED, streamId, "DATA after the end of the stream");
+			}
+			stream.receiveWindow -= payload.length;
+			if (stream.receiveWindow < 0) {
+				throw new Http2Error(FLOW_CONTROL_ERROR, streamId, "DATA beyond the stream window");
+			}
+			if (end > start) {
+				stream.data.add(Arrays.copyOfRange(payload, start, end));
+			}
+			// padding counts against the window but is never read, so it is given back with the next update
+			stream.consumed += payload.length - (end - start);
+			if ((flags & FLAG_END_STREAM) != 0) {
+				stream.remoteClosed = true;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onReset(int streamId, byte[] payload) throws Http2Error {
+		if (streamId == 0 || streamId > lastStreamId) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "RST_STREAM on " + (streamId == 0 ? "stream 0" : "an idle stream"));
+		}
+		if (payload.length != 4) {
+			throw new Http2Error(FRAME_SIZE_ERROR, 0, "RST_STREAM of " + payload.length + " bytes");
+		}
+		lock.lock();
+		try {
+			Stream stream = streams.remove(streamId);
+			if (stream != null) {
+				stream.reset = true;
+				disarm();
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+		if (streamId != 0) {
+			throw new Http2Error(PROTOCOL_ERROR, 0, "SETTINGS on stream " + streamId);
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			if (payload.length != 0) {
+				throw new Http2Error(FRAME_SIZE_ERROR, 0, "SETTINGS acknowledgement with a payload");
+			}
+			return;
+		}
+		if (payload.length % 6 != 0) {
+			throw new Http2Error(FRAME_SIZE_ERROR, 0, "SETTINGS of " + payload.length + " bytes");
+		}
+		applySettings(payload);
+		send(SETTINGS, FLAG_ACK, 0, new byte[0]);
+	}
+
+	private void applySettings(byte[] payload) throws Http2Error {
+		ByteBuffer settings = ByteBuffer.wrap(payload);
+		while (settings.hasRemaining()) {
+			int id = settings.getShort() & 0xffff;
+			long value = settings.getInt() & 0xffffffffL;
+			switch (id) {
+				case SETTINGS_HEADER_TABLE_SIZE:
+					writeLock.lock();
+					try {
+						encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+					} finally {
+						writeLock.unlock();
+					}
+					break;
+				case SETTINGS_ENABLE_PUSH:
+					if (value > 1) {
+						throw new Http2Error(PROTOCOL_ERROR, 0, "SETTINGS_ENABLE_PUSH of " + value);
+					}
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > Integer.MAX_VALUE) {
+						throw new Http2Error(FLOW_CONTROL_ERROR, 0, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+					}
+					setInitialWindow((int) value);
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+						throw new Http2Error(PROTOCOL_ERROR, 0, "SETTINGS_MAX_FRAME_SIZE of " + value);
+					}
+					peerMaxFrameSize = (int) value;
+					break;
+				default:
+					// unknown or irrelevant to a server, such as the client's own stream limit
+			}
+		}
+	}
+
+	private void setInitialWindow(int window) throws Http2Error {
+		lock.lock();
+		try {
+			int delta = window - initialWindow;
+			initialWindow = window;
+			for (Stream stream : streams.values()) {
+				if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+					throw new Http2Error(FLOW_CONTROL_ERROR, 0, "Stream window above 2^31-1");
+				}
+				stream.sendWindow += delta;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onWindowUpdate(int streamId, byte[] payload) throws Http2Error {
+		if (payload.length != 4) {
+			throw new Http2Error(FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE of " + payload.length + " bytes");
+		}
+		int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+		if (increment == 0) {
+			throw new Http2Error(PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+		}
+		lock.lock();
+		try {
+			if (streamId == 0) {
+				if ((long) sendWindow + increment > Integer.MAX_VALUE) {
+					throw new Http2Error(FLOW_CONTROL_ERROR, 0, "Connection window above 2^31-1");
+				}
+				sendWindow += increment;
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					if (streamId > lastStreamId) {
+						throw new Http2Error(PROTOCOL_ERROR, 0, "WINDOW_UPDATE on idle stream " + streamId);
+					}
+					return;
+				}
+				if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+					throw new Http2Error(FLOW_CONTROL_ERROR, streamId, "Stream window above 2^31-1");
+				}
+				stream.sendWindow += increment;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Answers a stream; runs on the event loop, see {@link Http2StreamEvent}.
+	 */
+	void serve(Stream stream) {
+		ServerMetrics metrics = ServerMetrics.INSTANCE;
+		HttpRequest req = stream.request;
+		HttpResponse res = null;
+		try {
+			try {
+				if (stream.error != null) {
+					throw stream.error;
+				}
+				long handleStart = System.nanoTime();
+				res = router.handle(req, new RouteMatch());
+				if (res == null) {
+					res = new HttpResponse(req);
+				}
+				metrics.handled(System.nanoTime() - handleStart);
+			} catch (BadRequestException e) {
+				res = new HttpResponse(e.getStatus());
+			}
+			long writeStart = System.nanoTime();
+			writeResponse(stream, res);
+			metrics.written(System.nanoTime() - writeStart);
+			metrics.requestCompleted(req == null ? null : req.getMethod(), res.getStatus(), res.getContentLength());
+			AccessLog.INSTANCE.log(socket.getInetAddress(), req == null ? null : req.getMethod(),
+					req == null ? null : req.getUri(), HttpRequest.HTTP_2_0, res.getCode(), res.getContentLength(),
+					stream.startedAt);
+		} catch (IOException | RuntimeException e) {
+			if (stream.reset) {
+				log.debug("HTTP/2 stream " + stream.id + " was reset");
+			} else {
+				log.error("HTTP/2 stream " + stream.id + " failed", e);
+				metrics.error();
+				reset(stream.id, INTERNAL_ERROR);
+			}
+		} finally {
+			if (res != null) {
+				res.close();
+			}
+			admission.releaseRequest();
+			close(stream);
+		}
+	}
+
+	private void writeResponse(Stream stream, HttpResponse res) throws IOException {
+		boolean content = res.hasContent();
+		ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+		writeLock.lock();
+		try {
+			checkOpen(stream);
+			encoder.encode(block, ":status", Integer.toString(res.code), true);
+			// the first line is the HTTP/1.x status line
+			for (int i = 1; i < res.headers.size(); i++) {
+				String line = new String(res.headers.get(i), StandardCharsets.ISO_8859_1);
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				if (!isConnectionSpecific(name)) {
+					encoder.encode(block, name, line.substring(colon + 1).trim(), isIndexed(name));
+				}
+			}
+			writeHeaders(stream.id, block.toByteArray(), !content);
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+		if (content) {
+			DataOutput data = new DataOutput(stream);
+			res.writeContent(data);
+			data.finish();
+		}
+	}
+
+	private static boolean isConnectionSpecific(String name) {
+		return name.equals("connection") || name.equals("keep-alive") || name.equals("transfer-encoding")
+				|| name.equals("upgrade");
+	}
+
+	/**
+	 * Whether a response header goes into the dynamic table; values that differ per response would only evict others.
+	 */
+	private static boolean isIndexed(String name) {
+		return !name.equals("content-length") && !name.equals("content-range") && !name.equals("location")
+				&& !name.equals("date") && !name.equals("last-modified") && !name.equals("etag");
+	}
+
+	/**
+	 * Writes a header block as HEADERS and CONTINUATION frames; the caller holds the write lock.
+	 */
+	private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+		int max = peerMaxFrameSize;
+		int length = Math.min(block.length, max);
+		writeFrame(HEADERS, (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0),
+				streamId, block, 0, length);
+		for (int offset = length; offset < block.length; offset += length) {
+			length = Math.min(block.length - offset, max);
+			writeFrame(CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset,
+					length);
+		}
+	}
+
+	/**
+	 * Waits until both the stream and the connection window are open and
+	 * takes up to max bytes of them; returns how many it took.
+	 */
+	private int reserve(Stream stream, int max) throws IOException {
+		lock.lock();
+		try {
+			while (stream.sendWindow <= 0 || sendWindow <= 0) {
+				checkOpen(stream);
+				changed.await();
+			}
+			checkOpen(stream);
+			int count = Math.min(max, Math.min(stream.sendWindow, sendWindow));
+			stream.sendWindow -= count;
+			sendWindow -= count;
+			return count;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the window of stream " + stream.id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkOpen(Stream stream) throws EOFException {
+		if (stream.reset) {
+			throw new EOFException("Stream " + stream.id + " was reset");
+		}
+	}
+
+	/**
+	 * Forgets a stream whose response is complete; a client still sending its
+	 * body is told to stop with RST_STREAM(NO_ERROR).
+	 */
+	private void close(Stream stream) {
+		boolean stop = false;
+		lock.lock();
+		try {
+			if (streams.remove(stream.id, stream)) {
+				stop = !stream.remoteClosed;
+				stream.reset = true;
+				disarm();
+			}
+			stream.data.clear();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (stop) {
+			try {
+				send(RST_STREAM, 0, stream.id, ByteBuffer.allocate(4).putInt(NO_ERROR).array());
+			} catch (IOException e) {
+				log.debug("Could not reset HTTP/2 stream " + stream.id + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Re-arms the deadline after a stream closed; the caller holds the lock.
+	 */
+	private void disarm() {
+		if (!closed) {
+			deadline.arm(streams.isEmpty() ? Phase.IDLE : Phase.WRITE);
+		}
+	}
+
+	private void reset(int streamId, int code) {
+		lock.lock();
+		try {
+			Stream stream = streams.remove(streamId);
+			if (stream != null) {
+				stream.reset = true;
+				disarm();
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			send(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(code).array());
+		} catch (IOException e) {
+			log.debug("Could not reset HTTP/2 stream " + streamId + ": " + e);
+		}
+	}
+
+	private void goAway(int code, String message) {
+		byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(8 + debug.length);
+		payload.putInt(lastStreamId).putInt(code).put(debug);
+		try {
+			send(GOAWAY, 0, 0, payload.array());
+		} catch (IOException e) {
+			log.debug("Could not send GOAWAY: " + e);
+		}
+	}
+
+	private void send(int type, int flags, int streamId, byte[] payload) throws IOException {
+		writeLock.lock();
+		try {
+			writeFrame(type, flags, streamId, payload, 0, payload.length);
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes one frame into the output buffer; the caller holds the write lock and flushes.
+	 */
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+			throws IOException {
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(streamId >>> 24);
+		out.write(streamId >>> 16);
+		out.write(streamId >>> 8);
+		out.write(streamId);
+		out.write(payload, offset, length);
+	}
+
+	/**
+	 * A request stream; its fields are guarded by the connection's lock.
+	 */
+	static class Stream {
+
+		final int id;
+
+		final long startedAt = System.nanoTime();
+
+		HttpRequest request;
+
+		/**
+		 * Set instead of the request when the head could not be turned into one; answered with its status.
+		 */
+		BadRequestException error;
+
+		int sendWindow;
+
+		int receiveWindow = WINDOW;
+
+		/**
+		 * Body bytes read by the handler since the client was last given window for them.
+		 */
+		int consumed;
+
+		/**
+		 * DATA received and not read by the handler yet.
+		 */
+		final ArrayDeque<byte[]> data = new ArrayDeque<byte[]>();
+
+		int offset;
+
+		/**
+		 * Whether the client ended its side of the stream.
+		 */
+		boolean remoteClosed;
+
+		/**
+		 * Whether the stream is gone, reset by either side, answered or the connection closed.
+		 */
+		volatile boolean reset;
+
+		Stream(int id, int sendWindow) {
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+	}
+
+	/**
+	 * The request body of a stream, fed by its DATA frames; reading it gives the client window back.
+	 */
+	private class StreamInput extends InputStream {
+
+		private final Stream stream;
+
+		StreamInput(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int count;
+			int increment = 0;
+			lock.lock();
+			try {
+				while (stream.data.isEmpty()) {
+					if (stream.remoteClosed) {
+						return -1;
+					}
+					if (stream.reset) {
+						throw new EOFException("Stream " + stream.id + " reset before the end of the request body");
+					}
+					changed.await();
+				}
+				byte[] chunk = stream.data.peek();
+				count = Math.min(len, chunk.length - stream.offset);
+				System.arraycopy(chunk, stream.offset, b, off, count);
+				stream.offset += count;
+				if (stream.offset == chunk.length) {
+					stream.data.poll();
+					stream.offset = 0;
+				}
+				stream.consumed += count;
+				if (stream.consumed >= WINDOW / 2 && !stream.remoteClosed && !stream.reset) {
+					increment = stream.consumed;
+					stream.receiveWindow += increment;
+					stream.consumed = 0;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading the body of stream " + stream.id);
+			} finally {
+				lock.unlock();
+			}
+			if (increment > 0) {
+				send(WINDOW_UPDATE, 0, stream.id, ByteBuffer.allocate(4).putInt(increment).array());
+			}
+			return count;
+		}
+
+		@Override
+		public int available() {
+			lock.lock();
+			try {
+				byte[] chunk = stream.data.peek();
+				return chunk == null ? 0 : chunk.length - stream.offset;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Cuts the response body of a stream into DATA frames as its windows allow.
+	 */
+	private class DataOutput extends OutputStream {
+
+		private final Stream stream;
+
+		private final byte[] buffer = new byte[MAX_FRAME_SIZE];
+
+		private int count;
+
+		DataOutput(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				send(false);
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					send(false);
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				send(false);
+			}
+		}
+
+		/**
+		 * Sends what is left with END_STREAM; not done on close, so a failed body is not made to look complete.
+		 */
+		void finish() throws IOException {
+			send(true);
+		}
+
+		private void send(boolean end) throws IOException {
+			int offset = 0;
+			do {
+				int length = count > offset ? reserve(stream, count - offset) : 0;
+				boolean last = end && offset + length == count;
+				writeLock.lock();
+				try {
+					checkOpen(stream);
+					writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, buffer, offset, length);
+					out.flush();
+				} finally {
+					writeLock.unlock();
+				}
+				offset += length;
+			} while (offset < count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * A protocol violation; a connection error when stream is 0, a stream error otherwise.
+	 */
+	static class Http2Error extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		final int code;
+
+		final int stream;
+
+		Http2Error(int code, int stream, String message) {
+			super(message);
+			this.code = code;
+			this.stream = stream;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package io.java.server;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.eventLoop.events.AbstractEvent;
+
+/**
+ * Serves one request stream of an HTTP/2 connection on the event loop, so
+ * the streams of a connection are handled concurrently; completes once the
+ * response is written.
+ */
+public class Http2StreamEvent extends AbstractEvent<Void> {
+
+	// sequential ids, UUID.randomUUID() would hit SecureRandom on every request
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final Http2Connection connection;
+
+	private final Http2Connection.Stream stream;
+
+	Http2StreamEvent(Http2Connection connection, Http2Connection.Stream stream) {
+		super(new UUID(0, SEQUENCE.incrementAndGet()));
+		this.connection = connection;
+		this.stream = stream;
+	}
+
+	/**
+	 * Event loop handler of every Http2StreamEvent.
+	 */
+	public void run() {
+		try {
+			connection.serve(stream);
+			complete();
+		} catch (Exception e) {
+			except(e);
+		}
+	}
+}
@@ -1,23 +1,28 @@
 package io.java.server;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.apache.log4j.Logger;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- * HttpRequest class parses the HTTP Request Line (method, URI, version) 
+ * HttpRequest class parses the HTTP Request Line (method, URI, version)
  * and Headers http://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+ *
+ * The bytes are parsed by a pooled {@link RequestParser}; the request keeps a
+ * single copy of the raw head and decodes header values only when asked. The
+ * body is not read up front, see {@link #getBody()}.
  */
-public class HttpRequest {
+public final class HttpRequest {
+
+	public static final String HTTP_1_0 = "HTTP/1.0";
 
-	private static Logger log = Logger.getLogger(HttpRequest.class);
+	public static final String HTTP_1_1 = "HTTP/1.1";
 
-	List<String> headers = new ArrayList<String>();
+	public static final String HTTP_2_0 = "HTTP/2.0";
 
 	Method method;
 
@@ -25,31 +30,165 @@ public class HttpRequest {
 
 	String version;
 
+	/**
+	 * Raw request head up to and including the empty line.
+	 */
+	byte[] head;
+
+	int headEnd;
+
+	private int[] headers;
+
+	private int headerCount;
+
+	private int[] known;
+
+	private RequestBody body;
+
 	public HttpRequest(InputStream is) throws IOException {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-		String str = reader.readLine();
-		parseRequestLine(str);
+		// not pooled, the body may still need the buffered bytes
+		RequestParser parser = new RequestParser();
+		while (!parser.parse()) {
+			if (parser.read(is) < 0) {
+				throw new EOFException("Connection closed before the end of the request head");
+			}
+		}
+		init(parser);
+		body = RequestBody.of(this, parser, is, null);
+	}
+
+	/**
+	 * Builds a request without body from a parser whose {@link RequestParser#parse()} returned true.
+	 */
+	public HttpRequest(RequestParser parser) {
+		init(parser);
+		body = RequestBody.empty();
+	}
+
+	/**
+	 * Builds the request from a parser whose {@link RequestParser#parse()}
+	 * returned true; the body continues with the parser's buffered bytes and
+	 * then the input stream. "100 Continue" goes to out if the client expects it.
+	 */
+	public HttpRequest(RequestParser parser, InputStream in, OutputStream out) throws BadRequestException {
+		init(parser);
+		body = RequestBody.of(this, parser, in, out);
+	}
+
+	/**
+	 * Builds the request of an HTTP/2 stream from a parser holding the head
+	 * synthesized from its header fields; the body is read from body, which
+	 * ends with the stream, or is empty when body is null.
+	 */
+	HttpRequest(RequestParser parser, InputStream body) {
+		init(parser);
+		version = HTTP_2_0;
+		this.body = body == null ? RequestBody.empty() : RequestBody.of(body);
+	}
+
+	private void init(RequestParser parser) {
+		ByteBuffer buf = parser.buffer();
+		head = new byte[parser.headEnd];
+		buf.get(0, head);
+		headEnd = parser.headEnd;
+		headerCount = parser.headerCount;
+		headers = Arrays.copyOf(parser.headers, headerCount * 4);
+		known = parser.known.clone();
+		method = parser.method;
+		uri = new String(head, parser.uriStart, parser.uriEnd - parser.uriStart, StandardCharsets.ISO_8859_1);
+		version = parser.versionMinor == 0 ? HTTP_1_0 : HTTP_1_1;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public String getVersion() {
+		return version;
+	}
 
-		while (!str.equals("")) {
-			str = reader.readLine();
-			parseRequestHeader(str);
+	/**
+	 * The request body, read on demand; the parser it came from must stay
+	 * acquired until the body is consumed.
+	 */
+	public RequestBody getBody() {
+		return body;
+	}
+
+	/**
+	 * Whether the client wants the connection kept open: the default for
+	 * HTTP/1.1 unless it sent "Connection: close", opt-in for HTTP/1.0.
+	 */
+	public boolean isKeepAlive() {
+		String connection = getHeader(Header.CONNECTION);
+		if (HTTP_1_1.equals(version)) {
+			return connection == null || !hasToken(connection, "close");
 		}
+		return connection != null && hasToken(connection, "keep-alive");
+	}
+
+	/**
+	 * Whether a body follows the head.
+	 */
+	public boolean hasBody() {
+		String length = getHeader(Header.CONTENT_LENGTH);
+		return getHeader(Header.TRANSFER_ENCODING) != null || (length != null && !length.equals("0"));
+	}
+
+	private static boolean hasToken(String list, String token) {
+		for (String element : list.split(",")) {
+			if (element.trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getHeader(Header header) {
+		int index = known[header.ordinal()];
+		return index == 0 ? null : getHeaderValue(index - 1);
+	}
+
+	/**
+	 * Returns the value of the first header with the given (case-insensitive) name or null.
+	 */
+	public String getHeader(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			int start = headers[i * 4];
+			int length = headers[i * 4 + 1] - start;
+			if (length == name.length() && matches(start, name)) {
+				return getHeaderValue(i);
+			}
+		}
+		return null;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	public String getHeaderName(int i) {
+		return decode(headers[i * 4], headers[i * 4 + 1]);
+	}
+
+	public String getHeaderValue(int i) {
+		return decode(headers[i * 4 + 2], headers[i * 4 + 3]);
 	}
 
-	private void parseRequestLine(String str) {
-		log.info(str);
-		String[] split = str.split("\\s+");
-		try {
-			method = Method.valueOf(split[0]);
-		} catch (Exception e) {
-			method = Method.UNRECOGNIZED;
+	private boolean matches(int start, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char) head[start + i]) != Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
 		}
-		uri = split[1];
-		version = split[2];
+		return true;
 	}
 
-	private void parseRequestHeader(String str) {
-		log.info(str);
-		headers.add(str);
+	private String decode(int start, int end) {
+		return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
 	}
 }
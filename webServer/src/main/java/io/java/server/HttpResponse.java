@@ -1,58 +1,142 @@
 package io.java.server;
 
-import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import org.apache.log4j.Logger;
 
 
-public class HttpResponse {
+public final class HttpResponse {
 
 	private static Logger log = Logger.getLogger(HttpResponse.class);
 
 	public static final String VERSION = "HTTP/1.0";
 
-	List<String> headers = new ArrayList<String>();
+	private static final byte[] CRLF = ascii("\r\n");
+
+	private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+
+	private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+
+	private static final byte[] SERVER = ascii("Server: SimpleWebServer\r\n");
+
+	private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+
+	private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+	private static final byte[] ALLOW_STATIC = ascii("Allow: GET, HEAD\r\n");
+
+	private static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+	/**
+	 * Produces the body of a streaming response while it is being written.
+	 */
+	public interface BodyWriter {
+
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Encoded header lines including their CRLF. Constant lines are shared
+	 * arrays, only values such as Content-Length are encoded per response.
+	 */
+	List<byte[]> headers = new ArrayList<byte[]>();
+
+	String version = VERSION;
+
+	Status status;
+
+	/**
+	 * The status code sent, which for a relayed response may be one
+	 * {@link Status} lacks; status is then the first of its class.
+	 */
+	int code;
+
+	/**
+	 * Decides the Connection header, which is only added when the response is written.
+	 */
+	boolean keepAlive;
+
+	long contentLength;
 
 	byte[] body;
 
-	public HttpResponse(HttpRequest req) throws IOException, InterruptedException {
-		Thread.sleep(200);
+	/**
+	 * File bodies are never copied onto the heap, the requested ranges are
+	 * transferred straight from the FileChannel when the response is written.
+	 */
+	File file;
+
+	List<ByteRange> ranges;
+
+	/**
+	 * Part headers of a multipart/byteranges response, one per range, plus the closing delimiter.
+	 */
+	List<byte[]> parts;
+
+	BodyWriter writer;
+
+	boolean streaming;
+
+	boolean chunked;
+
+	/**
+	 * Accept-Encoding of the request, for streaming responses whose content type is only set later.
+	 */
+	String acceptEncoding;
+
+	/**
+	 * Coding a streaming body is compressed with while it is written, null for identity.
+	 */
+	ContentEncoding encoding;
+
+	/**
+	 * Closed once the response is done with, such as the upstream connection a relayed body is read from.
+	 */
+	Closeable resource;
+
+	public HttpResponse(HttpRequest req) throws IOException {
+		version = req.version;
 		switch (req.method) {
 			case HEAD:
 				fillHeaders(Status._200);
 				break;
 			case GET:
 				try {
-					File file = new File("." + req.uri);
-					if (file.isDirectory()) {
-					    fillHeaders(Status._200);
-					    
-						headers.add(ContentType.HTML.toString());
-						StringBuilder result = new StringBuilder("<html><head><title>Index of test");
-						result.append(req.uri);
-						result.append("</title></head><body><h1>Index of test ");
-						result.append(req.uri);
-						result.append("</h1><hr><pre>");
-
-						// TODO add Parent Directory
-						result.append("<hr></pre></body></html>");
-						fillResponse(result.toString());
-					} else if (file.exists()) {
-					    fillHeaders(Status._200);
-						setContentType(req.uri, headers);
-						fillResponse(getBytes(file));
-					} else {
-						log.info("File not found:" + req.uri);
+					String path = StaticIndex.path(req.uri);
+					StaticIndex.Entry entry = StaticIndex.current().lookup(path);
+					if (entry == null) {
+						entry = StaticIndex.resolve(path);
+					}
+					if (entry == StaticIndex.MISSING) {
 						fillHeaders(Status._404);
 						fillResponse(Status._404.toString());
+					} else if (entry.isDirectory()) {
+						fillDirectory(req, entry.file);
+					} else {
+						fillFile(req, entry);
 					}
+				} catch (BadRequestException e) {
+					fillHeaders(e.getStatus());
+					fillResponse(e.getStatus().toString());
 				} catch (Exception e) {
 					log.error("Response Error", e);
 					fillHeaders(Status._400);
@@ -64,6 +148,14 @@ public class HttpResponse {
 				fillHeaders(Status._400);
 				fillResponse(Status._400.toString());
 				break;
+			case POST:
+			case PUT:
+			case DELETE:
+				// static files are read-only, the caller drains the request body
+				fillHeaders(Status._405);
+				headers.add(ALLOW_STATIC);
+				fillResponse(Status._405.toString());
+				break;
 			default:
 				fillHeaders(Status._501);
 				fillResponse(Status._501.toString());
@@ -71,52 +163,611 @@ public class HttpResponse {
 
 	}
 
-	private byte[] getBytes(File file) throws IOException {
-		int length = (int) file.length();
-		byte[] array = new byte[length];
-		InputStream in = new FileInputStream(file);
-		int offset = 0;
-		while (offset < length) {
-			int count = in.read(array, offset, (length - offset));
-			offset += count;
+	/**
+	 * Error response for requests that could not be parsed.
+	 */
+	public HttpResponse(Status status) {
+		fillHeaders(status);
+		fillResponse(status.toString());
+	}
+
+	/**
+	 * Response with an in-memory body, as route handlers build them.
+	 */
+	public HttpResponse(HttpRequest req, Status status, ContentType type, byte[] body) {
+		version = req.version;
+		fillHeaders(status);
+		if (type != null) {
+			setContentType(type);
+		}
+		fillResponse(body);
+		if (req.method == Method.HEAD) {
+			this.body = null;
+		}
+	}
+
+	public HttpResponse(HttpRequest req, Status status, ContentType type, String body) {
+		this(req, status, type, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Streaming response whose body the writer produces while the response
+	 * is written, so it never has to fit in memory. HTTP/1.1 clients get it
+	 * with the chunked coding; HTTP/1.0 has none, so there the end of the
+	 * body is marked by closing the connection.
+	 */
+	public HttpResponse(HttpRequest req, Status status, BodyWriter writer) {
+		version = req.version;
+		fillHeaders(status);
+		fillStream(req, writer);
+		acceptEncoding = req.getHeader(Header.ACCEPT_ENCODING);
+	}
+
+	/**
+	 * Response relayed from an upstream server, see {@link ProxyHandler}. The
+	 * status code and reason go out as the upstream sent them. A body of
+	 * known length keeps it, one of unknown (negative) length is streamed
+	 * like any other; without writer the response has no body and its
+	 * headers are all up to the caller.
+	 */
+	HttpResponse(HttpRequest req, int code, String reason, long length, BodyWriter writer) {
+		version = req.version;
+		status = Status.of(code);
+		this.code = code;
+		headers.add(ascii((HttpRequest.HTTP_1_1.equals(version) ? HttpRequest.HTTP_1_1 : HttpRequest.HTTP_1_0) + " "
+				+ code + " " + reason + "\r\n"));
+		headers.add(SERVER);
+		if (writer == null) {
+			return;
+		}
+		if (length < 0) {
+			fillStream(req, writer);
+		} else {
+			contentLength = length;
+			addHeader("Content-Length", length);
+			if (req.method != Method.HEAD) {
+				this.writer = writer;
+			}
+		}
+	}
+
+	/**
+	 * Lists the directory, from the {@link DirectoryListing} cache while it
+	 * is unchanged. Directories are only listed under a URI ending in '/', so
+	 * that the relative links of the listing resolve.
+	 */
+	private void fillDirectory(HttpRequest req, File dir) {
+		int query = req.uri.indexOf('?');
+		String path = query < 0 ? req.uri : req.uri.substring(0, query);
+		if (!path.endsWith("/")) {
+			fillHeaders(Status._301);
+			addHeader("Location", path + "/");
+			fillResponse(Status._301.toString());
+			return;
+		}
+		fillHeaders(Status._200);
+		byte[] cached = DirectoryListing.INSTANCE.get(dir.toPath());
+		if (cached != null) {
+			setContentType(ContentType.HTML);
+			if (ContentCache.INSTANCE.varies(ContentType.HTML, -1)) {
+				// the rendered listing is compressed for clients that accept it
+				headers.add(VARY_ACCEPT_ENCODING);
+			}
+			fillResponse(cached);
+		} else {
+			fillStream(req, DirectoryListing.INSTANCE.writer(dir.toPath()));
+			acceptEncoding = req.getHeader(Header.ACCEPT_ENCODING);
+			setContentType(ContentType.HTML);
+		}
+	}
+
+	/**
+	 * Sends a file, from memory when the {@link StaticIndex} preloaded it;
+	 * a conditional request for an unchanged file gets a 304.
+	 */
+	private void fillFile(HttpRequest req, StaticIndex.Entry entry) throws IOException {
+		File file = entry.file;
+		long length = entry.length;
+		ContentType type = entry.type;
+		boolean varies = ContentCache.INSTANCE.varies(type, length);
+		if (isNotModified(req, entry)) {
+			fillHeaders(Status._304);
+			if (varies) {
+				headers.add(VARY_ACCEPT_ENCODING);
+			}
+			addValidators(entry, varies ? ContentEncoding.negotiate(req.getHeader(Header.ACCEPT_ENCODING)) : null);
+			return;
+		}
+		List<ByteRange> requested = ByteRange.parse(req.getHeader(Header.RANGE), length);
+		if (requested == null) {
+			if (varies) {
+				ContentEncoding encoding = ContentEncoding.negotiate(req.getHeader(Header.ACCEPT_ENCODING));
+				if (encoding != null && fillCompressed(req, entry, encoding)) {
+					return;
+				}
+			}
+			fillHeaders(Status._200);
+			if (type != null) {
+				setContentType(type);
+			}
+			headers.add(ACCEPT_RANGES);
+			if (varies) {
+				headers.add(VARY_ACCEPT_ENCODING);
+			}
+			addValidators(entry, null);
+			if (entry.content != null) {
+				fillResponse(entry.content);
+			} else {
+				fillResponse(file, List.of(new ByteRange(0, length - 1)));
+			}
+		} else if (requested.isEmpty()) {
+			fillHeaders(Status._416);
+			addHeader("Content-Range", "bytes */" + length);
+			fillResponse(Status._416.toString());
+		} else if (requested.size() == 1) {
+			ByteRange range = requested.get(0);
+			fillHeaders(Status._206);
+			if (type != null) {
+				setContentType(type);
+			}
+			headers.add(ACCEPT_RANGES);
+			if (varies) {
+				// the whole file would have been compressed, a cache must not serve this range for that
+				headers.add(VARY_ACCEPT_ENCODING);
+			}
+			addValidators(entry, null);
+			addHeader("Content-Range", range.contentRange(length));
+			fillResponse(file, requested);
+		} else {
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+			parts = new ArrayList<byte[]>();
+			for (ByteRange range : requested) {
+				parts.add(ascii("\r\n--" + boundary + "\r\n" + (type == null ? "" : type + "\r\n")
+						+ "Content-Range: " + range.contentRange(length) + "\r\n\r\n"));
+			}
+			parts.add(ascii("\r\n--" + boundary + "--\r\n"));
+
+			fillHeaders(Status._206);
+			headers.add(ACCEPT_RANGES);
+			if (varies) {
+				headers.add(VARY_ACCEPT_ENCODING);
+			}
+			addHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			fillResponse(file, requested);
+		}
+	}
+
+	/**
+	 * Sends the file compressed: from the {@link ContentCache} when it fits
+	 * there, otherwise compressed while it is written. Returns false when
+	 * compressing does not make the file smaller.
+	 */
+	private boolean fillCompressed(HttpRequest req, StaticIndex.Entry entry, ContentEncoding encoding)
+			throws IOException {
+		File file = entry.file;
+		byte[] compressed = null;
+		if (ContentCache.INSTANCE.isCacheable(entry.length)) {
+			compressed = ContentCache.INSTANCE.get(file, entry.length, entry.lastModified, encoding);
+			if (compressed == null) {
+				return false;
+			}
+		}
+		fillHeaders(Status._200);
+		setContentType(entry.type);
+		headers.add(VARY_ACCEPT_ENCODING);
+		headers.add(encoding.getHeaderBytes());
+		addValidators(entry, encoding);
+		if (compressed != null) {
+			fillResponse(compressed);
+		} else {
+			this.encoding = encoding;
+			fillStream(req, out -> {
+				try (InputStream in = Files.newInputStream(file.toPath())) {
+					in.transferTo(out);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since, as in
+	 * http://tools.ietf.org/html/rfc7232#section-6
+	 */
+	private static boolean isNotModified(HttpRequest req, StaticIndex.Entry entry) {
+		String ifNoneMatch = req.getHeader(Header.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return entry.matches(ifNoneMatch);
+		}
+		String ifModifiedSince = req.getHeader(Header.IF_MODIFIED_SINCE);
+		return ifModifiedSince != null && entry.notModifiedSince(ifModifiedSince);
+	}
+
+	private void addValidators(StaticIndex.Entry entry, ContentEncoding encoding) {
+		addHeader("ETag", entry.etag(encoding));
+		addHeader("Last-Modified", entry.lastModifiedDate);
+	}
+
+	private void fillStream(HttpRequest req, BodyWriter writer) {
+		streaming = true;
+		chunked = HttpRequest.HTTP_1_1.equals(version);
+		if (chunked) {
+			headers.add(TRANSFER_ENCODING_CHUNKED);
+		}
+		if (req.method != Method.HEAD) {
+			this.writer = writer;
 		}
-		in.close();
-		return array;
 	}
 
 	private void fillHeaders(Status status) {
-		headers.add(HttpResponse.VERSION + " " + status.toString());
-		headers.add("Connection: close");
-		headers.add("Server: SimpleWebServer");
+		this.status = status;
+		this.code = status.getCode();
+		headers.add(status.getStatusLine(version));
+		headers.add(SERVER);
+	}
+
+	public void addHeader(String name, Object value) {
+		headers.add(ascii(name + ": " + value + "\r\n"));
 	}
 
 	private void fillResponse(String response) {
-		body = response.getBytes();
+		fillResponse(response.getBytes());
 	}
 
 	private void fillResponse(byte[] response) {
 		body = response;
+		contentLength = response.length;
+		addHeader("Content-Length", contentLength);
+	}
+
+	private void fillResponse(File file, List<ByteRange> ranges) {
+		this.file = file;
+		this.ranges = ranges;
+		contentLength = 0;
+		for (ByteRange range : ranges) {
+			contentLength += range.length();
+		}
+		if (parts != null) {
+			for (byte[] part : parts) {
+				contentLength += part.length;
+			}
+		}
+		addHeader("Content-Length", contentLength);
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * The status code sent, see {@link #code}.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Whether the connection stays open after this response; off by default
+	 * and impossible for close-delimited streaming responses.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive && (writer == null || chunked || !streaming);
+	}
+
+	/**
+	 * Sets what {@link #close()} releases.
+	 */
+	public void setResource(Closeable resource) {
+		this.resource = resource;
+	}
+
+	/**
+	 * Releases the resource of the response; the connection calls it once the
+	 * response was written or failed, and it does nothing a second time.
+	 */
+	public void close() {
+		Closeable resource = this.resource;
+		this.resource = null;
+		if (resource != null) {
+			try {
+				resource.close();
+			} catch (IOException e) {
+				log.warn("Releasing the response failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Number of body bytes this response sends; for streaming responses only known once written.
+	 */
+	public long getContentLength() {
+		return contentLength;
 	}
 
 	public void write(OutputStream os) throws IOException {
-		DataOutputStream output = new DataOutputStream(os);
-		for (String header : headers) {
-			output.writeBytes(header + "\r\n");
+		write(Channels.newChannel(os));
+		os.flush();
+	}
+
+	/**
+	 * Copies the status line, headers and in-memory body into a pooled
+	 * direct buffer, so a small response is a single write; file bodies
+	 * follow with a positional transfer.
+	 */
+	public void write(WritableByteChannel channel) throws IOException {
+		int size = CONNECTION_KEEP_ALIVE.length + CRLF.length + (body != null ? body.length : 0);
+		for (byte[] header : headers) {
+			size += header.length;
+		}
+		ByteBuffer buffer = BufferPool.INSTANCE.acquire(Math.min(size, BufferPool.MAX_SIZE));
+		try {
+			for (byte[] header : headers) {
+				put(channel, buffer, header);
+			}
+			put(channel, buffer, keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+			put(channel, buffer, CRLF);
+			if (body != null) {
+				put(channel, buffer, body);
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+		} finally {
+			BufferPool.INSTANCE.release(buffer);
+		}
+		if (file != null) {
+			writeFile(channel);
 		}
-		output.writeBytes("\r\n");
+		if (writer != null) {
+			writeStream(channel);
+		}
+	}
+
+	/**
+	 * Whether a body follows the headers.
+	 */
+	boolean hasContent() {
+		return (body != null && body.length > 0) || file != null || writer != null;
+	}
+
+	/**
+	 * Writes the body alone, for HTTP/2 streams which carry it in their own
+	 * frames; status and headers are taken from {@link #headers}.
+	 */
+	void writeContent(OutputStream out) throws IOException {
 		if (body != null) {
-			output.write(body);
+			out.write(body);
+		}
+		if (file != null) {
+			copyFile(out);
+		}
+		if (writer != null) {
+			CountingOutputStream counting = new CountingOutputStream(out);
+			writeBody(counting);
+			contentLength = counting.count;
+		}
+	}
+
+	private void writeStream(WritableByteChannel channel) throws IOException {
+		ChannelOutputStream out = new ChannelOutputStream(channel,
+				BufferPool.INSTANCE.acquire(ChunkedOutputStream.DEFAULT_BUFFER_SIZE + 32));
+		try {
+			if (chunked) {
+				ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+				writeBody(chunks);
+				chunks.finish();
+				contentLength = chunks.getWritten();
+			} else {
+				CountingOutputStream counting = new CountingOutputStream(out);
+				writeBody(counting);
+				counting.flush();
+				contentLength = counting.count;
+			}
+		} finally {
+			BufferPool.INSTANCE.release(out.buffer);
 		}
-		output.writeBytes("\r\n");
-		output.flush();
 	}
 
-	private void setContentType(String uri, List<String> list) {
+	private void writeBody(OutputStream out) throws IOException {
+		if (encoding == null) {
+			writer.writeTo(out);
+			return;
+		}
+		// not cached, so the faster default level rather than the best one
+		DeflaterOutputStream compressed = encoding.wrap(out, Deflater.DEFAULT_COMPRESSION);
+		boolean written = false;
 		try {
-			String ext = uri.substring(uri.indexOf(".") + 1);
-			list.add(ContentType.valueOf(ext.toUpperCase()).toString());
-		} catch (Exception e) {
-			log.error("ContentType not found: " + e, e);
+			writer.writeTo(compressed);
+			written = true;
+		} finally {
+			if (written) {
+				compressed.close();
+			} else {
+				// no trailer, the connection is dropped with the body incomplete
+				ContentEncoding.abort(compressed);
+			}
+		}
+	}
+
+	/**
+	 * Copies bytes into the buffer, writing it out whenever it fills up.
+	 */
+	private static void put(WritableByteChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+			}
+			int count = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, count);
+			offset += count;
+		}
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer... buffers) throws IOException {
+		if (channel instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			int first = 0;
+			while (first < buffers.length) {
+				gathering.write(buffers, first, buffers.length - first);
+				while (first < buffers.length && !buffers[first].hasRemaining()) {
+					first++;
+				}
+			}
+		} else {
+			for (ByteBuffer buffer : buffers) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+	private void writeFile(WritableByteChannel target) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (int i = 0; i < ranges.size(); i++) {
+				if (parts != null) {
+					writeFully(target, ByteBuffer.wrap(parts.get(i)));
+				}
+				transfer(channel, ranges.get(i), target);
+			}
+			if (parts != null) {
+				writeFully(target, ByteBuffer.wrap(parts.get(ranges.size())));
+			}
+		}
+	}
+
+	/**
+	 * Copies the file ranges through a heap array with positional reads.
+	 * Wrapping the stream in a channel would hold a monitor while the stream
+	 * blocks, which pins a virtual thread to its carrier.
+	 */
+	private void copyFile(OutputStream out) throws IOException {
+		byte[] bytes = new byte[ChunkedOutputStream.DEFAULT_BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (int i = 0; i < ranges.size(); i++) {
+				if (parts != null) {
+					out.write(parts.get(i));
+				}
+				ByteRange range = ranges.get(i);
+				long position = range.start;
+				long remaining = range.length();
+				while (remaining > 0) {
+					buffer.clear().limit((int) Math.min(bytes.length, remaining));
+					int count = channel.read(buffer, position);
+					if (count <= 0) {
+						throw new EOFException("File truncated while sending range " + range.start + "-" + range.end);
+					}
+					out.write(bytes, 0, count);
+					position += count;
+					remaining -= count;
+				}
+			}
+			if (parts != null) {
+				out.write(parts.get(ranges.size()));
+			}
+		}
+	}
+
+	private static void transfer(FileChannel channel, ByteRange range, WritableByteChannel target) throws IOException {
+		long position = range.start;
+		long remaining = range.length();
+		while (remaining > 0) {
+			long count = channel.transferTo(position, remaining, target);
+			if (count <= 0) {
+				throw new EOFException("File truncated while sending range " + range.start + "-" + range.end);
+			}
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Adds the Content-Type header; a streaming body of a compressible type
+	 * is also compressed for clients that accept it.
+	 */
+	public void setContentType(ContentType type) {
+		headers.add(type.getHeaderBytes());
+		if (streaming && encoding == null && ContentCache.INSTANCE.varies(type, -1)) {
+			headers.add(VARY_ACCEPT_ENCODING);
+			encoding = ContentEncoding.negotiate(acceptEncoding);
+			if (encoding != null) {
+				headers.add(encoding.getHeaderBytes());
+			}
+		}
+	}
+
+	private static byte[] ascii(String str) {
+		return str.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Buffers a streaming body in a pooled buffer and writes it to the channel when full or flushed.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+
+		final WritableByteChannel channel;
+
+		final ByteBuffer buffer;
+
+		ChannelOutputStream(WritableByteChannel channel, ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+				int count = Math.min(buffer.remaining(), len);
+				buffer.put(b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			buffer.flip();
+			writeFully(channel, buffer);
+			buffer.clear();
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
 		}
 	}
 }
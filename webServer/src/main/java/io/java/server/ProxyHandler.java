@@ -0,0 +1,240 @@
+package io.java.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ProxyHandler forwards the requests under a path prefix to an upstream
+ * HTTP/1.1 server and relays its responses, replacing the prefix with the
+ * path of the upstream URL. Connections come from the {@link UpstreamPool} of
+ * the upstream; request and response bodies are streamed through without
+ * being buffered, so they may be of any size.
+ *
+ * Hop-by-hop headers are dropped in both directions and the body is framed
+ * anew; the upstream sees its own Host and the client's in
+ * X-Forwarded-Host. An upstream that can not be reached or answers garbage
+ * gets the client a 502, one that does not answer in time a 504, and one
+ * that is busy with its maximum of requests a 503.
+ */
+public class ProxyHandler implements RouteHandler {
+
+	private static Logger log = Logger.getLogger(ProxyHandler.class);
+
+	private static final String[] HOP_BY_HOP = { "Connection", "Keep-Alive", "Proxy-Authenticate",
+			"Proxy-Authorization", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade" };
+
+	private final String prefix;
+
+	private final String host;
+
+	private final String path;
+
+	private final UpstreamPool pool;
+
+	/**
+	 * Proxies the requests under prefix, which has to end with '/', to the
+	 * "http://host:port/path" upstream through the pool.
+	 */
+	public ProxyHandler(String prefix, String upstream, UpstreamPool pool) {
+		if (!prefix.startsWith("/") || !prefix.endsWith("/")) {
+			throw new IllegalArgumentException("Proxy prefix must start and end with '/': " + prefix);
+		}
+		URI uri = URI.create(upstream);
+		if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+			throw new IllegalArgumentException("Upstream must be an http:// URL: " + upstream);
+		}
+		String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+		this.prefix = prefix;
+		this.host = uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort());
+		this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+		this.pool = pool;
+	}
+
+	/**
+	 * Proxies the requests under prefix to the upstream URL with a pool of its own.
+	 */
+	public ProxyHandler(String prefix, String upstream, int maxConnections, long queueTimeout, int timeout,
+			long idleTimeout) {
+		this(prefix, upstream, new UpstreamPool(URI.create(upstream).getHost(), port(URI.create(upstream)),
+				maxConnections, queueTimeout, timeout, idleTimeout));
+	}
+
+	private static int port(URI uri) {
+		return uri.getPort() < 0 ? 80 : uri.getPort();
+	}
+
+	/**
+	 * Routes every method under the prefix to this handler.
+	 */
+	public ProxyHandler register(Router router) {
+		for (Method method : Method.values()) {
+			if (method != Method.UNRECOGNIZED && method != Method.CONNECT) {
+				router.add(method, prefix + "{path*}", this);
+			}
+		}
+		return this;
+	}
+
+	public UpstreamPool getPool() {
+		return pool;
+	}
+
+	@Override
+	public HttpResponse handle(HttpRequest req, RouteMatch match) throws IOException {
+		boolean head = req.method == Method.HEAD;
+		RequestBody body = req.getBody();
+		boolean hasBody = !body.isDone();
+		long length = hasBody && req.getHeader(Header.TRANSFER_ENCODING) == null ? contentLength(req) : -1;
+		byte[] requestHead = requestHead(req, hasBody, length);
+
+		UpstreamConnection connection;
+		try {
+			connection = pool.acquire();
+		} catch (IOException e) {
+			return failed(req, e);
+		}
+		if (connection == null) {
+			HttpResponse res = new HttpResponse(req, Status._503, ContentType.TXT, Status._503.toString());
+			res.addHeader("Retry-After", 1);
+			return res;
+		}
+		try {
+			// a request that is not sent again has to go out on a connection known to be open
+			if ((hasBody || !isIdempotent(req.method)) && connection.reused && connection.isStale()) {
+				connection = pool.reopen(connection);
+			}
+			try {
+				connection.send(requestHead, hasBody ? body : null, length);
+				connection.readHead(head);
+			} catch (IOException e) {
+				if (!connection.reused || hasBody || connection.answered || e instanceof SocketTimeoutException
+						|| !isIdempotent(req.method)) {
+					throw e;
+				}
+				// the upstream closed the idle connection meanwhile without answering, so send it again
+				log.debug("Retrying on a new connection to " + pool + ": " + e);
+				connection = pool.reopen(connection);
+				connection.send(requestHead, null, 0);
+				connection.readHead(head);
+			}
+		} catch (IOException e) {
+			pool.release(connection, false);
+			return failed(req, e);
+		}
+		return relay(req, connection);
+	}
+
+	/**
+	 * Whether the request can be sent again without harm when the upstream
+	 * may have received it; PUT and DELETE are idempotent too, but a second
+	 * one may still see another state than the first.
+	 */
+	private static boolean isIdempotent(Method method) {
+		return method == Method.GET || method == Method.HEAD || method == Method.TRACE;
+	}
+
+	private HttpResponse failed(HttpRequest req, IOException e) {
+		if (e instanceof SocketTimeoutException) {
+			log.warn("Upstream " + pool + " timed out on " + req.getUri());
+			return new HttpResponse(req, Status._504, ContentType.TXT, Status._504.toString());
+		}
+		log.warn("Upstream " + pool + " failed on " + req.getUri() + ": " + e);
+		return new HttpResponse(req, Status._502, ContentType.TXT, Status._502.toString());
+	}
+
+	private HttpResponse relay(HttpRequest req, UpstreamConnection connection) {
+		UpstreamConnection upstream = connection;
+		HttpResponse res;
+		if (upstream.hasBody()) {
+			res = new HttpResponse(req, upstream.status, upstream.reason, upstream.length, out -> {
+				try (InputStream in = upstream.body()) {
+					in.transferTo(out);
+				}
+			});
+		} else {
+			res = new HttpResponse(req, upstream.status, upstream.reason, -1, null);
+		}
+		String connectionTokens = header(upstream, "Connection");
+		for (int i = 0; i < upstream.headers.size(); i += 2) {
+			String name = upstream.headers.get(i);
+			boolean framing = upstream.hasBody() && name.equalsIgnoreCase("Content-Length");
+			if (!framing && !name.equalsIgnoreCase("Server") && !isHopByHop(name, connectionTokens)) {
+				res.addHeader(name, upstream.headers.get(i + 1));
+			}
+		}
+		res.setResource(() -> pool.release(upstream, upstream.isReusable()));
+		return res;
+	}
+
+	private byte[] requestHead(HttpRequest req, boolean hasBody, long length) {
+		StringBuilder head = new StringBuilder(256);
+		head.append(req.method.name()).append(' ').append(path).append(req.uri, prefix.length() - 1,
+				req.uri.length());
+		head.append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+		String connectionTokens = req.getHeader(Header.CONNECTION);
+		String forwardedHost = req.getHeader(Header.HOST);
+		for (int i = 0; i < req.getHeaderCount(); i++) {
+			String name = req.getHeaderName(i);
+			if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Expect")
+					|| name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("X-Forwarded-Host")
+					|| isHopByHop(name, connectionTokens)) {
+				continue;
+			}
+			head.append(name).append(": ").append(req.getHeaderValue(i)).append("\r\n");
+		}
+		if (forwardedHost != null) {
+			head.append("X-Forwarded-Host: ").append(forwardedHost).append("\r\n");
+		}
+		if (hasBody) {
+			head.append(length < 0 ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + length + "\r\n");
+		}
+		head.append("\r\n");
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static long contentLength(HttpRequest req) {
+		String length = req.getHeader(Header.CONTENT_LENGTH);
+		if (length == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(length.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String header(UpstreamConnection upstream, String name) {
+		for (int i = 0; i < upstream.headers.size(); i += 2) {
+			if (upstream.headers.get(i).equalsIgnoreCase(name)) {
+				return upstream.headers.get(i + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the header only applies to one connection: the standard
+	 * hop-by-hop headers and those named in the Connection header.
+	 */
+	private static boolean isHopByHop(String name, String connectionTokens) {
+		for (String hopByHop : HOP_BY_HOP) {
+			if (hopByHop.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		if (connectionTokens != null) {
+			for (String token : connectionTokens.split(",")) {
+				if (token.trim().equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
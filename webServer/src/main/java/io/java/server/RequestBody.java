@@ -0,0 +1,274 @@
+package io.java.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RequestBody streams the body of a request delimited by Content-Length or
+ * by the chunked transfer coding http://tools.ietf.org/html/rfc7230#section-4.1
+ *
+ * Nothing is read before the handler asks for it, so a handler that consumes
+ * slowly pushes back on the client through the TCP window. Bytes the parser
+ * already received come first; after that data is read straight into the
+ * caller's array, never past the end of the body, while chunk framing goes
+ * through the parser buffer so bytes of a pipelined request stay there.
+ */
+public class RequestBody extends InputStream {
+
+	public static final int MAX_CHUNK_LINE = 4096;
+
+	private static final byte[] CONTINUE = (HttpRequest.HTTP_1_1 + " " + Status._100 + "\r\n\r\n")
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private final RequestParser parser;
+
+	private final InputStream in;
+
+	/**
+	 * Where to send "100 Continue" before the first read, null when the client did not ask for it.
+	 */
+	private OutputStream continueTarget;
+
+	private final boolean chunked;
+
+	/**
+	 * Bytes left in the body, or in the current chunk; negative when the body ends with the input stream.
+	 */
+	private long remaining;
+
+	private boolean chunkStarted;
+
+	private boolean done;
+
+	private long received;
+
+	private RequestBody(RequestParser parser, InputStream in, OutputStream continueTarget, boolean chunked,
+			long length) {
+		this.parser = parser;
+		this.in = in;
+		this.continueTarget = continueTarget;
+		this.chunked = chunked;
+		this.remaining = length;
+		this.done = !chunked && length == 0;
+	}
+
+	/**
+	 * Creates the body reader of a request whose head the parser just
+	 * parsed. A request with both Transfer-Encoding and Content-Length is
+	 * refused, as a proxy in front might frame it by the other one.
+	 */
+	static RequestBody of(HttpRequest req, RequestParser parser, InputStream in, OutputStream out)
+			throws BadRequestException {
+		String encoding = req.getHeader(Header.TRANSFER_ENCODING);
+		String length = req.getHeader(Header.CONTENT_LENGTH);
+		boolean chunked = false;
+		long contentLength = 0;
+		if (encoding != null && length != null) {
+			throw new BadRequestException(Status._400, "Both Transfer-Encoding and Content-Length");
+		}
+		if (encoding != null) {
+			if (!encoding.trim().equalsIgnoreCase("chunked")) {
+				throw new BadRequestException(Status._501, "Unsupported transfer coding " + encoding);
+			}
+			chunked = true;
+		} else if (length != null) {
+			contentLength = parseDigits(length.trim(), 10);
+			if (contentLength < 0) {
+				throw new BadRequestException(Status._400, "Malformed Content-Length");
+			}
+		}
+		String expect = req.getHeader(Header.EXPECT);
+		boolean expectContinue = expect != null && expect.equalsIgnoreCase("100-continue")
+				&& HttpRequest.HTTP_1_1.equals(req.getVersion()) && (chunked || contentLength > 0);
+		return new RequestBody(parser, in, expectContinue ? out : null, chunked, contentLength);
+	}
+
+	/**
+	 * Body of an HTTP/2 stream, which is not delimited in the bytes but ends where in does.
+	 */
+	static RequestBody of(InputStream in) {
+		return new RequestBody(null, in, null, false, -1);
+	}
+
+	/**
+	 * A body that is always at its end.
+	 */
+	static RequestBody empty() {
+		return new RequestBody(null, null, null, false, 0);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (done) {
+			return -1;
+		}
+		sendContinue();
+		if (chunked && remaining == 0) {
+			nextChunk();
+			if (done) {
+				return -1;
+			}
+		}
+		int count = remaining < 0 ? len : (int) Math.min(len, remaining);
+		int buffered = parser != null ? parser.buffered() : 0;
+		if (buffered > 0) {
+			count = Math.min(count, buffered);
+			parser.buffer().get(parser.consumed, b, off, count);
+			parser.consumed += count;
+		} else {
+			count = in.read(b, off, count);
+			if (count < 0) {
+				if (remaining < 0) {
+					done = true;
+					return -1;
+				}
+				throw new EOFException("Connection closed before the end of the request body");
+			}
+		}
+		if (remaining > 0) {
+			remaining -= count;
+		}
+		received += count;
+		if (!chunked && remaining == 0) {
+			done = true;
+		}
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (done) {
+			return 0;
+		}
+		return parser != null ? (int) Math.min(remaining, parser.buffered()) : in.available();
+	}
+
+	/**
+	 * Reads and discards the rest of the body so the connection can carry
+	 * another request. Gives up and returns false when more than max bytes
+	 * are left, or when the client still waits for "100 Continue".
+	 */
+	public boolean drain(long max) throws IOException {
+		if (done) {
+			return true;
+		}
+		if (continueTarget != null || (!chunked && remaining > max)) {
+			return false;
+		}
+		byte[] scratch = new byte[(int) Math.min(8192, Math.max(max, 1))];
+		long limit = received + max;
+		while (read(scratch, 0, scratch.length) >= 0) {
+			if (received > limit) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Body bytes read so far, without chunk framing.
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	private void sendContinue() throws IOException {
+		if (continueTarget != null) {
+			OutputStream out = continueTarget;
+			continueTarget = null;
+			out.write(CONTINUE);
+			out.flush();
+		}
+	}
+
+	private void nextChunk() throws IOException {
+		if (chunkStarted) {
+			String end = readLine();
+			if (!end.isEmpty()) {
+				throw new BadRequestException(Status._400, "Missing CRLF after chunk data");
+			}
+		}
+		chunkStarted = true;
+		String line = readLine();
+		int extension = line.indexOf(';');
+		String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+		remaining = parseDigits(size, 16);
+		if (remaining < 0) {
+			throw new BadRequestException(Status._400, "Malformed chunk size");
+		}
+		if (remaining == 0) {
+			// last chunk, skip the trailer fields up to the empty line
+			while (!readLine().isEmpty()) {
+				// trailers are not exposed
+			}
+			done = true;
+		}
+	}
+
+	/**
+	 * Parses a non-empty run of digits of the radix, -1 for anything else;
+	 * unlike Long.parseLong no sign is accepted. At most 18 decimal or 15
+	 * hexadecimal digits, so the value can not overflow.
+	 */
+	static long parseDigits(String digits, int radix) {
+		if (digits.isEmpty() || digits.length() > (radix == 16 ? 15 : 18)) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char c = digits.charAt(i);
+			// Character.digit() also takes the digits of other scripts
+			int digit = c < 128 ? Character.digit(c, radix) : -1;
+			if (digit < 0) {
+				return -1;
+			}
+			value = value * radix + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads one line of chunk framing through the parser buffer, without its line terminator.
+	 */
+	private String readLine() throws IOException {
+		ByteBuffer buf = parser.buffer();
+		int scanned = 0;
+		while (true) {
+			int start = parser.consumed;
+			for (int i = start + scanned; i < buf.position(); i++) {
+				if (buf.get(i) == '\n') {
+					int end = i > start && buf.get(i - 1) == '\r' ? i - 1 : i;
+					byte[] line = new byte[end - start];
+					buf.get(start, line);
+					parser.consumed = i + 1;
+					return new String(line, StandardCharsets.ISO_8859_1);
+				}
+			}
+			scanned = buf.position() - start;
+			if (scanned >= MAX_CHUNK_LINE) {
+				throw new BadRequestException(Status._400, "Chunk line too long");
+			}
+			parser.compact();
+			if (parser.read(in) < 0) {
+				throw new EOFException("Connection closed before the end of the request body");
+			}
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package io.java.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * RequestParser is an incremental parser for the request line and headers
+ * http://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html
+ *
+ * It works on the bytes [0, position) of its buffer, which the caller keeps
+ * filling; each call to {@link #parse()} resumes where the previous
+ * one stopped, so partial reads are fine. Nothing is copied while parsing, the
+ * parser only records offsets into the buffer. Parsers are pooled, and their
+ * buffers come from the {@link BufferPool}, see {@link #acquire()} and {@link #release()}.
+ */
+public class RequestParser {
+
+	public static final int MAX_LINE_LENGTH = 8192;
+
+	public static final int MAX_HEAD_SIZE = 16384;
+
+	public static final int MAX_HEADERS = 64;
+
+	private static final String TOKEN_SYMBOLS = "!#$%&'*+-.^_`|~";
+
+	private static final Queue<RequestParser> POOL = new ConcurrentLinkedQueue<RequestParser>();
+
+	private static final Method[] METHODS = { Method.GET, Method.HEAD, Method.POST, Method.PUT, Method.DELETE,
+			Method.TRACE, Method.CONNECT };
+
+	private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+
+	static {
+		for (int i = 0; i < METHODS.length; i++) {
+			METHOD_NAMES[i] = METHODS[i].name().getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private static final int REQUEST_LINE = 0;
+
+	private static final int HEADERS = 1;
+
+	private static final int DONE = 2;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * Staging array for stream reads into a direct buffer, allocated on first use.
+	 */
+	private byte[] scratch;
+
+	private int state;
+
+	private int pos;
+
+	private int lineStart;
+
+	Method method;
+
+	int uriStart;
+
+	int uriEnd;
+
+	int versionMinor;
+
+	/**
+	 * Whether the request line was "PRI * HTTP/2.0", the start of the HTTP/2 connection preface.
+	 */
+	boolean http2Preface;
+
+	/**
+	 * Four offsets per header: name start, name end, value start, value end.
+	 */
+	final int[] headers = new int[MAX_HEADERS * 4];
+
+	int headerCount;
+
+	/**
+	 * Index + 1 of the first occurrence of each known header, 0 when absent.
+	 */
+	final int[] known = new int[Header.values().length];
+
+	int headEnd;
+
+	/**
+	 * End of the bytes the request has used up: the head, then whatever a
+	 * {@link RequestBody} took. Everything after it belongs to the next request.
+	 */
+	int consumed;
+
+	/**
+	 * System.nanoTime() of the first parse() call that saw bytes of the current request.
+	 */
+	long startedAt;
+
+	/**
+	 * System.nanoTime() when the head of the current request was complete.
+	 */
+	long parsedAt;
+
+	public RequestParser() {
+		this(ByteBuffer.allocate(MAX_HEAD_SIZE));
+	}
+
+	public RequestParser(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Returns a pooled parser with a pooled direct buffer.
+	 */
+	public static RequestParser acquire() {
+		ByteBuffer buffer = BufferPool.INSTANCE.acquire(MAX_HEAD_SIZE);
+		RequestParser parser = POOL.poll();
+		if (parser == null) {
+			return new RequestParser(buffer);
+		}
+		parser.buffer = buffer;
+		return parser;
+	}
+
+	/**
+	 * Returns the parser and its buffer to their pools.
+	 */
+	public void release() {
+		clearState();
+		BufferPool.INSTANCE.release(buffer);
+		buffer = null;
+		POOL.offer(this);
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public void reset() {
+		buffer.clear();
+		clearState();
+	}
+
+	/**
+	 * Prepares for the next request on a persistent connection: bytes received
+	 * after the current request (a pipelined request) move to the front of
+	 * the buffer and are parsed by the next call to {@link #parse()}.
+	 */
+	public void next() {
+		compact();
+		clearState();
+	}
+
+	/**
+	 * Reads more of the request from the channel into the buffer; returns the
+	 * number of bytes read, or -1 at the end of the stream.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		return channel.read(buffer);
+	}
+
+	/**
+	 * Reads more of the request from the stream into the buffer; returns the
+	 * number of bytes read, or -1 at the end of the stream.
+	 */
+	public int read(InputStream in) throws IOException {
+		int count;
+		if (buffer.hasArray()) {
+			count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (count > 0) {
+				buffer.position(buffer.position() + count);
+			}
+		} else {
+			if (scratch == null) {
+				scratch = new byte[4096];
+			}
+			count = in.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+			if (count > 0) {
+				buffer.put(scratch, 0, count);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Number of received bytes not used up by the current request yet.
+	 */
+	int buffered() {
+		return buffer.position() - consumed;
+	}
+
+	/**
+	 * Drops the used up bytes so the buffer has room to receive more.
+	 */
+	void compact() {
+		int end = buffer.position();
+		buffer.limit(end).position(consumed);
+		buffer.compact();
+		consumed = 0;
+	}
+
+	private void clearState() {
+		state = REQUEST_LINE;
+		pos = 0;
+		lineStart = 0;
+		method = null;
+		http2Preface = false;
+		headerCount = 0;
+		headEnd = 0;
+		consumed = 0;
+		startedAt = 0;
+		parsedAt = 0;
+		Arrays.fill(known, 0);
+	}
+
+	/**
+	 * Scans the bytes received so far and returns true once the empty line
+	 * ending the headers has been seen. Bytes from {@link #headEnd()} to the
+	 * buffer position belong to the body or to the next request.
+	 */
+	public boolean parse() throws BadRequestException {
+		ByteBuffer buf = buffer;
+		int limit = buf.position();
+		if (startedAt == 0 && limit > 0) {
+			startedAt = System.nanoTime();
+		}
+		while (state != DONE && pos < limit) {
+			if (buf.get(pos++) != '\n') {
+				if (pos - lineStart > MAX_LINE_LENGTH) {
+					throw new BadRequestException(state == REQUEST_LINE ? Status._414 : Status._431, "Line too long");
+				}
+				continue;
+			}
+			int end = pos - 1;
+			if (end > lineStart && buf.get(end - 1) == '\r') {
+				end--;
+			}
+			if (state == REQUEST_LINE) {
+				// robust servers ignore empty lines before the request line
+				if (end > lineStart) {
+					parseRequestLine(buf, lineStart, end);
+					state = HEADERS;
+				}
+			} else if (end == lineStart) {
+				headEnd = pos;
+				consumed = pos;
+				parsedAt = System.nanoTime();
+				state = DONE;
+			} else {
+				parseHeader(buf, lineStart, end);
+			}
+			lineStart = pos;
+		}
+		if (state != DONE && !buf.hasRemaining()) {
+			throw new BadRequestException(Status._431, "Request head larger than " + buf.capacity() + " bytes");
+		}
+		return state == DONE;
+	}
+
+	private void parseRequestLine(ByteBuffer buf, int start, int end) throws BadRequestException {
+		int sp1 = indexOf(buf, start, end, (byte) ' ');
+		int sp2 = sp1 < 0 ? -1 : indexOf(buf, sp1 + 1, end, (byte) ' ');
+		if (sp2 < 0 || sp2 == sp1 + 1) {
+			throw new BadRequestException(Status._400, "Malformed request line");
+		}
+		method = lookupMethod(buf, start, sp1);
+		uriStart = sp1 + 1;
+		uriEnd = sp2;
+		int version = sp2 + 1;
+		if (end - version != 8 || buf.get(version) != 'H' || buf.get(version + 1) != 'T'
+				|| buf.get(version + 2) != 'T' || buf.get(version + 3) != 'P' || buf.get(version + 4) != '/'
+				|| buf.get(version + 6) != '.') {
+			throw new BadRequestException(Status._400, "Malformed HTTP version");
+		}
+		if (buf.get(version + 5) != '1') {
+			if (isPreface(buf, start, sp1, sp2, version)) {
+				// the rest of the preface ends in an empty line too, the head stops before it
+				http2Preface = true;
+				versionMinor = 0;
+				return;
+			}
+			throw new BadRequestException(Status._505, "Unsupported HTTP version");
+		}
+		versionMinor = buf.get(version + 7) - '0';
+		if (versionMinor < 0 || versionMinor > 9) {
+			throw new BadRequestException(Status._400, "Malformed HTTP version");
+		}
+	}
+
+	private static boolean isPreface(ByteBuffer buf, int start, int sp1, int sp2, int version) {
+		return sp1 - start == 3 && buf.get(start) == 'P' && buf.get(start + 1) == 'R' && buf.get(start + 2) == 'I'
+				&& sp2 == sp1 + 2 && buf.get(sp1 + 1) == '*' && buf.get(version + 5) == '2'
+				&& buf.get(version + 7) == '0';
+	}
+
+	private void parseHeader(ByteBuffer buf, int start, int end) throws BadRequestException {
+		byte first = buf.get(start);
+		if (first == ' ' || first == '\t') {
+			throw new BadRequestException(Status._400, "Folded header lines are not supported");
+		}
+		if (headerCount == MAX_HEADERS) {
+			throw new BadRequestException(Status._431, "More than " + MAX_HEADERS + " headers");
+		}
+		int colon = indexOf(buf, start, end, (byte) ':');
+		if (colon <= start) {
+			throw new BadRequestException(Status._400, "Malformed header");
+		}
+		for (int i = start; i < colon; i++) {
+			if (!isTokenChar(buf.get(i))) {
+				throw new BadRequestException(Status._400, "Malformed header name");
+			}
+		}
+		int valueStart = colon + 1;
+		while (valueStart < end && isWhitespace(buf.get(valueStart))) {
+			valueStart++;
+		}
+		int valueEnd = end;
+		while (valueEnd > valueStart && isWhitespace(buf.get(valueEnd - 1))) {
+			valueEnd--;
+		}
+		int i = headerCount * 4;
+		headers[i] = start;
+		headers[i + 1] = colon;
+		headers[i + 2] = valueStart;
+		headers[i + 3] = valueEnd;
+		Header header = Header.lookup(buf, start, colon);
+		if (header != null && known[header.ordinal()] == 0) {
+			known[header.ordinal()] = headerCount + 1;
+		}
+		headerCount++;
+	}
+
+	private static Method lookupMethod(ByteBuffer buf, int start, int end) {
+		int length = end - start;
+		for (int m = 0; m < METHODS.length; m++) {
+			byte[] name = METHOD_NAMES[m];
+			if (name.length != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && buf.get(start + i) == name[i]) {
+				i++;
+			}
+			if (i == length) {
+				return METHODS[m];
+			}
+		}
+		return Method.UNRECOGNIZED;
+	}
+
+	private static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether the byte may appear in a header name, a token of
+	 * http://tools.ietf.org/html/rfc7230#section-3.2.6
+	 */
+	private static boolean isTokenChar(byte b) {
+		return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9'
+				|| TOKEN_SYMBOLS.indexOf(b) >= 0;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	public int headEnd() {
+		return headEnd;
+	}
+
+	/**
+	 * Whether the head parsed was "PRI * HTTP/2.0", sent by a client that
+	 * speaks HTTP/2 with prior knowledge; it has no headers and the rest of the
+	 * connection preface follows it.
+	 */
+	public boolean isHttp2Preface() {
+		return http2Preface;
+	}
+
+	/**
+	 * Removes and returns the bytes received after the current request, for a
+	 * connection that leaves HTTP/1.x.
+	 */
+	public byte[] takeBuffered() {
+		byte[] bytes = new byte[buffered()];
+		buffer.get(consumed, bytes);
+		consumed = buffer.position();
+		return bytes;
+	}
+
+	/**
+	 * System.nanoTime() when the first bytes of the current request were parsed, 0 before that.
+	 */
+	public long startedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * System.nanoTime() when the head of the current request was complete, 0 before that.
+	 */
+	public long parsedAt() {
+		return parsedAt;
+	}
+}
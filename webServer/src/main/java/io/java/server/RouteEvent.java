@@ -0,0 +1,47 @@
+package io.java.server;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.eventLoop.events.AbstractEvent;
+
+/**
+ * Runs a matched route on the event loop; completes with the handler's response.
+ */
+public class RouteEvent extends AbstractEvent<HttpResponse> {
+
+	// sequential ids, UUID.randomUUID() would hit SecureRandom on every request
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final RouteHandler handler;
+
+	private final HttpRequest request;
+
+	private final RouteMatch match;
+
+	public RouteEvent(RouteHandler handler, HttpRequest request, RouteMatch match) {
+		super(new UUID(0, SEQUENCE.incrementAndGet()));
+		this.handler = handler;
+		this.request = request;
+		this.match = match;
+	}
+
+	/**
+	 * Event loop handler of every RouteEvent.
+	 */
+	public void run() {
+		try {
+			complete(handler.handle(request, match));
+		} catch (Exception e) {
+			except(e);
+		}
+	}
+
+	public HttpRequest getRequest() {
+		return request;
+	}
+
+	public RouteMatch getMatch() {
+		return match;
+	}
+}
@@ -0,0 +1,11 @@
+package io.java.server;
+
+import java.io.IOException;
+
+/**
+ * Application endpoint registered with a {@link Router}; runs on the event loop.
+ */
+public interface RouteHandler {
+
+	HttpResponse handle(HttpRequest request, RouteMatch match) throws IOException;
+}
@@ -0,0 +1,66 @@
+package io.java.server;
+
+/**
+ * Result of {@link Router#match}: the route and the offsets of its path
+ * parameters in the request URI. One instance is reused for every request of
+ * a connection, so matching allocates nothing; parameter values are only
+ * decoded into strings when asked for, and are returned still percent-encoded.
+ */
+public class RouteMatch {
+
+	public static final int MAX_PARAMS = 32;
+
+	Router.Route route;
+
+	String path;
+
+	final int[] offsets = new int[MAX_PARAMS * 2];
+
+	int count;
+
+	/**
+	 * Allow header value when the path exists but not for the request method.
+	 */
+	String allow;
+
+	void reset(String path) {
+		this.path = path;
+		route = null;
+		count = 0;
+		allow = null;
+	}
+
+	public boolean isMatched() {
+		return route != null;
+	}
+
+	/**
+	 * The pattern the route was registered with.
+	 */
+	public String getPattern() {
+		return route == null ? null : route.pattern;
+	}
+
+	public int getParamCount() {
+		return count;
+	}
+
+	public String getParam(int i) {
+		return path.substring(offsets[i * 2], offsets[i * 2 + 1]);
+	}
+
+	/**
+	 * Value of the named parameter or null.
+	 */
+	public String getParam(String name) {
+		if (route != null) {
+			String[] names = route.params;
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return getParam(i);
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,400 @@
+package io.java.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+
+import io.eventLoop.EventLoop;
+
+/**
+ * Router maps a method and a path pattern onto a {@link RouteHandler}.
+ * Patterns are static text with "{name}" parameters, which match one
+ * non-empty path segment, and an optional trailing "{name*}" that matches the
+ * rest of the path. Routes are added at startup and {@link #compile()}d into
+ * a radix trie; static text wins over a parameter, a parameter over the
+ * catch-all, and the query string is ignored.
+ *
+ * A request that matches no route falls through to the static files; one
+ * whose path matches but not its method gets a 405. Matched handlers run on
+ * the event loop while the connection thread waits for their response.
+ */
+public class Router {
+
+	private static Logger log = Logger.getLogger(Router.class);
+
+	private static final Method[] METHODS = Method.values();
+
+	/**
+	 * Router without routes, every request falls through to the static files.
+	 */
+	public static final Router NONE = new Router(null);
+
+	static {
+		NONE.compile();
+	}
+
+	private final EventLoop eventLoop;
+
+	private final List<Route> routes = new ArrayList<Route>();
+
+	private volatile Node root;
+
+	public Router(EventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+
+	public Router add(Method method, String pattern, RouteHandler handler) {
+		if (root != null) {
+			throw new IllegalStateException("Routes can not be added after compile()");
+		}
+		if (!pattern.startsWith("/")) {
+			throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+		}
+		routes.add(new Route(method, pattern, handler));
+		return this;
+	}
+
+	public Router get(String pattern, RouteHandler handler) {
+		return add(Method.GET, pattern, handler);
+	}
+
+	public Router post(String pattern, RouteHandler handler) {
+		return add(Method.POST, pattern, handler);
+	}
+
+	public boolean isEmpty() {
+		return routes.isEmpty();
+	}
+
+	/**
+	 * Builds the trie from the added routes; conflicting routes fail here rather than at request time.
+	 */
+	public synchronized void compile() {
+		if (root != null) {
+			return;
+		}
+		Node trie = new Node("");
+		for (Route route : routes) {
+			insert(trie, route);
+		}
+		trie.freeze();
+		root = trie;
+	}
+
+	/**
+	 * Finds the route of the request; the result and the parameter offsets
+	 * are left in match. Returns false when no route handles the method and
+	 * path; {@link RouteMatch#allow} is then set if other methods would.
+	 */
+	public boolean match(Method method, String uri, RouteMatch match) {
+		match.reset(uri);
+		Node trie = root;
+		if (trie == null) {
+			if (routes.isEmpty()) {
+				return false;
+			}
+			throw new IllegalStateException("Router is not compiled");
+		}
+		int end = uri.indexOf('?');
+		Node node = find(trie, uri, 0, end < 0 ? uri.length() : end, method, match);
+		if (node == null) {
+			return false;
+		}
+		match.route = node.routes[method.ordinal()];
+		if (match.route == null && method == Method.HEAD) {
+			match.route = node.routes[Method.GET.ordinal()];
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the route of the request, or returns null when the request is not routed.
+	 */
+	public HttpResponse route(HttpRequest req, RouteMatch match) throws IOException {
+		if (!match(req.method, req.uri, match)) {
+			return notRouted(req, match);
+		}
+		CompletableFuture<HttpResponse> response = eventLoop.dispatch(new RouteEvent(match.route.handler, req, match));
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + match.route.pattern);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BadRequestException) {
+				throw (BadRequestException) e.getCause();
+			}
+			log.error("Route " + match.route.pattern + " failed", e.getCause());
+			return new HttpResponse(req, Status._500, ContentType.TXT, Status._500.toString());
+		}
+	}
+
+	/**
+	 * Like {@link #route} but runs the handler on the calling thread, for
+	 * callers that already run on the event loop.
+	 */
+	public HttpResponse handle(HttpRequest req, RouteMatch match) throws IOException {
+		if (!match(req.method, req.uri, match)) {
+			return notRouted(req, match);
+		}
+		try {
+			return match.route.handler.handle(req, match);
+		} catch (BadRequestException e) {
+			throw e;
+		} catch (Exception e) {
+			log.error("Route " + match.route.pattern + " failed", e);
+			return new HttpResponse(req, Status._500, ContentType.TXT, Status._500.toString());
+		}
+	}
+
+	/**
+	 * The event loop route handlers run on, null for {@link #NONE}.
+	 */
+	public EventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	private static HttpResponse notRouted(HttpRequest req, RouteMatch match) {
+		if (match.allow == null) {
+			return null;
+		}
+		HttpResponse res = new HttpResponse(req, Status._405, ContentType.TXT, Status._405.toString());
+		res.addHeader("Allow", match.allow);
+		return res;
+	}
+
+	private static Node find(Node node, String path, int i, int end, Method method, RouteMatch match) {
+		if (i == end && node.hasRoutes) {
+			if (node.handles(method)) {
+				return node;
+			}
+			if (match.allow == null) {
+				match.allow = node.allow;
+			}
+		}
+		if (i < end) {
+			Node child = node.child(path.charAt(i));
+			if (child != null && path.startsWith(child.prefix, i)) {
+				Node found = find(child, path, i + child.prefix.length(), end, method, match);
+				if (found != null) {
+					return found;
+				}
+			}
+			if (node.param != null) {
+				int slash = path.indexOf('/', i);
+				int segmentEnd = slash < 0 || slash > end ? end : slash;
+				if (segmentEnd > i) {
+					int count = match.count;
+					match.offsets[count * 2] = i;
+					match.offsets[count * 2 + 1] = segmentEnd;
+					match.count = count + 1;
+					Node found = find(node.param, path, segmentEnd, end, method, match);
+					if (found != null) {
+						return found;
+					}
+					match.count = count;
+				}
+			}
+		}
+		if (node.catchAll != null) {
+			if (node.catchAll.handles(method)) {
+				match.offsets[match.count * 2] = i;
+				match.offsets[match.count * 2 + 1] = end;
+				match.count++;
+				return node.catchAll;
+			}
+			if (match.allow == null) {
+				match.allow = node.catchAll.allow;
+			}
+		}
+		return null;
+	}
+
+	private static void insert(Node root, Route route) {
+		String pattern = route.pattern;
+		List<String> params = new ArrayList<String>();
+		Node node = root;
+		int i = 0;
+		while (i < pattern.length()) {
+			int open = pattern.indexOf('{', i);
+			String text = pattern.substring(i, open < 0 ? pattern.length() : open);
+			if (!text.isEmpty()) {
+				node = insertStatic(node, text);
+			}
+			if (open < 0) {
+				break;
+			}
+			int close = pattern.indexOf('}', open);
+			if (close < 0) {
+				throw new IllegalArgumentException("Unclosed parameter in " + pattern);
+			}
+			String name = pattern.substring(open + 1, close);
+			boolean rest = name.endsWith("*");
+			if (rest) {
+				name = name.substring(0, name.length() - 1);
+				if (close != pattern.length() - 1) {
+					throw new IllegalArgumentException("{" + name + "*} must end the pattern " + pattern);
+				}
+			}
+			if (pattern.charAt(open - 1) != '/' || (!rest && close + 1 < pattern.length()
+					&& pattern.charAt(close + 1) != '/')) {
+				throw new IllegalArgumentException("{" + name + "} must span a whole segment in " + pattern);
+			}
+			if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('{') >= 0) {
+				throw new IllegalArgumentException("Malformed parameter name in " + pattern);
+			}
+			params.add(name);
+			if (rest) {
+				if (node.catchAll == null) {
+					node.catchAll = new Node("");
+				}
+				node = node.catchAll;
+			} else {
+				if (node.param == null) {
+					node.param = new Node("");
+				}
+				node = node.param;
+			}
+			i = close + 1;
+		}
+		if (params.size() > RouteMatch.MAX_PARAMS) {
+			throw new IllegalArgumentException("More than " + RouteMatch.MAX_PARAMS + " parameters in " + pattern);
+		}
+		route.params = params.toArray(new String[0]);
+		int m = route.method.ordinal();
+		if (node.routes[m] != null) {
+			throw new IllegalArgumentException(route.method + " " + pattern + " conflicts with "
+					+ node.routes[m].pattern);
+		}
+		node.routes[m] = route;
+		node.hasRoutes = true;
+	}
+
+	/**
+	 * Walks the static text below node, splitting edges where it diverges, and returns the node it ends at.
+	 */
+	private static Node insertStatic(Node node, String text) {
+		while (!text.isEmpty()) {
+			Node child = null;
+			for (Node candidate : node.building) {
+				if (candidate.prefix.charAt(0) == text.charAt(0)) {
+					child = candidate;
+					break;
+				}
+			}
+			if (child == null) {
+				child = new Node(text);
+				node.building.add(child);
+				return child;
+			}
+			int common = 0;
+			int max = Math.min(child.prefix.length(), text.length());
+			while (common < max && child.prefix.charAt(common) == text.charAt(common)) {
+				common++;
+			}
+			if (common < child.prefix.length()) {
+				Node split = new Node(child.prefix.substring(0, common));
+				node.building.set(node.building.indexOf(child), split);
+				child.prefix = child.prefix.substring(common);
+				split.building.add(child);
+				child = split;
+			}
+			node = child;
+			text = text.substring(common);
+		}
+		return node;
+	}
+
+	static class Route {
+
+		final Method method;
+
+		final String pattern;
+
+		final RouteHandler handler;
+
+		String[] params;
+
+		Route(Method method, String pattern, RouteHandler handler) {
+			this.method = method;
+			this.pattern = pattern;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Trie node: the static prefix of its edge, the routes ending here by
+	 * method, and the static, parameter and catch-all continuations.
+	 */
+	private static class Node {
+
+		String prefix;
+
+		final Route[] routes = new Route[METHODS.length];
+
+		boolean hasRoutes;
+
+		String allow;
+
+		List<Node> building = new ArrayList<Node>();
+
+		/**
+		 * First character of each static child, parallel to children once frozen.
+		 */
+		char[] first;
+
+		Node[] children;
+
+		Node param;
+
+		Node catchAll;
+
+		Node(String prefix) {
+			this.prefix = prefix;
+		}
+
+		boolean handles(Method method) {
+			return routes[method.ordinal()] != null || (method == Method.HEAD && routes[Method.GET.ordinal()] != null);
+		}
+
+		Node child(char c) {
+			char[] keys = first;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		void freeze() {
+			children = building.toArray(new Node[0]);
+			first = new char[children.length];
+			for (int i = 0; i < children.length; i++) {
+				first[i] = children[i].prefix.charAt(0);
+				children[i].freeze();
+			}
+			building = null;
+			if (hasRoutes) {
+				StringBuilder methods = new StringBuilder();
+				for (Method method : METHODS) {
+					if (handles(method)) {
+						methods.append(methods.length() == 0 ? "" : ", ").append(method);
+					}
+				}
+				allow = methods.toString();
+			}
+			if (param != null) {
+				param.freeze();
+			}
+			if (catchAll != null) {
+				catchAll.freeze();
+			}
+		}
+	}
+}
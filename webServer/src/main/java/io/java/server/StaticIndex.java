@@ -0,0 +1,516 @@
+package io.java.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StaticIndex is a snapshot of the document root taken at startup, so that
+ * resolving a URI to a static file is a hash lookup instead of file system
+ * calls. The root is walked in parallel into an immutable map of URI to
+ * {@link Entry}, with length, modification time, content type and ETag;
+ * files up to a size threshold are read into memory, within a total budget,
+ * and their compressed variants put into the {@link ContentCache}.
+ *
+ * Every indexed directory is registered with a WatchService before it is
+ * listed. Once a directory changes, its entries are no longer trusted and
+ * requests under it resolve through the file system again, like URIs the
+ * index does not know; a URI whose directory is indexed and unchanged but
+ * that has no entry is known to be missing. Only URIs in the normalized form
+ * the walk produces are looked up, anything else falls back.
+ */
+public class StaticIndex {
+
+	private static Logger log = Logger.getLogger(StaticIndex.class);
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * Index that knows no URI, every request resolves through the file system.
+	 */
+	public static final StaticIndex EMPTY = new StaticIndex(Map.of(), Map.of(), Map.of(), null, 0);
+
+	/**
+	 * Returned by {@link #lookup} for a URI known not to exist.
+	 */
+	public static final Entry MISSING = new Entry(null, -1, 0, null, null);
+
+	private static volatile StaticIndex current = EMPTY;
+
+	/**
+	 * The document root, files are served relative to the working directory.
+	 */
+	private static final Path ROOT = Paths.get("").toAbsolutePath().normalize();
+
+	private final Map<String, Entry> entries;
+
+	private final Map<String, Directory> directories;
+
+	private final Map<WatchKey, Directory> keys;
+
+	private final WatchService watcher;
+
+	private final long preloaded;
+
+	private StaticIndex(Map<String, Entry> entries, Map<String, Directory> directories,
+			Map<WatchKey, Directory> keys, WatchService watcher, long preloaded) {
+		this.entries = entries;
+		this.directories = directories;
+		this.keys = keys;
+		this.watcher = watcher;
+		this.preloaded = preloaded;
+	}
+
+	/**
+	 * The index requests are resolved with, {@link #EMPTY} until one is installed.
+	 */
+	public static StaticIndex current() {
+		return current;
+	}
+
+	/**
+	 * Walks the root on the common fork/join pool. Files of at most
+	 * maxFileSize bytes are read into memory until maxBytes are preloaded.
+	 */
+	public static StaticIndex build(Path root, long maxFileSize, long maxBytes) {
+		WatchService watcher;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			// without change notifications a snapshot would go stale unnoticed
+			log.warn("Can not watch the document root, static files are not indexed: " + e);
+			return EMPTY;
+		}
+		Walk walk = new Walk(watcher, maxFileSize, maxBytes);
+		ForkJoinPool.commonPool().invoke(walk.new Visit("/", root.toAbsolutePath().normalize()));
+		return new StaticIndex(Map.copyOf(walk.entries), Map.copyOf(walk.directories), Map.copyOf(walk.keys),
+				watcher, walk.preloaded.get());
+	}
+
+	/**
+	 * Makes this the index requests are resolved with and starts following changes of its directories.
+	 */
+	public void install() {
+		StaticIndex previous = current;
+		current = this;
+		if (previous.watcher != null) {
+			try {
+				previous.watcher.close();
+			} catch (IOException e) {
+				log.debug("Closing the previous index watcher failed: " + e);
+			}
+		}
+		if (watcher != null) {
+			Thread thread = new Thread(this::watchLoop, "static-index-watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * The entry of the URI; {@link #MISSING} when it is known not to exist,
+	 * null when the index can not tell and the file system has to.
+	 */
+	public Entry lookup(String uri) {
+		boolean trailingSlash = uri.length() > 1 && uri.endsWith("/");
+		String key = trailingSlash ? uri.substring(0, uri.length() - 1) : uri;
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			if (!entry.directory.isCurrent() || (trailingSlash && !entry.isDirectory())) {
+				return null;
+			}
+			return entry;
+		}
+		int slash = key.lastIndexOf('/');
+		if (slash < 0 || trailingSlash) {
+			return null;
+		}
+		String name = key.substring(slash + 1);
+		if (name.equals(".") || name.equals("..")) {
+			return null;
+		}
+		Directory parent = directories.get(slash == 0 ? "/" : key.substring(0, slash));
+		return parent != null && parent.isCurrent() ? MISSING : null;
+	}
+
+	/**
+	 * The file path a request URI names: the part before the query,
+	 * percent-decoded as UTF-8, as the listing links are encoded, with its
+	 * "." and ".." segments resolved. Throws a 400 for a malformed escape or a
+	 * path that is not absolute, and a 404 for one leading out of the document root.
+	 */
+	static String path(String uri) throws BadRequestException {
+		int query = uri.indexOf('?');
+		String raw = query < 0 ? uri : uri.substring(0, query);
+		if (!raw.startsWith("/")) {
+			throw new BadRequestException(Status._400, "Malformed path");
+		}
+		return normalize(raw.indexOf('%') < 0 ? raw : decode(raw));
+	}
+
+	private static String decode(String raw) throws BadRequestException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			char c = raw.charAt(i);
+			if (c == '%') {
+				int high = i + 2 < raw.length() ? Character.digit(raw.charAt(i + 1), 16) : -1;
+				int low = high < 0 ? -1 : Character.digit(raw.charAt(i + 2), 16);
+				if (low < 0) {
+					throw new BadRequestException(Status._400, "Malformed percent-encoding");
+				}
+				bytes.write(high << 4 | low);
+				i += 2;
+			} else {
+				// the request line is decoded as ISO-8859-1, one char per byte
+				bytes.write(c);
+			}
+		}
+		String path;
+		try {
+			path = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+		} catch (CharacterCodingException e) {
+			throw new BadRequestException(Status._400, "Path is not UTF-8");
+		}
+		return path;
+	}
+
+	private static String normalize(String path) throws BadRequestException {
+		if (path.indexOf('\0') >= 0 || (File.separatorChar != '/' && path.indexOf(File.separatorChar) >= 0)) {
+			throw new BadRequestException(Status._400, "Malformed path");
+		}
+		List<String> segments = new ArrayList<>();
+		String[] parts = path.split("/", -1);
+		for (int i = 1; i < parts.length; i++) {
+			String part = parts[i];
+			if (part.equals("..")) {
+				if (segments.isEmpty()) {
+					throw new BadRequestException(Status._404, "Path outside the document root");
+				}
+				segments.remove(segments.size() - 1);
+			} else if (!part.isEmpty() && !part.equals(".")) {
+				segments.add(part);
+			}
+		}
+		if (segments.isEmpty()) {
+			return "/";
+		}
+		String normalized = "/" + String.join("/", segments);
+		return path.endsWith("/") ? normalized + "/" : normalized;
+	}
+
+	/**
+	 * Resolves the URI through the file system, for URIs the index can not tell about.
+	 */
+	static Entry resolve(String uri) {
+		File file = new File("." + uri);
+		if (!file.toPath().toAbsolutePath().normalize().startsWith(ROOT)) {
+			return MISSING;
+		}
+		if (file.isDirectory()) {
+			return new Entry(file, -1, 0, null, null);
+		}
+		if (!file.exists()) {
+			return MISSING;
+		}
+		return new Entry(file, file.length(), file.lastModified(), ContentType.forPath(uri), null);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Bytes of file content held in memory.
+	 */
+	public long getPreloaded() {
+		return preloaded;
+	}
+
+	private void watchLoop() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				key.pollEvents();
+				Directory directory = keys.get(key);
+				if (directory != null) {
+					directory.changed = true;
+					log.debug("Directory " + directory.path + " changed, it is no longer served from the index");
+				}
+				// nothing to follow any more once the directory is distrusted
+				key.cancel();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			log.debug("Static index watcher stopped");
+		}
+	}
+
+	/**
+	 * Metadata of an indexed file or directory, with the content of small files.
+	 */
+	public static class Entry {
+
+		final File file;
+
+		final long length;
+
+		final long lastModified;
+
+		final ContentType type;
+
+		/**
+		 * The whole file when it was preloaded, null when it is read on every request.
+		 */
+		final byte[] content;
+
+		/**
+		 * Quoted entity tag derived from length and modification time.
+		 */
+		final String etag;
+
+		final String lastModifiedDate;
+
+		/**
+		 * Directory the entry was listed in, whose changes invalidate it.
+		 */
+		Directory directory;
+
+		/**
+		 * length is negative for directories.
+		 */
+		Entry(File file, long length, long lastModified, ContentType type, byte[] content) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.type = type;
+			this.content = content;
+			this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+			this.lastModifiedDate = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+		}
+
+
+		public boolean isDirectory() {
+			return length < 0;
+		}
+
+		/**
+		 * Whether an If-None-Match header names this entry, or one of its
+		 * compressed variants whose tags extend it with the coding.
+		 */
+		boolean matches(String ifNoneMatch) {
+			String prefix = etag.substring(0, etag.length() - 1) + "-";
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag) || (tag.startsWith(prefix) && tag.endsWith("\""))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Whether an If-Modified-Since date is not older than the entry, to the second.
+		 */
+		boolean notModifiedSince(String ifModifiedSince) {
+			try {
+				long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).toEpochMilli();
+				return lastModified / 1000 <= since / 1000;
+			} catch (RuntimeException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * ETag of the variant compressed with the encoding.
+		 */
+		String etag(ContentEncoding encoding) {
+			return encoding == null ? etag : etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+		}
+	}
+
+	static class Directory {
+
+		final Path path;
+
+		volatile boolean changed;
+
+		Directory(Path path) {
+			this.path = path;
+		}
+
+		boolean isCurrent() {
+			return !changed;
+		}
+	}
+
+	/**
+	 * State shared by the tasks of one walk.
+	 */
+	private static class Walk {
+
+		final WatchService watcher;
+
+		final long maxFileSize;
+
+		final long maxBytes;
+
+		final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+		final Map<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+		final Map<WatchKey, Directory> keys = new ConcurrentHashMap<WatchKey, Directory>();
+
+		final AtomicLong preloaded = new AtomicLong();
+
+		Walk(WatchService watcher, long maxFileSize, long maxBytes) {
+			this.watcher = watcher;
+			this.maxFileSize = maxFileSize;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * Indexes one directory and forks a task per subdirectory; never serialized.
+		 */
+		@SuppressWarnings("serial")
+		class Visit extends RecursiveAction {
+
+			private final String uri;
+
+			private final Path path;
+
+			Visit(String uri, Path path) {
+				this.uri = uri;
+				this.path = path;
+			}
+
+			@Override
+			protected void compute() {
+				Directory directory = new Directory(path);
+				WatchKey key;
+				try {
+					// registered before listing, so a change during the walk is noticed
+					key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (IOException e) {
+					log.warn("Can not watch " + path + ", it is not indexed: " + e);
+					return;
+				}
+				List<Visit> subdirectories = new ArrayList<Visit>();
+				String prefix = uri.equals("/") ? "/" : uri + "/";
+				try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+					for (Path child : children) {
+						Entry entry = index(child, prefix + child.getFileName(), subdirectories);
+						if (entry != null) {
+							entry.directory = directory;
+							entries.put(prefix + child.getFileName(), entry);
+						}
+					}
+				} catch (IOException e) {
+					key.cancel();
+					log.warn("Can not list " + path + ", it is not indexed: " + e);
+					return;
+				}
+				directories.put(uri, directory);
+				keys.put(key, directory);
+				if (uri.equals("/")) {
+					Entry root = new Entry(path.toFile(), -1, 0, null, null);
+					root.directory = directory;
+					entries.put(uri, root);
+				}
+				invokeAll(subdirectories);
+			}
+
+			private Entry index(Path child, String childUri, List<Visit> subdirectories) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(child, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// removed while walking, or a dangling link that does not exist for requests either
+					return null;
+				}
+				File file = new File("." + childUri);
+				long lastModified = attributes.lastModifiedTime().toMillis();
+				if (attributes.isDirectory()) {
+					if (!Files.isSymbolicLink(child)) {
+						subdirectories.add(new Visit(childUri, child));
+					}
+					return new Entry(file, -1, lastModified, null, null);
+				}
+				if (!attributes.isRegularFile()) {
+					return null;
+				}
+				long length = attributes.size();
+				ContentType type = ContentType.forPath(childUri);
+				byte[] content = null;
+				if (length <= maxFileSize && reserve(length)) {
+					try {
+						content = Files.readAllBytes(child);
+					} catch (IOException e) {
+						preloaded.addAndGet(-length);
+						log.warn("Can not preload " + child + ": " + e);
+					}
+					if (content != null && content.length != length) {
+						// changed while being read, the watch invalidates it anyway
+						preloaded.addAndGet(-length);
+						content = null;
+					}
+				}
+				Entry entry = new Entry(file, length, lastModified, type, content);
+				if (content != null && ContentCache.INSTANCE.varies(type, length)
+						&& ContentCache.INSTANCE.isCacheable(length)) {
+					try {
+						ContentCache.INSTANCE.get(file, length, lastModified, ContentEncoding.GZIP);
+					} catch (IOException e) {
+						log.debug("Can not precompress " + child + ": " + e);
+					}
+				}
+				return entry;
+			}
+
+			private boolean reserve(long length) {
+				if (preloaded.addAndGet(length) <= maxBytes) {
+					return true;
+				}
+				preloaded.addAndGet(-length);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * "N entries, M bytes preloaded" for the startup log.
+	 */
+	@Override
+	public String toString() {
+		return entries.size() + " entries, " + preloaded + " bytes preloaded";
+	}
+}
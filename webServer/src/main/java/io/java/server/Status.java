@@ -1,5 +1,7 @@
 package io.java.server;
 
+import java.nio.charset.StandardCharsets;
+
 
 public enum Status {
 	_100("100 Continue"), //
@@ -18,6 +20,7 @@ public enum Status {
 	_304("304 Not Modified"), //
 	_305("305 Use Proxy"), //
 	_307("307 Temporary Redirect"), //
+	_308("308 Permanent Redirect"), //
 	_400("400 Bad Request"), //
 	_401("401 Unauthorized"), //
 	_402("402 Payment Required"), //
@@ -36,6 +39,8 @@ public enum Status {
 	_415("415 Unsupported Media Type"), //
 	_416("416 Requested range not satisfiable"), //
 	_417("417 Expectation Failed"), //
+	_429("429 Too Many Requests"), //
+	_431("431 Request Header Fields Too Large"), //
 	_500("500 Internal Server Error"), //
 	_501("501 Not Implemented"), //
 	_502("502 Bad Gateway"), //
@@ -43,10 +48,49 @@ public enum Status {
 	_504("504 Gateway Time-out"), //
 	_505("505 HTTP Version not supported"); //
 
+	private static final Status[] VALUES = values();
+
 	private final String status;
 
+	private final int code;
+
+	/**
+	 * Pre-encoded "HTTP/1.x status\r\n" lines shared by all responses.
+	 */
+	private final byte[] http10;
+
+	private final byte[] http11;
+
 	Status(String status) {
 		this.status = status;
+		this.code = Integer.parseInt(status.substring(0, 3));
+		this.http10 = (HttpRequest.HTTP_1_0 + " " + status + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		this.http11 = (HttpRequest.HTTP_1_1 + " " + status + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The status with the given code; an unknown code falls back to the
+	 * first of its class, e.g. 418 to 400, and null when there is none.
+	 */
+	public static Status of(int code) {
+		Status first = null;
+		for (Status status : VALUES) {
+			if (status.code == code) {
+				return status;
+			}
+			if (first == null && status.code / 100 == code / 100) {
+				first = status;
+			}
+		}
+		return first;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public byte[] getStatusLine(String version) {
+		return HttpRequest.HTTP_1_1.equals(version) ? http11 : http10;
 	}
 
 	@Override
@@ -0,0 +1,182 @@
+package io.java.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TimingWheel is a hashed timing wheel (Varghese and Lauck): a ring of
+ * buckets that one thread advances every tick, expiring the timeouts of the
+ * current bucket whose remaining rounds reached zero. Scheduling and
+ * cancelling are O(1) and lock-free, so every connection can carry its own
+ * deadline without a scheduled task per socket. Timeouts fire up to one tick
+ * late; the thread is started on first use.
+ */
+public class TimingWheel {
+
+	private static Logger log = Logger.getLogger(TimingWheel.class);
+
+	private final long tickNanos;
+
+	private final List<Timeout>[] wheel;
+
+	private final int mask;
+
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final String name;
+
+	private volatile Thread worker;
+
+	private volatile boolean running = true;
+
+	private long startTime;
+
+	private long tick;
+
+	public TimingWheel(String name) {
+		this(name, 100, TimeUnit.MILLISECONDS, 512);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel(String name, long tickDuration, TimeUnit unit, int buckets) {
+		if (Integer.bitCount(buckets) != 1) {
+			throw new IllegalArgumentException("Bucket count must be a power of two: " + buckets);
+		}
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new List[buckets];
+		for (int i = 0; i < buckets; i++) {
+			wheel[i] = new ArrayList<Timeout>();
+		}
+		this.mask = buckets - 1;
+	}
+
+	/**
+	 * Runs the task on the wheel thread once the delay elapsed, unless the returned timeout is cancelled first.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	private void start() {
+		if (worker == null) {
+			synchronized (this) {
+				if (worker == null) {
+					startTime = System.nanoTime();
+					Thread thread = new Thread(this::run, name);
+					thread.setDaemon(true);
+					thread.start();
+					worker = thread;
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+		Thread thread = worker;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void run() {
+		while (running) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep;
+			while (running && (sleep = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(sleep);
+			}
+			transferScheduled();
+			expire(wheel[(int) (tick & mask)], deadline);
+			tick++;
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			long ticks = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1);
+			timeout.rounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(List<Timeout> bucket, long now) {
+		for (int i = bucket.size() - 1; i >= 0; i--) {
+			Timeout timeout = bucket.get(i);
+			boolean remove = timeout.isCancelled();
+			if (!remove && timeout.rounds <= 0 && timeout.deadline <= now) {
+				remove = true;
+				timeout.expire();
+			} else if (!remove) {
+				timeout.rounds--;
+			}
+			if (remove) {
+				// swap-remove, order inside a bucket does not matter
+				bucket.set(i, bucket.get(bucket.size() - 1));
+				bucket.remove(bucket.size() - 1);
+			}
+		}
+	}
+
+	public static class Timeout {
+
+		private static final int WAITING = 0;
+
+		private static final int CANCELLED = 1;
+
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		private long rounds;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Returns false when the timeout already fired.
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED) || state.get() == CANCELLED;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (state.compareAndSet(WAITING, EXPIRED)) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.error("Timeout task failed", e);
+				}
+			}
+		}
+	}
+}
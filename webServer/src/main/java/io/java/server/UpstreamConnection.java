@@ -0,0 +1,350 @@
+package io.java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One HTTP/1.1 connection of an {@link UpstreamPool}: sends a request head
+ * and body, reads the response head and hands out the body delimited by its
+ * Content-Length, the chunked coding or the end of the connection. The
+ * connection can carry the next request once the body was read to its end
+ * and the upstream did not ask to close it.
+ */
+class UpstreamConnection implements Closeable {
+
+	static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final int MAX_LINE = 8192;
+
+	private static final int MAX_HEADERS = 100;
+
+	private final Socket socket;
+
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private final int timeout;
+
+	private final StringBuilder line = new StringBuilder(128);
+
+	/**
+	 * Whether the connection already carried a request, so the upstream may have closed it meanwhile.
+	 */
+	boolean reused;
+
+	/**
+	 * System.nanoTime() when the connection went back to the pool.
+	 */
+	long idleSince;
+
+	/**
+	 * Whether any of the response to the last request arrived, after which it can not be sent again.
+	 */
+	boolean answered;
+
+	int status;
+
+	/**
+	 * Reason phrase of the status line, possibly empty.
+	 */
+	String reason;
+
+	/**
+	 * Response header names and values, alternating.
+	 */
+	final List<String> headers = new ArrayList<String>();
+
+	/**
+	 * Body length of the response, negative when it is chunked or ends with the connection.
+	 */
+	long length;
+
+	private boolean chunked;
+
+	private boolean keepAlive;
+
+	private boolean bodyDone;
+
+	UpstreamConnection(InetSocketAddress address, int timeout) throws IOException {
+		this.timeout = timeout;
+		socket = new Socket();
+		try {
+			socket.connect(address, timeout);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether a pooled connection turns out unusable: the upstream closed it
+	 * or sent something unasked. Costs a read of up to a millisecond, so it is
+	 * only worth it before a request that could not be sent again.
+	 */
+	boolean isStale() {
+		try {
+			if (in.available() > 0) {
+				return true;
+			}
+			socket.setSoTimeout(1);
+			try {
+				in.read();
+				return true;
+			} catch (SocketTimeoutException e) {
+				return false;
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Sends the request head and copies the body, if any, after it: length
+	 * bytes of it, or all of it with the chunked coding when length is negative.
+	 */
+	void send(byte[] head, InputStream body, long length) throws IOException {
+		answered = false;
+		out.write(head);
+		if (body != null) {
+			if (length < 0) {
+				ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+				body.transferTo(chunks);
+				chunks.finish();
+			} else if (body.transferTo(out) != length) {
+				throw new EOFException("Request body does not match its Content-Length of " + length);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads the status line and headers of the response, skipping interim
+	 * 1xx responses; head tells whether the request was a HEAD.
+	 */
+	void readHead(boolean head) throws IOException {
+		do {
+			String statusLine = readLine();
+			if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.") || statusLine.charAt(8) != ' '
+					|| (statusLine.length() > 12 && statusLine.charAt(12) != ' ')) {
+				throw new IOException("Malformed status line from upstream: " + statusLine);
+			}
+			try {
+				status = Integer.parseInt(statusLine.substring(9, 12));
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed status line from upstream: " + statusLine);
+			}
+			if (status < 100 || status > 599) {
+				throw new IOException("Invalid status from upstream: " + statusLine);
+			}
+			reason = statusLine.length() > 13 ? statusLine.substring(13) : "";
+			keepAlive = statusLine.charAt(7) == '1';
+			readHeaders();
+		} while (status < 200);
+
+		chunked = false;
+		length = -1;
+		String connection = null;
+		for (int i = 0; i < headers.size(); i += 2) {
+			String name = headers.get(i);
+			String value = headers.get(i + 1);
+			if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().endsWith("chunked");
+			} else if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					length = Long.parseLong(value.trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed Content-Length from upstream: " + value);
+				}
+			} else if (name.equalsIgnoreCase("Connection")) {
+				connection = value.toLowerCase();
+			}
+		}
+		if (connection != null) {
+			keepAlive = keepAlive ? !connection.contains("close") : connection.contains("keep-alive");
+		}
+		if (head || status == 204 || status == 304) {
+			bodyDone = true;
+		} else if (chunked) {
+			length = -1;
+			bodyDone = false;
+		} else if (length >= 0) {
+			bodyDone = length == 0;
+		} else {
+			// delimited by the end of the connection
+			keepAlive = false;
+			bodyDone = false;
+		}
+	}
+
+	/**
+	 * Whether the response has a body to read.
+	 */
+	boolean hasBody() {
+		return !bodyDone;
+	}
+
+	/**
+	 * The body of the response; reading it to its end frees the connection for the next request.
+	 */
+	InputStream body() {
+		return chunked ? new ChunkedBody() : new Body(length);
+	}
+
+	/**
+	 * Whether the connection can carry another request.
+	 */
+	boolean isReusable() {
+		return keepAlive && bodyDone;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	private void readHeaders() throws IOException {
+		headers.clear();
+		String header;
+		while (!(header = readLine()).isEmpty()) {
+			int colon = header.indexOf(':');
+			if (colon <= 0 || headers.size() >= MAX_HEADERS * 2) {
+				throw new IOException("Malformed header from upstream: " + header);
+			}
+			headers.add(header.substring(0, colon).trim());
+			headers.add(header.substring(colon + 1).trim());
+		}
+	}
+
+	private String readLine() throws IOException {
+		line.setLength(0);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new EOFException("Upstream closed the connection");
+			}
+			answered = true;
+			if (line.length() == MAX_LINE) {
+				throw new IOException("Line from upstream too long");
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Body of the given length, or up to the end of the connection when negative.
+	 */
+	private class Body extends InputStream {
+
+		private long remaining;
+
+		Body(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (bodyDone) {
+				return -1;
+			}
+			if (remaining >= 0) {
+				len = (int) Math.min(len, remaining);
+			}
+			int n = in.read(b, off, len);
+			if (n < 0) {
+				if (remaining > 0) {
+					throw new EOFException("Upstream closed the connection " + remaining
+							+ " bytes before the end of the body");
+				}
+				bodyDone = true;
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining -= n;
+				bodyDone = remaining == 0;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Body in the chunked coding http://tools.ietf.org/html/rfc7230#section-4.1, trailers are dropped.
+	 */
+	private class ChunkedBody extends InputStream {
+
+		private long remaining;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (bodyDone) {
+				return -1;
+			}
+			if (remaining == 0) {
+				if (!nextChunk()) {
+					return -1;
+				}
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) {
+				throw new EOFException("Upstream closed the connection inside a chunk");
+			}
+			remaining -= n;
+			if (remaining == 0 && !readLine().isEmpty()) {
+				throw new IOException("Malformed chunk from upstream");
+			}
+			return n;
+		}
+
+		private boolean nextChunk() throws IOException {
+			String size = readLine();
+			int extension = size.indexOf(';');
+			try {
+				remaining = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed chunk size from upstream: " + size);
+			}
+			if (remaining < 0) {
+				throw new IOException("Malformed chunk size from upstream: " + size);
+			}
+			if (remaining == 0) {
+				while (!readLine().isEmpty()) {
+					// trailer field
+				}
+				bodyDone = true;
+				return false;
+			}
+			return true;
+		}
+	}
+}
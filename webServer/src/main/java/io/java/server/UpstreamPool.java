@@ -0,0 +1,166 @@
+package io.java.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * UpstreamPool keeps the keep-alive connections to one upstream server of a
+ * {@link ProxyHandler}. At most maxConnections requests are sent to the
+ * upstream at the same time, further ones wait up to the queue timeout for
+ * one of them to finish. Idle connections are reused newest first, so the
+ * pool shrinks back when load drops; a connection idle for longer than the
+ * idle timeout is closed before the upstream would close it under a request.
+ *
+ * Waiting is done with java.util.concurrent rather than monitors, so that
+ * virtual threads waiting for an upstream do not pin their carrier.
+ */
+public class UpstreamPool implements Closeable {
+
+	private static Logger log = Logger.getLogger(UpstreamPool.class);
+
+	private final InetSocketAddress address;
+
+	private final Semaphore slots;
+
+	private final long queueTimeout;
+
+	private final int timeout;
+
+	private final long idleTimeout;
+
+	/**
+	 * Idle connections, the most recently used first.
+	 */
+	private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<UpstreamConnection>();
+
+	private final LongAdder opened = new LongAdder();
+
+	private volatile boolean closed;
+
+	public UpstreamPool(String host, int port, int maxConnections, long queueTimeout, int timeout,
+			long idleTimeout) {
+		this.address = InetSocketAddress.createUnresolved(host, port);
+		this.slots = new Semaphore(maxConnections, true);
+		this.queueTimeout = queueTimeout;
+		this.timeout = timeout;
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Takes a slot and an idle connection, or opens one; returns null when no
+	 * slot freed up within the queue timeout. The connection goes back with
+	 * {@link #release}, which also frees the slot.
+	 */
+	UpstreamConnection acquire() throws IOException {
+		try {
+			if (!slots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + this);
+		}
+		UpstreamConnection connection;
+		long now = System.nanoTime();
+		while ((connection = idle.pollFirst()) != null) {
+			if (now - connection.idleSince < idleTimeout) {
+				return connection;
+			}
+			closeQuietly(connection);
+		}
+		try {
+			return open();
+		} catch (IOException | RuntimeException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces a connection the upstream closed while it was idle, keeping
+	 * its slot; when that fails the stale connection still has to be released.
+	 */
+	UpstreamConnection reopen(UpstreamConnection stale) throws IOException {
+		closeQuietly(stale);
+		return open();
+	}
+
+	/**
+	 * Returns the connection to the pool when it can carry another request,
+	 * closes it otherwise, and frees its slot.
+	 */
+	void release(UpstreamConnection connection, boolean reusable) {
+		try {
+			if (reusable && !closed) {
+				connection.reused = true;
+				connection.idleSince = System.nanoTime();
+				idle.offerFirst(connection);
+				// the oldest connection may have expired while newer ones were reused
+				UpstreamConnection oldest = idle.peekLast();
+				if (oldest != null && connection.idleSince - oldest.idleSince >= idleTimeout
+						&& idle.removeLastOccurrence(oldest)) {
+					closeQuietly(oldest);
+				}
+				if (closed && idle.remove(connection)) {
+					closeQuietly(connection);
+				}
+			} else {
+				closeQuietly(connection);
+			}
+		} finally {
+			slots.release();
+		}
+	}
+
+	/**
+	 * Connections opened to the upstream so far.
+	 */
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * Closes the idle connections; connections in use are closed when they are released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		UpstreamConnection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			closeQuietly(connection);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return address.getHostString() + ":" + address.getPort();
+	}
+
+	private UpstreamConnection open() throws IOException {
+		// resolved on every connect so that DNS changes of the upstream are picked up
+		UpstreamConnection connection = new UpstreamConnection(
+				new InetSocketAddress(address.getHostString(), address.getPort()), timeout);
+		opened.increment();
+		return connection;
+	}
+
+	private static void closeQuietly(UpstreamConnection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log.debug("Closing upstream connection failed: " + e);
+		}
+	}
+}